@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+
+
+/**
+ * Process wide executor for background work, e.g. for fetching or loading chunks.
+ *
+ * The executor is created on first use. Its threads are daemon threads, i.e. they don't keep the process alive.
+ */
+public class BackgroundExecutor {
+    final private String threadName;
+    // 0 for an unbounded number of threads
+    final private int nThreads;
+    private ExecutorService executor;
+
+    /**
+     * @param nThreads max number of threads, 0 to create threads as needed
+     */
+    public BackgroundExecutor(String threadName, int nThreads) {
+        this.threadName = threadName;
+        this.nThreads = nThreads;
+    }
+
+    synchronized public ExecutorService get() {
+        if (executor == null) {
+            ThreadFactory threadFactory = createThreadFactory(threadName);
+            if (nThreads == 0)
+                executor = Executors.newCachedThreadPool(threadFactory);
+            else
+                executor = Executors.newFixedThreadPool(nThreads, threadFactory);
+        }
+        return executor;
+    }
+
+    static public ThreadFactory createThreadFactory(final String threadName) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Waits for the result of a background task and rethrows the error of the task.
+     */
+    static public <T> T waitFor(Future<T> future) throws IOException, CryptoException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof CryptoException)
+                throw (CryptoException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -10,7 +10,6 @@ package org.fejoa.chunkstore;
 import org.fejoa.library.crypto.CryptoHelper;
 
 import java.io.*;
-import java.math.BigInteger;
 import java.util.*;
 
 
@@ -97,18 +96,133 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         public void write(byte[] data) throws IOException {
             if (data.length != tileSize)
                 throw new IOException("Data tile size mismatch");
-            seekTo();
-            file.write(data);
+            tileCache.invalidate(index);
+            synchronized (file) {
+                seekTo();
+                file.write(data);
+            }
         }
 
         public byte[] read() throws IOException {
-            seekTo();
             byte[] data = new byte[tileSize];
-            file.readFully(data);
+            // concurrent readers share the file pointer
+            synchronized (file) {
+                seekTo();
+                file.readFully(data);
+            }
             return data;
         }
     }
 
+    /**
+     * Compares two keys of equal length.
+     *
+     * The tree has always been ordered like new BigInteger(key), i.e. two's complement big-endian numbers. To stay
+     * compatible with existing index files the first byte is compared signed and the remaining bytes unsigned.
+     *
+     * @return a negative value, zero, or a positive value if key1 is less, equal or greater than key2
+     */
+    static int compareKeys(byte[] key1, int offset1, byte[] key2, int length) {
+        if (length == 0)
+            return 0;
+        if (key1[offset1] != key2[0])
+            return key1[offset1] < key2[0] ? -1 : 1;
+        for (int i = 1; i < length; i++) {
+            int b1 = key1[offset1 + i] & 0xFF;
+            int b2 = key2[i] & 0xFF;
+            if (b1 != b2)
+                return b1 < b2 ? -1 : 1;
+        }
+        return 0;
+    }
+
+    static int compareKeys(byte[] key1, byte[] key2) {
+        return compareKeys(key1, 0, key2, key2.length);
+    }
+
+    final static Comparator<byte[]> KEY_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] key1, byte[] key2) {
+            return compareKeys(key1, key2);
+        }
+    };
+
+    /**
+     * Returns the index of the first key that is greater or equal to the given key.
+     */
+    static int lowerBound(List<byte[]> keys, byte[] key) {
+        int low = 0;
+        int high = keys.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareKeys(keys.get(middle), key) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Decoded content of a node tile.
+     *
+     * Node objects are bound to their parent and are modified during writes. Thus, only the decoded keys and pointers
+     * are cached. The keys are stored in one flat array so that lookups can search a tile without allocating objects.
+     */
+    class DecodedTile {
+        final long deletedPointer;
+        final int nKeys;
+        final byte[] keys;
+        final long[] pointers;
+
+        DecodedTile(long deletedPointer, int nKeys, byte[] keys, long[] pointers) {
+            this.deletedPointer = deletedPointer;
+            this.nKeys = nKeys;
+            this.keys = keys;
+            this.pointers = pointers;
+        }
+
+        int compareKey(int index, byte[] key) {
+            return compareKeys(keys, index * hashSize, key, hashSize);
+        }
+
+        /**
+         * Returns the index of the first key that is greater or equal to the given key.
+         */
+        int lowerBound(byte[] key) {
+            int low = 0;
+            int high = nKeys;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compareKey(middle, key) < 0)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low;
+        }
+
+        /**
+         * Returns the index of the child pointer to follow for the given key.
+         */
+        int findChildPointer(byte[] key) {
+            int position = lowerBound(key);
+            if (position < nKeys && compareKey(position, key) == 0)
+                return position + 1;
+            return position;
+        }
+
+        /**
+         * Returns the key index in a leaf tile or -1 if the key is not in the tile.
+         */
+        int findLeafKey(byte[] key) {
+            int position = lowerBound(key);
+            if (position < nKeys && compareKey(position, key) == 0)
+                return position;
+            return -1;
+        }
+    }
+
     class TileAllocator {
         long currentFreedTail = 0L;
         long currentFreedHead = 0L;
@@ -141,6 +255,14 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             currentFreedTail = 0L;
         }
 
+        /**
+         * Forgets the tiles that have been freed since the last commit.
+         */
+        void discard() {
+            currentFreedHead = 0L;
+            currentFreedTail = 0L;
+        }
+
         int countDeletedTiles() throws IOException {
             int i = 0;
             long current = freeTileList;
@@ -316,61 +438,34 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
 
         public void read() throws IOException {
-            byte[] data = tile.read();
-            ByteArrayInputStream in = new ByteArrayInputStream(data);
-            DataInputStream reader = new DataInputStream(in);
-
-            // skip deleted pointer
-            deletedPointer = indexType.toLong(indexType.read(reader));
-
-            readKeys(reader);
+            DecodedTile decoded = readDecodedTile(tile.index);
+            deletedPointer = decoded.deletedPointer;
+            for (int i = 0; i < decoded.nKeys; i++) {
+                int keyOffset = i * hashSize;
+                keys.add(Arrays.copyOfRange(decoded.keys, keyOffset, keyOffset + hashSize));
+            }
+            for (long pointer : decoded.pointers)
+                pointers.add(indexType.fromLong(pointer));
 
             onNodeRead();
         }
 
-        private boolean isEmpty(byte[] array) {
-            int sum = 0;
-            for (byte b : array)
-                sum |= b;
-            return sum == 0;
-        }
-
-        protected void readKeys(DataInputStream reader) throws IOException {
-            IndexType pointer = indexType.read(reader);
-            if (indexType.toLong(pointer) > 0) {
-                pointers.add(pointer);
-                for (int i = 0; i < maxNumberOfKeys; i++) {
-                    byte[] key = new byte[hashSize];
-                    reader.readFully(key);
-                    pointer = indexType.read(reader);
-                    if (isEmpty(key) && indexType.toLong(pointer) == 0l)
-                        break;
-
-                    keys.add(key);
-                    pointers.add(pointer);
-                }
-            }
-        }
-
-        public void findPosition(BigInteger key, SearchResult result) {
+        public void findPosition(byte[] key, SearchResult result) {
             result.foundKey = null;
-            for (int i = 0; i < keys.size(); i++) {
-                BigInteger current = new BigInteger(keys.get(i));
-                result.keyComparison = current.compareTo(key);
-                if (result.keyComparison > 0) {
-                    result.foundKey = current;
-                    result.keyPosition = i;
-                    break;
-                } else if (result.keyComparison == 0) {
-                    result.foundKey = current;
-                    result.keyPosition = i + 1;
-                    result.leftAnchor = this;
-                    result.leftAnchorPointer = i;
-                    break;
-                }
-            }
-            if (result.foundKey == null)
+            int position = lowerBound(keys, key);
+            if (position == keys.size()) {
                 result.keyPosition = keys.size();
+                return;
+            }
+            result.foundKey = keys.get(position);
+            result.keyComparison = compareKeys(result.foundKey, key);
+            if (result.keyComparison > 0) {
+                result.keyPosition = position;
+            } else {
+                result.keyPosition = position + 1;
+                result.leftAnchor = this;
+                result.leftAnchorPointer = position;
+            }
         }
 
         public Node readChildNode(int pointerIndex) throws IOException {
@@ -420,6 +515,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
 
         public void writeDeletedPointer(long pointer) throws IOException {
+            tileCache.invalidate(tile.index);
             tile.seekTo();
             indexType.write(file, indexType.fromLong(pointer));
         }
@@ -482,19 +578,13 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
 
         @Override
-        public void findPosition(BigInteger key, SearchResult result) {
+        public void findPosition(byte[] key, SearchResult result) {
             result.foundKey = null;
-            for (int i = 0; i < keys.size(); i++) {
-                BigInteger current = new BigInteger(keys.get(i));
-                result.keyComparison = current.compareTo(key);
-                if (result.keyComparison >= 0) {
-                    result.foundKey = current;
-                    result.keyPosition = i;
-                    break;
-                }
-            }
-            if (result.foundKey == null)
-                result.keyPosition = keys.size();
+            result.keyPosition = lowerBound(keys, key);
+            if (result.keyPosition == keys.size())
+                return;
+            result.foundKey = keys.get(result.keyPosition);
+            result.keyComparison = compareKeys(result.foundKey, key);
         }
 
         @Override
@@ -529,6 +619,8 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
     }
 
+    final static public int DEFAULT_TILE_CACHE_CAPACITY = 256;
+
     private boolean isOpen = false;
     private int tileSize;
     private short version;
@@ -538,11 +630,13 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     private long rootTileIndex;
     private long freeTileList ;
     private short hashSize;
+    private boolean autoCommit = true;
 
     final private RandomAccessFile file;
     final private IDataType<IndexType> indexType;
     final private IDataType<DataType> dataType;
     final private TileAllocator tileAllocator;
+    final private TileCache<DecodedTile> tileCache = new TileCache<>(DEFAULT_TILE_CACHE_CAPACITY);
 
     public BaseBPlusTree(RandomAccessFile file, IDataType<IndexType> indexType, IDataType<DataType> dataType) {
         this.file = file;
@@ -568,6 +662,13 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         return depth;
     }
 
+    /**
+     * The cache holds decoded tiles. Its memory usage is roughly the capacity times the tile size.
+     */
+    public TileCache<?> getTileCache() {
+        return tileCache;
+    }
+
     public IDataType<IndexType> getIndexType() {
         return indexType;
     }
@@ -587,6 +688,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         this.tileSize = tileSize;
         this.isOpen = true;
 
+        tileCache.clear();
         file.setLength(0);
         writeHeader();
     }
@@ -594,30 +696,104 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     public void open() throws IOException {
         if (isOpen)
             return;
+        tileCache.clear();
         readHeader();
         isOpen = true;
     }
 
     private void readHeader() throws IOException {
         file.seek(0);
-        version = file.readShort();
-        hashSize = file.readShort();
-        tileSize = file.readInt();
-        numberOfEntries = file.readLong();
-        rootTileIndex = indexType.toLong(indexType.read(file));
-        depth = file.readShort();
-        freeTileList = indexType.toLong(indexType.read(file));
+        readHeader(file);
+    }
+
+    private void readHeader(DataInput input) throws IOException {
+        version = input.readShort();
+        hashSize = input.readShort();
+        tileSize = input.readInt();
+        numberOfEntries = input.readLong();
+        rootTileIndex = indexType.toLong(indexType.read(input));
+        depth = input.readShort();
+        freeTileList = indexType.toLong(indexType.read(input));
     }
 
     private void writeHeader() throws IOException {
         file.seek(0);
-        file.writeShort(version);
-        file.writeShort(hashSize);
-        file.writeInt(tileSize);
-        file.writeLong(numberOfEntries);
-        indexType.write(file, indexType.fromLong(rootTileIndex));
-        file.writeShort(depth);
-        indexType.write(file, indexType.fromLong(freeTileList));
+        writeHeader(file);
+    }
+
+    private void writeHeader(DataOutput output) throws IOException {
+        output.writeShort(version);
+        output.writeShort(hashSize);
+        output.writeInt(tileSize);
+        output.writeLong(numberOfEntries);
+        indexType.write(output, indexType.fromLong(rootTileIndex));
+        output.writeShort(depth);
+        indexType.write(output, indexType.fromLong(freeTileList));
+    }
+
+    /**
+     * Returns the in-memory header, i.e. the header that would be written on the next commit.
+     */
+    public byte[] getHeader() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeHeader(new DataOutputStream(outputStream));
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Restores a previous state of the tree, e.g. to recover from a crash.
+     *
+     * @param header a header obtained from getHeader()
+     * @param length the file length of the restored state
+     */
+    public void restore(byte[] header, long length) throws IOException {
+        tileAllocator.discard();
+        tileCache.clear();
+        if (file.length() > length)
+            file.setLength(length);
+        readHeader(new DataInputStream(new ByteArrayInputStream(header)));
+        writeHeader();
+    }
+
+    public long getFileLength() throws IOException {
+        return file.length();
+    }
+
+    /**
+     * If auto commit is disabled, modifications only become persistent when commit() is called. Until then,
+     * freed tiles are not reused and the header on disk still refers to the last committed tree.
+     */
+    public void setAutoCommit(boolean autoCommit) {
+        this.autoCommit = autoCommit;
+    }
+
+    public boolean isAutoCommit() {
+        return autoCommit;
+    }
+
+    /**
+     * Makes all modifications since the last commit persistent.
+     */
+    public void commit() throws IOException {
+        tileAllocator.commit();
+        writeHeader();
+    }
+
+    /**
+     * Discards all modifications since the last commit.
+     */
+    public void rollback() throws IOException {
+        tileAllocator.discard();
+        tileCache.clear();
+        readHeader();
+    }
+
+    public void sync() throws IOException {
+        file.getFD().sync();
+    }
+
+    public void close() throws IOException {
+        file.close();
     }
 
     private long headerSize() {
@@ -686,19 +862,18 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     }
 
     private void commit(long rootNodeIndex) throws IOException {
-        this.tileAllocator.commit();
         this.rootTileIndex = rootNodeIndex;
-
-        writeHeader();
+        if (autoCommit)
+            commit();
     }
 
     public int countDeletedTiles() throws IOException {
         return tileAllocator.countDeletedTiles();
     }
 
-    private void insert(Node insertNode, int insertPosition, BigInteger key, IndexType p1, byte[] rawKey, IndexType p2)
+    private void insert(Node insertNode, int insertPosition, IndexType p1, byte[] key, IndexType p2)
             throws IOException {
-        insertNode.add(insertPosition, p1, rawKey, p2);
+        insertNode.add(insertPosition, p1, key, p2);
 
         if (insertNode.keys.size() > insertNode.maxNumberOfKeys) {
             // split
@@ -718,8 +893,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             SearchResult inNodePosition = new SearchResult();
             inNodePosition.node = parent;
             parent.findPosition(key, inNodePosition);
-            insert(parent, inNodePosition.keyPosition, new BigInteger(result.key),
-                    indexType.fromLong(insertNode.tile.index), result.key,
+            insert(parent, inNodePosition.keyPosition, indexType.fromLong(insertNode.tile.index), result.key,
                     indexType.fromLong(result.newNode.tile.index));
         } else {
             insertNode.write();
@@ -759,22 +933,48 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
     }
 
-    public boolean put(HashValue hash, DataType address) throws IOException {
+    /**
+     * Supplies the address of a new entry. Only called when the key is not in the tree yet.
+     */
+    public interface IAddressSupplier<DataType> {
+        DataType get() throws IOException;
+    }
+
+    public boolean put(HashValue hash, final DataType address) throws IOException {
+        // TODO replace
+        return putIfAbsent(hash, address) == null;
+    }
+
+    public DataType putIfAbsent(HashValue hash, final DataType address) throws IOException {
+        return putIfAbsent(hash, new IAddressSupplier<DataType>() {
+            @Override
+            public DataType get() {
+                return address;
+            }
+        });
+    }
+
+    /**
+     * Inserts a key using a single descent of the tree.
+     *
+     * @param hash the key
+     * @param addressSupplier is only asked for the address if the key is not in the tree
+     * @return the existing address or null if the key has been inserted
+     */
+    public DataType putIfAbsent(HashValue hash, IAddressSupplier<DataType> addressSupplier) throws IOException {
         assert hash.size() == hashSize;
 
-        BigInteger key = new BigInteger(hash.getBytes());
-        SearchResult result = find(key);
-        if (result.foundKey != null && result.keyComparison == 0) {
-            // TODO replace
-            //throw new IOException("replacing not supported yet");
-            return false;
-        }
-        insert(result.node, result.keyPosition, key, indexType.fromLong(dataType.toLong(address)), hash.getBytes(),
+        SearchResult result = find(hash.getBytes());
+        if (result.isExactMatch())
+            return dataType.fromLong(indexType.toLong(result.node.pointers.get(result.keyPosition)));
+
+        DataType address = addressSupplier.get();
+        insert(result.node, result.keyPosition, indexType.fromLong(dataType.toLong(address)), hash.getBytes(),
                 indexType.fromLong(0l));
 
         numberOfEntries++;
         commit(result.node.rootNode());
-        return true;
+        return null;
     }
 
     public DataType get(String hash) throws IOException {
@@ -784,7 +984,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     class SearchResult {
         public Node node;
         public int keyPosition;
-        public BigInteger foundKey;
+        public byte[] foundKey;
         public int keyComparison;
         // Fields if key occurs in a non-leaf node:
         public Node leftAnchor;
@@ -795,7 +995,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
         }
     }
 
-    private SearchResult find(BigInteger key) throws IOException {
+    private SearchResult find(byte[] key) throws IOException {
         SearchResult result = new SearchResult();
         result.node = readRootNode();
         // find node to insert
@@ -822,14 +1022,112 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
 
     public DataType get(byte[] hash) throws IOException {
         assert hash.length == hashSize;
-
-        BigInteger key = new BigInteger(hash);
-        SearchResult result = find(key);
-        if (result.foundKey == null)
+        // don't allocate a root tile for a lookup, get may be called concurrently
+        if (rootTileIndex == 0)
             return null;
-        if (result.keyComparison != 0)
+
+        // search the decoded tiles directly, this avoids creating Node objects and key copies
+        long tileIndex = rootTileIndex;
+        for (int level = 1; level < depth; level++) {
+            DecodedTile decoded = readDecodedTile(tileIndex);
+            if (decoded.nKeys == 0)
+                throw new IOException("Unexpected empty node");
+            tileIndex = decoded.pointers[decoded.findChildPointer(hash)];
+            if (tileIndex == 0l)
+                throw new IOException("Invalid pointer");
+        }
+        DecodedTile leaf = readDecodedTile(tileIndex);
+        int keyIndex = leaf.findLeafKey(hash);
+        if (keyIndex < 0)
             return null;
-        return dataType.fromLong(indexType.toLong(result.node.pointers.get(result.keyPosition)));
+        return dataType.fromLong(leaf.pointers[keyIndex]);
+    }
+
+    /**
+     * Looks up many keys in one pass. Every tile on the way to the requested leaves is read at most once.
+     *
+     * @param sortedKeys keys sorted in the tree order, see compareKeys
+     * @return the addresses in the order of the keys, null for keys that are not in the tree
+     */
+    public List<DataType> getAll(List<byte[]> sortedKeys) throws IOException {
+        List<DataType> results = new ArrayList<>(Collections.<DataType>nCopies(sortedKeys.size(), null));
+        if (rootTileIndex == 0 || sortedKeys.size() == 0)
+            return results;
+        getAll(rootTileIndex, 1, sortedKeys, 0, sortedKeys.size(), results);
+        return results;
+    }
+
+    private void getAll(long tileIndex, int level, List<byte[]> sortedKeys, int from, int to, List<DataType> results)
+            throws IOException {
+        DecodedTile decoded = readDecodedTile(tileIndex);
+        if (level == depth) {
+            for (int i = from; i < to; i++) {
+                int keyIndex = decoded.findLeafKey(sortedKeys.get(i));
+                if (keyIndex >= 0)
+                    results.set(i, dataType.fromLong(decoded.pointers[keyIndex]));
+            }
+            return;
+        }
+        if (decoded.nKeys == 0)
+            throw new IOException("Unexpected empty node");
+
+        // keys are sorted so all keys that belong to the same child are in one continuous range
+        int start = from;
+        while (start < to) {
+            int child = decoded.findChildPointer(sortedKeys.get(start));
+            int end = start + 1;
+            while (end < to && decoded.findChildPointer(sortedKeys.get(end)) == child)
+                end++;
+            long childIndex = decoded.pointers[child];
+            if (childIndex == 0l)
+                throw new IOException("Invalid pointer");
+            getAll(childIndex, level + 1, sortedKeys, start, end, results);
+            start = end;
+        }
+    }
+
+    private DecodedTile readDecodedTile(long index) throws IOException {
+        DecodedTile decoded = tileCache.get(index);
+        if (decoded != null)
+            return decoded;
+
+        decoded = decodeTile(new Tile(index).read());
+        tileCache.put(index, decoded);
+        return decoded;
+    }
+
+    static private boolean isEmpty(byte[] array, int offset, int length) {
+        int sum = 0;
+        for (int i = offset; i < offset + length; i++)
+            sum |= array[i];
+        return sum == 0;
+    }
+
+    private DecodedTile decodeTile(byte[] data) throws IOException {
+        DataInputStream reader = new DataInputStream(new ByteArrayInputStream(data));
+        long deletedPointer = indexType.toLong(indexType.read(reader));
+
+        int maxNumberOfKeys = nKeysPerTile();
+        byte[] keys = new byte[maxNumberOfKeys * hashSize];
+        long[] pointers = new long[maxNumberOfKeys + 1];
+        int nKeys = 0;
+        int nPointers = 0;
+        long pointer = indexType.toLong(indexType.read(reader));
+        if (pointer > 0) {
+            pointers[nPointers++] = pointer;
+            for (int i = 0; i < maxNumberOfKeys; i++) {
+                int keyOffset = nKeys * hashSize;
+                reader.readFully(keys, keyOffset, hashSize);
+                pointer = indexType.toLong(indexType.read(reader));
+                if (isEmpty(keys, keyOffset, hashSize) && pointer == 0l)
+                    break;
+
+                nKeys++;
+                pointers[nPointers++] = pointer;
+            }
+        }
+        return new DecodedTile(deletedPointer, nKeys, Arrays.copyOf(keys, nKeys * hashSize),
+                Arrays.copyOf(pointers, nPointers));
     }
 
     static public class Entry<DataType> {
@@ -848,9 +1146,11 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
             private int inLeafNodePos;
 
             {
-                currentLeafNode = findLeftLeafNode(readRootNode());
-                if (currentLeafNode.keys.size() == 0)
-                    currentLeafNode = null;
+                if (rootTileIndex != 0) {
+                    currentLeafNode = findLeftLeafNode(readRootNode());
+                    if (currentLeafNode.keys.size() == 0)
+                        currentLeafNode = null;
+                }
                 inLeafNodePos = 0;
             }
 
@@ -1141,8 +1441,7 @@ public class BaseBPlusTree<IndexType extends Number, DataType extends Number> {
     }
 
     public boolean remove(byte[] key) throws IOException {
-        BigInteger keyNumber = new BigInteger(key);
-        SearchResult result = find(keyNumber);
+        SearchResult result = find(key);
         if (!result.isExactMatch())
             return false;
 
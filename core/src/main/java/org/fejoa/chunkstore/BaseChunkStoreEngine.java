@@ -0,0 +1,752 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoHelper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+
+
+/**
+ * Transaction handling shared by the chunk store engines.
+ *
+ * Chunks of an open transaction are collected in a write batch, written to the data file in batches and only added to
+ * the index on commit. Data of uncommitted transactions is thus never referenced by the index. Until then, staged
+ * chunks are visible to all readers of the store, i.e. the same as if they were in the index.
+ *
+ * Engines provide the index lookups, the data file and an atomic way to persist a commit.
+ *
+ * Garbage collection: between start and finish of a collection, all chunks that are committed or referenced by a
+ * committing transaction are recorded and survive the collection. Committed chunks that an open transaction has
+ * deduplicated against are pinned until the transaction commits or cancels, and survive the collection as well. When
+ * finishing, the engine rewrites the data file and the index with the retained chunks. Readers hold the read lock
+ * while reading from the data file so that it can be replaced.
+ */
+abstract class BaseChunkStoreEngine implements IChunkStoreEngine {
+    final static public int DEFAULT_WRITE_BATCH_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * A chunk that is not in the index yet. Its data is either still in the write batch or has been written to the
+     * data file.
+     */
+    static private class StagedChunk {
+        final HashValue hash;
+        // data of a chunk in the write batch, null once the chunk is in the data file
+        byte[] data;
+        long location = -1;
+        // number of open transactions that contain the chunk
+        int references = 1;
+
+        StagedChunk(HashValue hash, byte[] data) {
+            this.hash = hash;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Decides which committed chunks survive a garbage collection.
+     */
+    interface IChunkFilter {
+        boolean retain(HashValue hash);
+    }
+
+    class Transaction implements IChunkStoreTransaction {
+        final private Set<HashValue> chunks = new HashSet<>();
+        // chunks that have already been in the store when they were put
+        final private Set<HashValue> referenced = new HashSet<>();
+
+        @Override
+        public PutResult<HashValue> put(byte[] data) throws IOException {
+            // make this configurable
+            // hash outside of the lock so that parallel writers, e.g. the ChunkWritePipeline, don't wait for each other
+            HashValue hash = new HashValue(CryptoHelper.sha3_256Hash(data));
+            return put(hash, data);
+        }
+
+        synchronized private PutResult<HashValue> put(HashValue hash, byte[] data) throws IOException {
+            if (chunks.contains(hash) || referenced.contains(hash))
+                return new PutResult<>(hash, true);
+            if (containsAndPin(hash)) {
+                referenced.add(hash);
+                return new PutResult<>(hash, true);
+            }
+            chunks.add(hash);
+            if (stage(hash, data))
+                flushWriteBatch();
+            return new PutResult<>(hash, false);
+        }
+
+        @Override
+        synchronized public void commit() throws IOException {
+            if (chunks.size() == 0 && referenced.size() == 0)
+                return;
+            flushWriteBatch();
+            BaseChunkStoreEngine.this.commit(new PendingCommit(new ArrayList<>(chunks), new ArrayList<>(referenced)));
+            chunks.clear();
+            unpin(referenced);
+            referenced.clear();
+        }
+
+        @Override
+        synchronized public void cancel() {
+            unstage(chunks);
+            chunks.clear();
+            unpin(referenced);
+            referenced.clear();
+        }
+    }
+
+    static private class PendingCommit {
+        final List<HashValue> chunks;
+        final List<HashValue> referenced;
+        boolean done = false;
+        IOException error;
+
+        PendingCommit(List<HashValue> chunks, List<HashValue> referenced) {
+            this.chunks = chunks;
+            this.referenced = referenced;
+        }
+    }
+
+    /**
+     * Lookups only take the read lock and can run concurrently. Modifications of the index need the write lock.
+     */
+    final private ReadWriteLock lock;
+    final private Map<HashValue, StagedChunk> stagedChunks = new HashMap<>();
+    // staged chunks that have not been written to the data file yet
+    private List<StagedChunk> writeBatch = new ArrayList<>();
+    private long writeBatchBytes = 0;
+    private int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+    final private Object flushLock = new Object();
+
+    // group commit
+    final private Object commitLock = new Object();
+    private List<PendingCommit> pendingCommits = new ArrayList<>();
+    private boolean isCommitting = false;
+
+    // chunks that have been committed or referenced since the garbage collection started, null if no collection runs
+    private Set<HashValue> collectionReferences;
+    // committed chunks that are referenced by open transactions -> number of transactions
+    final private Map<HashValue, Integer> pinnedChunks = new HashMap<>();
+
+    // filter over the committed chunks, built on first use; guarded by the filter lock and the read lock
+    final private Object chunkFilterLock = new Object();
+    private BloomFilter chunkFilter;
+    // number of chunks the filter has been sized for
+    private long chunkFilterCapacity;
+
+    protected BaseChunkStoreEngine(ReadWriteLock lock) {
+        this.lock = lock;
+    }
+
+    /**
+     * Looks up a committed chunk. Called with the read lock held.
+     *
+     * @return the location of the chunk or null
+     */
+    abstract protected Long getLocation(byte[] hash) throws IOException;
+
+    /**
+     * Looks up many committed chunks. Called with the read lock held.
+     *
+     * @param sortedKeys keys in index order
+     * @return the locations in the order of the keys, null for missing chunks
+     */
+    abstract protected List<Long> getLocations(List<byte[]> sortedKeys) throws IOException;
+
+    /**
+     * Reads a chunk from the data file. Called with the read lock held.
+     */
+    abstract protected byte[] readChunk(long location, byte[] hash) throws IOException;
+
+    /**
+     * Appends chunks to the data file. Calls are serialized but don't hold the lock.
+     *
+     * @return the locations of the chunks
+     */
+    abstract protected long[] writeChunks(List<HashValue> hashes, List<byte[]> data) throws IOException;
+
+    /**
+     * Atomically adds the chunks to the index and makes them persistent. Called with the write lock held.
+     *
+     * @param entries chunk hashes and locations in index order, chunks might already be in the index
+     */
+    abstract protected void writeCommit(List<Map.Entry<HashValue, Long>> entries) throws IOException;
+
+    /**
+     * @return the size of the data file(s) in bytes
+     */
+    abstract protected long getDataSize() throws IOException;
+
+    /**
+     * Writes new data and index files that only contain the retained committed chunks and the staged chunks, and
+     * atomically replaces the old files. Called with the write lock held while no chunks are written or committed.
+     *
+     * @param staged locations of the staged chunks in the data file, updated to their new locations
+     */
+    abstract protected void rewrite(IChunkFilter filter, Map<HashValue, Long> staged) throws IOException;
+
+    /**
+     * Iterator that holds the read lock until it is closed or exhausted.
+     *
+     * The read lock is owned by the creating thread, i.e. the iterator has to be used and closed by that thread, e.g.
+     * in a finally block.
+     */
+    abstract class ReadLockedIterator implements ChunkStore.IChunkStoreIterator {
+        private boolean locked;
+
+        ReadLockedIterator() {
+            lockRead();
+            locked = true;
+        }
+
+        abstract protected boolean hasNextEntry();
+        abstract protected ChunkStore.Entry nextEntry();
+
+        @Override
+        public boolean hasNext() {
+            if (!locked)
+                return false;
+            if (hasNextEntry())
+                return true;
+            close();
+            return false;
+        }
+
+        @Override
+        public ChunkStore.Entry next() {
+            if (!locked)
+                throw new NoSuchElementException("Iterator is closed");
+            return nextEntry();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if (!locked)
+                return;
+            locked = false;
+            unlockRead();
+        }
+    }
+
+    protected void lockRead() {
+        lock.readLock().lock();
+    }
+
+    protected void unlockRead() {
+        lock.readLock().unlock();
+    }
+
+    protected void lockWrite() {
+        lock.writeLock().lock();
+    }
+
+    protected void unlockWrite() {
+        lock.writeLock().unlock();
+    }
+
+    /**
+     * Drops all staged chunks, e.g. when the store is recreated.
+     */
+    protected void clearStagedChunks() {
+        synchronized (stagedChunks) {
+            stagedChunks.clear();
+            writeBatch = new ArrayList<>();
+            writeBatchBytes = 0;
+        }
+    }
+
+    @Override
+    public byte[] getChunk(byte[] hash) throws IOException {
+        // the lock only guards against a garbage collection, the data file is append only and reads are positional
+        try {
+            lockRead();
+            Long location = null;
+            synchronized (stagedChunks) {
+                StagedChunk stagedChunk = stagedChunks.get(new HashValue(hash));
+                if (stagedChunk != null) {
+                    if (stagedChunk.data != null)
+                        return stagedChunk.data.clone();
+                    location = stagedChunk.location;
+                }
+            }
+            if (location == null)
+                location = getLocation(hash);
+            if (location == null)
+                return null;
+            return readChunk(location, hash);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * Returns the unique keys sorted in index order.
+     */
+    private List<byte[]> sortedKeys(Collection<HashValue> hashes) {
+        Set<HashValue> uniqueHashes = new HashSet<>(hashes);
+        List<byte[]> keys = new ArrayList<>(uniqueHashes.size());
+        for (HashValue hash : uniqueHashes)
+            keys.add(hash.getBytes());
+        Collections.sort(keys, BaseBPlusTree.KEY_COMPARATOR);
+        return keys;
+    }
+
+    /**
+     * Looks up the locations of many chunks. Chunks that are still in the write batch are put into pendingChunks.
+     * Called with the read lock held.
+     *
+     * @return the locations in the order of the keys, null for missing or pending chunks
+     */
+    private List<Long> getLocations(List<byte[]> keys, Map<HashValue, byte[]> pendingChunks) throws IOException {
+        List<Long> locations = getLocations(keys);
+        synchronized (stagedChunks) {
+            if (stagedChunks.size() == 0)
+                return locations;
+            for (int i = 0; i < keys.size(); i++) {
+                if (locations.get(i) != null)
+                    continue;
+                StagedChunk stagedChunk = stagedChunks.get(new HashValue(keys.get(i)));
+                if (stagedChunk == null)
+                    continue;
+                if (stagedChunk.data != null)
+                    pendingChunks.put(stagedChunk.hash, stagedChunk.data.clone());
+                else
+                    locations.set(i, stagedChunk.location);
+            }
+        }
+        return locations;
+    }
+
+    @Override
+    public Map<HashValue, byte[]> getChunks(Collection<HashValue> hashes) throws IOException {
+        List<byte[]> keys = sortedKeys(hashes);
+        Map<HashValue, byte[]> chunks = new HashMap<>();
+        try {
+            lockRead();
+            final List<Long> locations = getLocations(keys, chunks);
+
+            // read the entries in file order
+            List<Integer> found = new ArrayList<>();
+            for (int i = 0; i < locations.size(); i++) {
+                if (locations.get(i) != null)
+                    found.add(i);
+            }
+            Collections.sort(found, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer index1, Integer index2) {
+                    return locations.get(index1).compareTo(locations.get(index2));
+                }
+            });
+            for (Integer index : found) {
+                byte[] key = keys.get(index);
+                chunks.put(new HashValue(key), readChunk(locations.get(index), key));
+            }
+        } finally {
+            unlockRead();
+        }
+        return chunks;
+    }
+
+    @Override
+    public boolean contains(byte[] hash) throws IOException {
+        synchronized (stagedChunks) {
+            if (stagedChunks.containsKey(new HashValue(hash)))
+                return true;
+        }
+        try {
+            lockRead();
+            return getLocation(hash) != null;
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * Checks if a chunk is committed and, if so, pins it for the calling transaction. The check and the pin are done
+     * under the read lock so that a garbage collection either sees the pin or has removed the chunk already.
+     */
+    private boolean containsAndPin(HashValue hash) throws IOException {
+        try {
+            lockRead();
+            if (getLocation(hash.getBytes()) == null)
+                return false;
+            synchronized (stagedChunks) {
+                Integer count = pinnedChunks.get(hash);
+                pinnedChunks.put(hash, count == null ? 1 : count + 1);
+            }
+            return true;
+        } finally {
+            unlockRead();
+        }
+    }
+
+    private void unpin(Collection<HashValue> hashes) {
+        synchronized (stagedChunks) {
+            for (HashValue hash : hashes) {
+                Integer count = pinnedChunks.get(hash);
+                if (count == null)
+                    continue;
+                if (count <= 1)
+                    pinnedChunks.remove(hash);
+                else
+                    pinnedChunks.put(hash, count - 1);
+            }
+        }
+    }
+
+    @Override
+    public Set<HashValue> contains(Collection<HashValue> hashes) throws IOException {
+        List<byte[]> keys = sortedKeys(hashes);
+        Map<HashValue, byte[]> pendingChunks = new HashMap<>();
+        List<Long> locations;
+        try {
+            lockRead();
+            locations = getLocations(keys, pendingChunks);
+        } finally {
+            unlockRead();
+        }
+
+        Set<HashValue> contained = new HashSet<>(pendingChunks.keySet());
+        for (int i = 0; i < locations.size(); i++) {
+            if (locations.get(i) != null)
+                contained.add(new HashValue(keys.get(i)));
+        }
+        return contained;
+    }
+
+    @Override
+    public IChunkStoreTransaction startNewTransaction() {
+        return new Transaction();
+    }
+
+    @Override
+    public void setWriteBatchSize(int writeBatchSize) {
+        synchronized (stagedChunks) {
+            this.writeBatchSize = writeBatchSize;
+        }
+    }
+
+    /**
+     * Adds a chunk to the write batch or references a chunk that has already been staged by another transaction.
+     *
+     * @return true if the write batch should be flushed
+     */
+    private boolean stage(HashValue hash, byte[] data) {
+        synchronized (stagedChunks) {
+            StagedChunk stagedChunk = stagedChunks.get(hash);
+            if (stagedChunk != null) {
+                stagedChunk.references++;
+                return false;
+            }
+            stagedChunk = new StagedChunk(hash, data);
+            stagedChunks.put(hash, stagedChunk);
+            writeBatch.add(stagedChunk);
+            writeBatchBytes += data.length;
+            return writeBatchBytes >= writeBatchSize;
+        }
+    }
+
+    private void unstage(Collection<HashValue> hashes) {
+        synchronized (stagedChunks) {
+            for (HashValue hash : hashes) {
+                StagedChunk stagedChunk = stagedChunks.get(hash);
+                // might already be committed by another transaction
+                if (stagedChunk == null)
+                    continue;
+                stagedChunk.references--;
+                // canceled chunks in the write batch are skipped on flush
+                if (stagedChunk.references == 0)
+                    stagedChunks.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * Writes all chunks of the write batch to the data file in one write.
+     *
+     * While the batch is written, its chunks are still served from memory. When this method returns all chunks that
+     * have been staged before have a location.
+     */
+    private void flushWriteBatch() throws IOException {
+        synchronized (flushLock) {
+            List<StagedChunk> batch;
+            List<HashValue> hashes = new ArrayList<>();
+            List<byte[]> data = new ArrayList<>();
+            synchronized (stagedChunks) {
+                batch = new ArrayList<>();
+                for (StagedChunk stagedChunk : writeBatch) {
+                    if (stagedChunk.references == 0)
+                        continue;
+                    batch.add(stagedChunk);
+                    hashes.add(stagedChunk.hash);
+                    data.add(stagedChunk.data);
+                }
+                writeBatch = new ArrayList<>();
+                writeBatchBytes = 0;
+            }
+            if (batch.size() == 0)
+                return;
+            long[] locations;
+            try {
+                locations = writeChunks(hashes, data);
+            } catch (IOException e) {
+                // keep the chunks for the next attempt
+                synchronized (stagedChunks) {
+                    for (StagedChunk stagedChunk : batch)
+                        writeBatchBytes += stagedChunk.data.length;
+                    batch.addAll(writeBatch);
+                    writeBatch = batch;
+                }
+                throw e;
+            }
+            synchronized (stagedChunks) {
+                for (int i = 0; i < batch.size(); i++) {
+                    StagedChunk stagedChunk = batch.get(i);
+                    stagedChunk.location = locations[i];
+                    stagedChunk.data = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the chunks of a transaction persistent.
+     *
+     * Concurrent commits are grouped: the first committer applies all commits that are pending at that time and
+     * syncs the files once for the whole group while the other committers wait for the result.
+     */
+    private void commit(PendingCommit pendingCommit) throws IOException {
+        List<PendingCommit> group;
+        synchronized (commitLock) {
+            pendingCommits.add(pendingCommit);
+            while (isCommitting && !pendingCommit.done) {
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for a commit");
+                }
+            }
+            if (pendingCommit.done) {
+                if (pendingCommit.error != null)
+                    throw pendingCommit.error;
+                return;
+            }
+            isCommitting = true;
+            group = pendingCommits;
+            pendingCommits = new ArrayList<>();
+        }
+
+        IOException error = null;
+        try {
+            applyCommits(group);
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException(e);
+        } finally {
+            synchronized (commitLock) {
+                for (PendingCommit commit : group) {
+                    commit.done = true;
+                    commit.error = error;
+                }
+                isCommitting = false;
+                commitLock.notifyAll();
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    private void applyCommits(List<PendingCommit> group) throws IOException {
+        try {
+            lockWrite();
+            // the locations are resolved under the lock since a garbage collection moves the staged chunks
+            List<Map.Entry<HashValue, Long>> entries = new ArrayList<>();
+            synchronized (stagedChunks) {
+                for (PendingCommit commit : group) {
+                    for (HashValue hash : commit.chunks) {
+                        StagedChunk stagedChunk = stagedChunks.get(hash);
+                        // otherwise already committed by another transaction
+                        if (stagedChunk == null)
+                            continue;
+                        if (stagedChunk.location < 0)
+                            throw new IOException("Staged chunk has not been written: " + hash);
+                        entries.add(new AbstractMap.SimpleEntry<>(hash, stagedChunk.location));
+                    }
+                    if (collectionReferences != null) {
+                        collectionReferences.addAll(commit.chunks);
+                        collectionReferences.addAll(commit.referenced);
+                    }
+                }
+            }
+            if (entries.size() == 0)
+                return;
+            // inserting in key order touches every index block only once
+            Collections.sort(entries, new Comparator<Map.Entry<HashValue, Long>>() {
+                @Override
+                public int compare(Map.Entry<HashValue, Long> entry1, Map.Entry<HashValue, Long> entry2) {
+                    return BaseBPlusTree.compareKeys(entry1.getKey().getBytes(), entry2.getKey().getBytes());
+                }
+            });
+            writeCommit(entries);
+            addToChunkFilter(entries);
+            // the chunks are in the index now
+            synchronized (stagedChunks) {
+                for (Map.Entry<HashValue, Long> entry : entries)
+                    stagedChunks.remove(entry.getKey());
+            }
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * Called with the write lock held.
+     */
+    private void addToChunkFilter(List<Map.Entry<HashValue, Long>> entries) {
+        synchronized (chunkFilterLock) {
+            if (chunkFilter == null)
+                return;
+            // the false positive rate grows when the filter holds more chunks than it has been sized for
+            if (size() > chunkFilterCapacity) {
+                chunkFilter = null;
+                return;
+            }
+            for (Map.Entry<HashValue, Long> entry : entries)
+                chunkFilter.add(entry.getKey());
+        }
+    }
+
+    /**
+     * The filter is built from the index under the read lock, i.e. no chunks are committed meanwhile. It is sized for
+     * twice the current number of chunks so that the following commits can be added to it.
+     */
+    @Override
+    public BloomFilter getChunkFilter() throws IOException {
+        try {
+            lockRead();
+            synchronized (chunkFilterLock) {
+                if (chunkFilter == null) {
+                    long capacity = 2 * Math.max(size(), 1024);
+                    BloomFilter filter = BloomFilter.create(capacity);
+                    ChunkStore.IChunkStoreIterator iterator = iterator(false);
+                    try {
+                        while (iterator.hasNext())
+                            filter.add(iterator.next().key);
+                    } finally {
+                        iterator.close();
+                    }
+                    chunkFilter = filter;
+                    chunkFilterCapacity = capacity;
+                }
+                return chunkFilter.copy();
+            }
+        } finally {
+            unlockRead();
+        }
+    }
+
+    @Override
+    public void startGarbageCollection() throws IOException {
+        try {
+            lockWrite();
+            synchronized (stagedChunks) {
+                if (collectionReferences != null)
+                    throw new IOException("Garbage collection is already running");
+                // staged chunks might be committed before the collection finishes
+                collectionReferences = new HashSet<>(stagedChunks.keySet());
+            }
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    @Override
+    public void cancelGarbageCollection() {
+        synchronized (stagedChunks) {
+            collectionReferences = null;
+        }
+    }
+
+    @Override
+    public ChunkStore.SweepResult finishGarbageCollection(final Set<HashValue> reachable) throws IOException {
+        synchronized (flushLock) {
+            // all staged chunks are in the data file and no new chunks are written while the lock is held
+            flushWriteBatch();
+            synchronized (commitLock) {
+                while (isCommitting) {
+                    try {
+                        commitLock.wait();
+                    } catch (InterruptedException e) {
+                        cancelGarbageCollection();
+                        throw new InterruptedIOException("Interrupted while waiting for a commit");
+                    }
+                }
+                isCommitting = true;
+            }
+            try {
+                lockWrite();
+                final Set<HashValue> references;
+                // no new pins while the write lock is held
+                final Set<HashValue> pinned;
+                Map<HashValue, Long> staged = new HashMap<>();
+                synchronized (stagedChunks) {
+                    references = collectionReferences;
+                    if (references == null)
+                        throw new IOException("No garbage collection is running");
+                    pinned = new HashSet<>(pinnedChunks.keySet());
+                    for (StagedChunk stagedChunk : stagedChunks.values()) {
+                        if (stagedChunk.data == null)
+                            staged.put(stagedChunk.hash, stagedChunk.location);
+                    }
+                }
+
+                long size = size();
+                long dataSize = getDataSize();
+                final List<HashValue> removed = new ArrayList<>();
+                rewrite(new IChunkFilter() {
+                    @Override
+                    public boolean retain(HashValue hash) {
+                        if (reachable.contains(hash) || references.contains(hash) || pinned.contains(hash))
+                            return true;
+                        removed.add(hash);
+                        return false;
+                    }
+                }, staged);
+                synchronized (stagedChunks) {
+                    for (Map.Entry<HashValue, Long> entry : staged.entrySet()) {
+                        StagedChunk stagedChunk = stagedChunks.get(entry.getKey());
+                        if (stagedChunk != null)
+                            stagedChunk.location = entry.getValue();
+                    }
+                }
+                // rebuild the filter without the removed chunks on next use
+                synchronized (chunkFilterLock) {
+                    chunkFilter = null;
+                }
+                return new ChunkStore.SweepResult(size - size(), dataSize - getDataSize(), removed);
+            } finally {
+                cancelGarbageCollection();
+                unlockWrite();
+                synchronized (commitLock) {
+                    isCommitting = false;
+                    commitLock.notifyAll();
+                }
+            }
+        }
+    }
+}
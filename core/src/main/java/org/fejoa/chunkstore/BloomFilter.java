@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Bloom filter over hash values.
+ *
+ * The filter never misses a hash that has been added but may contain hashes that have not been added (false
+ * positives). Hash values are uniformly distributed so the bit positions are derived from the hash value directly.
+ */
+public class BloomFilter {
+    final static public double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    final private int bitCount;
+    final private int hashCount;
+    final private long[] bits;
+
+    private BloomFilter(int bitCount, int hashCount) {
+        this.bitCount = bitCount;
+        this.hashCount = hashCount;
+        this.bits = new long[(bitCount + 63) / 64];
+    }
+
+    /**
+     * @param expectedEntries number of entries the filter is sized for
+     * @param falsePositiveRate the false positive rate when the filter holds the expected number of entries
+     */
+    static public BloomFilter create(long expectedEntries, double falsePositiveRate) {
+        int bitCount = getBitCount(expectedEntries, falsePositiveRate);
+        int hashCount = (int)Math.max(1, Math.round((double)bitCount / Math.max(1, expectedEntries) * Math.log(2)));
+        return new BloomFilter(bitCount, hashCount);
+    }
+
+    static public BloomFilter create(long expectedEntries) {
+        return create(expectedEntries, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * @return the number of bytes write() writes for a filter that is sized for the given entries
+     */
+    static public long getSerializedSize(long expectedEntries, double falsePositiveRate) {
+        return getSerializedSize(getBitCount(expectedEntries, falsePositiveRate));
+    }
+
+    static private long getSerializedSize(int bitCount) {
+        return 8 + ((long)bitCount + 63) / 64 * 8;
+    }
+
+    static private int getBitCount(long expectedEntries, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("Invalid false positive rate: " + falsePositiveRate);
+        double ln2 = Math.log(2);
+        long bitCount = (long)Math.ceil(-Math.max(1, expectedEntries) * Math.log(falsePositiveRate) / (ln2 * ln2));
+        return (int)Math.max(64, Math.min(Integer.MAX_VALUE - 63, bitCount));
+    }
+
+    /**
+     * @return the number of bytes write() writes
+     */
+    public long getSerializedSize() {
+        return getSerializedSize(bitCount);
+    }
+
+    public BloomFilter copy() {
+        BloomFilter copy = new BloomFilter(bitCount, hashCount);
+        System.arraycopy(bits, 0, copy.bits, 0, bits.length);
+        return copy;
+    }
+
+    public int getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    public void add(HashValue hashValue) {
+        long hash1 = getHash1(hashValue);
+        long hash2 = getHash2(hashValue);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = getBit(hash1, hash2, i);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(HashValue hashValue) {
+        long hash1 = getHash1(hashValue);
+        long hash2 = getHash2(hashValue);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = getBit(hash1, hash2, i);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private int getBit(long hash1, long hash2, int i) {
+        return (int)(((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount);
+    }
+
+    static private long getHash1(HashValue hashValue) {
+        return ByteBuffer.wrap(hashValue.getBytes()).getLong(0);
+    }
+
+    static private long getHash2(HashValue hashValue) {
+        byte[] bytes = hashValue.getBytes();
+        if (bytes.length < 16)
+            return 1;
+        // odd so that the positions differ for all hash functions
+        return ByteBuffer.wrap(bytes).getLong(8) | 1;
+    }
+
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeInt(bitCount);
+        outputStream.writeInt(hashCount);
+        for (long word : bits)
+            outputStream.writeLong(word);
+    }
+
+    /**
+     * @param maxSize max number of bytes the filter may have, protects against huge allocations
+     * @return the filter or null if the filter is larger than maxSize; the data of the filter is skipped in this case
+     */
+    static public BloomFilter read(DataInputStream inputStream, long maxSize) throws IOException {
+        int bitCount = inputStream.readInt();
+        int hashCount = inputStream.readInt();
+        if (bitCount <= 0 || bitCount > Integer.MAX_VALUE - 63 || hashCount <= 0 || hashCount > 64)
+            throw new IOException("Invalid filter");
+        if (getSerializedSize(bitCount) > maxSize) {
+            for (long i = 0; i < (bitCount + 63L) / 64; i++)
+                inputStream.readLong();
+            return null;
+        }
+        BloomFilter filter = new BloomFilter(bitCount, hashCount);
+        for (int i = 0; i < filter.bits.length; i++)
+            filter.bits[i] = inputStream.readLong();
+        return filter;
+    }
+}
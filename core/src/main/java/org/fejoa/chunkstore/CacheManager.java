@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.util.*;
+
+
+/**
+ * Keeps track of the loaded data chunks of a container in the shared ChunkContainerCache.
+ *
+ * The entries are only accessed while holding the lock of the cache. The cache may evict entries from any thread; it
+ * only drops the data chunk and queues the entry. The nodes are only cleaned by the thread that uses the container, see
+ * cleanUp().
+ */
+class CacheManager {
+    final Map<IChunkPointer, ChunkContainerCache.Entry> entries = new HashMap<>();
+    // evicted entries whose parent nodes have not been cleaned yet
+    final List<ChunkContainerCache.Entry> evicted = new ArrayList<>();
+    long usedBytes = 0;
+
+    final private int keptMetadataLevels = 2;
+
+    final private ChunkContainer chunkContainer;
+    final private ChunkContainerCache cache;
+
+    public CacheManager(ChunkContainer chunkContainer, ChunkContainerCache cache) {
+        this.chunkContainer = chunkContainer;
+        this.cache = cache;
+    }
+
+    public ChunkContainerCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Called when a data chunk is read.
+     */
+    public void update(IChunkPointer dataChunkPointer, ChunkContainerNode parent) {
+        assert ChunkContainer.isDataPointer(dataChunkPointer);
+        cache.access(this, dataChunkPointer, parent);
+    }
+
+    /**
+     * Called when a data chunk has been written.
+     */
+    public void add(IChunkPointer dataChunkPointer, ChunkContainerNode parent) {
+        assert ChunkContainer.isDataPointer(dataChunkPointer);
+        cache.add(this, dataChunkPointer, parent);
+    }
+
+    public void remove(IChunkPointer dataChunkPointer) {
+        cache.remove(this, dataChunkPointer);
+        // don't clean parents yet, they are most likely being edited right now
+    }
+
+    /**
+     * Drops the cached nodes above the evicted data chunks.
+     *
+     * Must be called by the container before it walks its nodes and never in the middle of an operation since the
+     * operation may still hold one of the nodes. Nodes that are not written yet are kept.
+     */
+    public void cleanUp() {
+        for (ChunkContainerCache.Entry entry : cache.takeEvicted(this)) {
+            IChunkPointer currentPointer = null;
+            ChunkContainerNode currentParent = entry.parent;
+            while (currentParent != null && currentParent.onDisk
+                    && chunkContainer.getNLevels() - currentParent.getLevel() >= keptMetadataLevels) {
+                if (currentPointer != null)
+                    currentPointer.setCachedChunk(null);
+                // the data chunk may have been loaded again
+                if (hasCachedPointers(currentParent))
+                    break;
+
+                currentPointer = currentParent.getChunkPointer();
+                currentParent = currentParent.getParent();
+            }
+        }
+    }
+
+    private boolean hasCachedPointers(ChunkContainerNode node) {
+        for (IChunkPointer pointer : node.getChunkPointers()) {
+            if (pointer.getCachedChunk() != null)
+                return true;
+        }
+        return false;
+    }
+}
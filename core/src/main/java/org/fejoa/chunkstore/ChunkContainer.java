@@ -8,18 +8,21 @@
 package org.fejoa.chunkstore;
 
 import org.fejoa.library.crypto.CryptoException;
-import org.fejoa.library.support.DoubleLinkedList;
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 
 class ChunkPointerImpl implements IChunkPointer {
     private ChunkPointer chunkPointer;
+    // pointer of a data chunk that is still stored by the ChunkWritePipeline
+    private Future<ChunkPointer> pendingPointer;
 
-    private IChunk cachedChunk = null;
+    // volatile, the ChunkContainerCache may drop the chunk from another thread
+    private volatile IChunk cachedChunk = null;
     protected int level;
 
     protected ChunkPointerImpl(int level) {
@@ -36,6 +39,14 @@ class ChunkPointerImpl implements IChunkPointer {
         this.level = level;
     }
 
+    protected ChunkPointerImpl(IChunk blob, Future<ChunkPointer> pendingPointer, int level) {
+        this.chunkPointer = new ChunkPointer();
+        this.chunkPointer.setDataLength(blob.getDataLength());
+        this.pendingPointer = pendingPointer;
+        cachedChunk = blob;
+        this.level = level;
+    }
+
     @Override
     public int getPointerLength() {
         return getPointerLengthStatic();
@@ -47,16 +58,28 @@ class ChunkPointerImpl implements IChunkPointer {
 
     @Override
     public long getDataLength() {
-        if (cachedChunk != null)
-            chunkPointer.setDataLength(cachedChunk.getDataLength());
+        // the cache may drop the chunk concurrently
+        IChunk chunk = cachedChunk;
+        if (chunk != null)
+            chunkPointer.setDataLength(chunk.getDataLength());
         return chunkPointer.getDataLength();
     }
 
     public void setChunkPointer(ChunkPointer chunkPointer) {
         this.chunkPointer = chunkPointer;
+        this.pendingPointer = null;
     }
 
     public ChunkPointer getChunkPointer() {
+        if (pendingPointer != null) {
+            try {
+                chunkPointer = BackgroundExecutor.waitFor(pendingPointer);
+            } catch (IOException | CryptoException e) {
+                // ChunkContainer.flush reports the error as a checked exception
+                throw new RuntimeException(e);
+            }
+            pendingPointer = null;
+        }
         return chunkPointer;
     }
 
@@ -100,92 +123,6 @@ class ChunkPointerImpl implements IChunkPointer {
 }
 
 
-class CacheManager {
-    static private class PointerEntry extends DoubleLinkedList.Entry {
-        final public IChunkPointer dataChunkPointer;
-        final public ChunkContainerNode parent;
-
-        public PointerEntry(IChunkPointer dataChunkPointer, ChunkContainerNode parent) {
-            this.dataChunkPointer = dataChunkPointer;
-            this.parent = parent;
-        }
-    }
-    final DoubleLinkedList<PointerEntry> queue = new DoubleLinkedList<>();
-    final Map<IChunkPointer, PointerEntry> pointerMap = new HashMap<>();
-
-    final private int targetCapacity = 10;
-    final private int triggerCapacity = 15;
-    final private int keptMetadataLevels = 2;
-
-    final private ChunkContainer chunkContainer;
-
-    public CacheManager(ChunkContainer chunkContainer) {
-        this.chunkContainer = chunkContainer;
-    }
-
-    private void bringToFront(PointerEntry entry) {
-        queue.remove(entry);
-        queue.addFirst(entry);
-    }
-
-    public void update(IChunkPointer dataChunkPointer, ChunkContainerNode parent) {
-        assert ChunkContainer.isDataPointer(dataChunkPointer);
-        PointerEntry entry = pointerMap.get(dataChunkPointer);
-        if (entry != null) {
-            bringToFront(entry);
-            return;
-        }
-        entry = new PointerEntry(dataChunkPointer, parent);
-        queue.addFirst(entry);
-        pointerMap.put(dataChunkPointer, entry);
-        if (pointerMap.size() >= triggerCapacity)
-            clean(triggerCapacity - targetCapacity);
-    }
-
-    public void remove(IChunkPointer dataChunkPointer) {
-        DoubleLinkedList.Entry entry = pointerMap.get(dataChunkPointer);
-        if (entry == null)
-            return;
-        queue.remove(entry);
-        pointerMap.remove(dataChunkPointer);
-        // don't clean parents yet, they are most likely being edited right now
-    }
-
-    private void clean(int numberOfEntries) {
-        for (int i = 0; i < numberOfEntries; i++) {
-            PointerEntry entry = queue.removeTail();
-            pointerMap.remove(entry.dataChunkPointer);
-
-            clean(entry);
-        }
-    }
-
-    private void clean(PointerEntry entry) {
-        // always clean the data cache
-        entry.dataChunkPointer.setCachedChunk(null);
-
-        IChunkPointer currentPointer = entry.dataChunkPointer;
-        ChunkContainerNode currentParent = entry.parent;
-        while (chunkContainer.getNLevels() - currentParent.getLevel() >= keptMetadataLevels) {
-            currentPointer.setCachedChunk(null);
-            if (hasCachedPointers(currentParent))
-                break;
-
-            currentPointer = currentParent.getChunkPointer();
-            currentParent = currentParent.getParent();
-        }
-    }
-
-    private boolean hasCachedPointers(ChunkContainerNode node) {
-        for (IChunkPointer pointer : node.getChunkPointers()) {
-            if (pointer.getCachedChunk() != null)
-                return true;
-        }
-        return false;
-    }
-}
-
-
 public class ChunkContainer extends ChunkContainerNode {
     static public ChunkContainer read(IChunkAccessor blobAccessor, ChunkContainerRef ref)
             throws IOException, CryptoException {
@@ -194,6 +131,11 @@ public class ChunkContainer extends ChunkContainerNode {
 
     final private ChunkContainerRef ref;
     final private CacheManager cacheManager;
+    // null if the data chunks are stored synchronously
+    final private ChunkWritePipeline writePipeline;
+    final private List<Future<ChunkPointer>> pendingChunks = new ArrayList<>();
+    // incremented on each change of the tree, invalidates the cursors
+    private long modificationCount = 0;
 
     /**
      * Create a new chunk container.
@@ -205,7 +147,8 @@ public class ChunkContainer extends ChunkContainerNode {
                 ref.getDataMessageDigest());
         this.ref = ref;
         setNodeSplitter(getNodeSplitter(ref.getContainerHeader()));
-        this.cacheManager = new CacheManager(this);
+        this.cacheManager = new CacheManager(this, ChunkContainerCache.get(blobAccessor));
+        this.writePipeline = getWritePipeline(blobAccessor);
     }
 
     /**
@@ -220,7 +163,21 @@ public class ChunkContainer extends ChunkContainerNode {
         that.setChunkPointer(ref.getBoxPointer());
         read(inputStream, ref.getContainerHeader().getDataLength());
 
-        cacheManager = new CacheManager(this);
+        cacheManager = new CacheManager(this, ChunkContainerCache.get(blobAccessor));
+        writePipeline = getWritePipeline(blobAccessor);
+    }
+
+    /**
+     * The cache that keeps track of the loaded data chunks of this container.
+     */
+    public ChunkContainerCache getCache() {
+        return cacheManager.getCache();
+    }
+
+    static private ChunkWritePipeline getWritePipeline(IChunkAccessor blobAccessor) {
+        if (blobAccessor instanceof IParallelChunkAccessor)
+            return ChunkWritePipeline.getDefault();
+        return null;
     }
 
     /**
@@ -245,6 +202,12 @@ public class ChunkContainer extends ChunkContainerNode {
 
     @Override
     public void flush(boolean childOnly) throws IOException, CryptoException {
+        cacheManager.cleanUp();
+        // the nodes need the pointers of all data chunks
+        for (Future<ChunkPointer> pendingChunk : pendingChunks)
+            BackgroundExecutor.waitFor(pendingChunk);
+        pendingChunks.clear();
+
         super.flush(childOnly);
 
         ref.getData().setDataHash(that.getChunkPointer().getDataHash());
@@ -264,6 +227,20 @@ public class ChunkContainer extends ChunkContainerNode {
         return ref.getData().getContainerHeader().getSplitter(1f);
     }
 
+    /**
+     * Creates a ChunkHash that calculates the data hash of a container with the given chunking, e.g. to compare some
+     * data to a container without writing or reading the container.
+     */
+    static public ChunkHash createChunkHash(ChunkContainerRef ref) throws IOException {
+        ChunkContainerHeader header = ref.getContainerHeader();
+        try {
+            return new ChunkHash(header.getSplitter(1f), getNodeSplitter(header), ref.getDataMessageDigestFactory(),
+                    true);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
     @Override
     public int getBlobLength() {
         // number of slots;
@@ -297,10 +274,149 @@ public class ChunkContainer extends ChunkContainerNode {
         public long getDataLength() {
             return chunkDataLength;
         }
+
+        /**
+         * Returns the data chunk if it is loaded already, i.e. without accessing the store.
+         */
+        public DataChunk getLoadedDataChunk() {
+            if (cachedChunk == null)
+                cachedChunk = (DataChunk)pointer.getCachedChunk();
+            return cachedChunk;
+        }
+
+        /**
+         * Returns a task that loads the data chunk from the store.
+         *
+         * The task doesn't touch the container and can thus run on another thread, e.g. to prefetch the chunk.
+         */
+        public Callable<DataChunk> getDataChunkLoader() {
+            final ChunkPointer chunkPointer = pointer.getChunkPointer();
+            return new Callable<DataChunk>() {
+                @Override
+                public DataChunk call() throws Exception {
+                    DataChunk dataChunk = new DataChunk();
+                    dataChunk.read(blobAccessor.getChunk(chunkPointer), chunkDataLength);
+                    return dataChunk;
+                }
+            };
+        }
+    }
+
+    /**
+     * Finds data chunks starting from the last found chunk.
+     *
+     * The cursor keeps the path from the root to the current data chunk. A seek only goes up as far as needed and only
+     * goes down from there, i.e. sequential and nearby seeks take amortized constant time. Within a node the slot is
+     * found by a binary search on the slot positions.
+     *
+     * When the container is changed the cursor starts from the root again.
+     */
+    public class Cursor {
+        // the nodes from the root (index 0) to the leaf node
+        private ChunkContainerNode[] path;
+        private int[] indices;
+        private long[] nodePositions;
+        private long modificationCount = -1;
+
+        private Cursor() {
+        }
+
+        public DataChunkPointer seek(long position) throws IOException, CryptoException {
+            if (position < 0 || position >= getDataLength())
+                throw new IOException("Invalid position");
+            cacheManager.cleanUp();
+
+            int depth = 0;
+            if (isValid()) {
+                // the cache may have dropped nodes, don't continue on a detached copy
+                depth = 1;
+                while (depth < path.length && path[depth - 1].get(indices[depth - 1]).getCachedChunk() == path[depth])
+                    depth++;
+                depth--;
+                // go up till the node contains the position
+                while (depth > 0 && !contains(depth, position))
+                    depth--;
+            } else {
+                reset();
+            }
+
+            // go down to the data chunk
+            for (; ; depth++) {
+                ChunkContainerNode node = path[depth];
+                long inNodePosition = position - nodePositions[depth];
+                int index = indices[depth];
+                // try the current and the next slot first
+                if (!node.slotContains(index, inNodePosition)) {
+                    if (node.slotContains(index + 1, inNodePosition))
+                        index++;
+                    else
+                        index = node.findSlot(inNodePosition);
+                }
+                indices[depth] = index;
+                if (depth == path.length - 1)
+                    break;
+
+                ChunkContainerNode child = node.getNode(node.get(index));
+                if (child != path[depth + 1]) {
+                    path[depth + 1] = child;
+                    indices[depth + 1] = 0;
+                }
+                nodePositions[depth + 1] = nodePositions[depth] + node.getSlotPosition(index);
+            }
+
+            ChunkContainerNode leaf = path[path.length - 1];
+            int index = indices[path.length - 1];
+            IChunkPointer pointer = leaf.get(index);
+            cacheManager.update(pointer, leaf);
+            return new DataChunkPointer(pointer, nodePositions[path.length - 1] + leaf.getSlotPosition(index));
+        }
+
+        private boolean isValid() {
+            return modificationCount == ChunkContainer.this.modificationCount && path.length == getNLevels();
+        }
+
+        private void reset() {
+            int nLevels = getNLevels();
+            path = new ChunkContainerNode[nLevels];
+            indices = new int[nLevels];
+            nodePositions = new long[nLevels];
+            path[0] = ChunkContainer.this;
+            modificationCount = ChunkContainer.this.modificationCount;
+        }
+
+        private boolean contains(int depth, long position) {
+            long inNodePosition = position - nodePositions[depth];
+            return inNodePosition >= 0 && inNodePosition < path[depth].getDataLength();
+        }
+    }
+
+    @Override
+    protected void invalidate() {
+        modificationCount++;
+        super.invalidate();
+    }
+
+    public Cursor getCursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Incremented on each change of the container.
+     */
+    long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * True if the data chunks can be loaded from other threads.
+     */
+    boolean hasParallelAccessor() {
+        return blobAccessor instanceof IParallelChunkAccessor;
     }
 
     public Iterator<DataChunkPointer> getChunkIterator(final long startPosition) {
         return new Iterator<DataChunkPointer>() {
+            final private Cursor cursor = getCursor();
             private long position = startPosition;
 
             @Override
@@ -313,7 +429,7 @@ public class ChunkContainer extends ChunkContainerNode {
             @Override
             public DataChunkPointer next() {
                 try {
-                    DataChunkPointer dataChunkPointer = get(position);
+                    DataChunkPointer dataChunkPointer = cursor.seek(position);
                     position = dataChunkPointer.position + dataChunkPointer.getDataLength();
                     return dataChunkPointer;
                 } catch (Exception e) {
@@ -330,6 +446,7 @@ public class ChunkContainer extends ChunkContainerNode {
     }
 
     public DataChunkPointer get(long position) throws IOException, CryptoException {
+        cacheManager.cleanUp();
         SearchResult searchResult = findLevel0Node(position);
         if (searchResult.pointer == null)
             throw new IOException("Invalid position");
@@ -369,6 +486,12 @@ public class ChunkContainer extends ChunkContainerNode {
     }
 
     private IChunkPointer putDataChunk(DataChunk blob) throws IOException, CryptoException {
+        if (writePipeline != null) {
+            Future<ChunkPointer> pendingPointer = writePipeline.put(blobAccessor, blob,
+                    ref.getDataMessageDigestFactory());
+            pendingChunks.add(pendingPointer);
+            return new ChunkPointerImpl(blob, pendingPointer, DATA_LEVEL);
+        }
         byte[] rawBlob = blob.getData();
         HashValue hash = blob.hash(messageDigest);
         HashValue boxedHash = blobAccessor.putChunk(rawBlob, hash).key;
@@ -402,6 +525,9 @@ public class ChunkContainer extends ChunkContainerNode {
                     break;
                 nodePosition += dataLength;
             }
+            // appending: continue in the last child, i.e. at its start position
+            if (i < that.getLevel() - 1 && index == node.size() && pointer != null)
+                nodePosition -= pointer.getDataLength();
             currentPosition += nodePosition;
             if (nodePosition > inNodeInsertPosition
                     || (i == that.getLevel() - 1 && nodePosition != inNodeInsertPosition)) {
@@ -416,12 +542,13 @@ public class ChunkContainer extends ChunkContainerNode {
     }
 
     public void insert(final DataChunk blob, final long position) throws IOException, CryptoException {
+        cacheManager.cleanUp();
         InsertSearchResult searchResult = findInsertPosition(position);
         ChunkContainerNode containerNode = searchResult.containerNode;
         IChunkPointer blobChunkPointer = putDataChunk(blob);
         containerNode.addBlobPointer(searchResult.index, blobChunkPointer);
 
-        cacheManager.update(blobChunkPointer, containerNode);
+        cacheManager.add(blobChunkPointer, containerNode);
     }
 
     public void append(final DataChunk blob) throws IOException, CryptoException {
@@ -433,6 +560,7 @@ public class ChunkContainer extends ChunkContainerNode {
     }
 
     public void remove(long position, long length) throws IOException, CryptoException {
+        cacheManager.cleanUp();
         SearchResult searchResult = findLevel0Node(position);
         if (searchResult.pointer == null)
             throw new IOException("Invalid position");
@@ -446,6 +574,84 @@ public class ChunkContainer extends ChunkContainerNode {
         cacheManager.remove(searchResult.pointer);
     }
 
+    /**
+     * Cuts the data at the given length.
+     *
+     * Pointers behind the cut are dropped without loading them. Only the data chunk that contains the cut is rewritten
+     * and only the nodes on the path to it change. Since the remaining part of that chunk contains no chunk boundary the
+     * result is chunked like a container that has been written with the truncated data. The changed nodes are
+     * rebalanced on the next flush.
+     */
+    public void truncate(long length) throws IOException, CryptoException {
+        if (length < 0 || length > getDataLength())
+            throw new IOException("Invalid truncate length");
+        if (length == getDataLength())
+            return;
+        cacheManager.cleanUp();
+
+        ChunkContainerNode node = this;
+        long nodePosition = 0;
+        while (true) {
+            long inNodeLength = length - nodePosition;
+            // find the pointer that contains the cut
+            int index = 0;
+            long position = 0;
+            for (; index < node.size(); index++) {
+                long dataLength = node.get(index).getDataLength();
+                if (position + dataLength > inNodeLength)
+                    break;
+                position += dataLength;
+            }
+            boolean cutInPointer = position < inNodeLength;
+            int keep = cutInPointer ? index + 1 : index;
+            while (node.size() > keep) {
+                removeFromCache(node.removeBlobPointer(node.size() - 1, true));
+            }
+            if (!cutInPointer)
+                break;
+
+            IChunkPointer pointer = node.get(index);
+            if (node.isLeafNode()) {
+                DataChunk dataChunk = getDataChunk(pointer);
+                node.removeBlobPointer(index);
+                cacheManager.remove(pointer);
+                byte[] remaining = Arrays.copyOf(dataChunk.getData(), (int)(inNodeLength - position));
+                IChunkPointer remainingPointer = putDataChunk(new DataChunk(remaining));
+                node.addBlobPointer(index, remainingPointer);
+                cacheManager.add(remainingPointer, node);
+                break;
+            }
+            nodePosition += position;
+            node = node.getNode(pointer);
+        }
+
+        // remove redundant levels
+        if (size() == 0)
+            that.setLevel(LEAF_LEVEL);
+        while (that.getLevel() > LEAF_LEVEL && size() == 1) {
+            ChunkContainerNode child = getNode(get(0));
+            removeBlobPointer(0);
+            while (child.size() > 0)
+                addBlobPointer(child.removeBlobPointer(0));
+            that.setLevel(child.getLevel());
+        }
+    }
+
+    /**
+     * Removes the loaded data chunks below a dropped pointer from the cache.
+     */
+    private void removeFromCache(IChunkPointer pointer) {
+        if (isDataPointer(pointer)) {
+            cacheManager.remove(pointer);
+            return;
+        }
+        ChunkContainerNode node = (ChunkContainerNode)pointer.getCachedChunk();
+        if (node == null)
+            return;
+        for (IChunkPointer child : node.getChunkPointers())
+            removeFromCache(child);
+    }
+
     @Override
     protected int getHeaderLength() {
         // 1 byte for number of levels
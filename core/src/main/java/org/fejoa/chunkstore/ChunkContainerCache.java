@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.support.DoubleLinkedList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Byte budgeted cache for the data chunks of chunk containers.
+ *
+ * The cache is shared by many containers, e.g. by all containers of a repository. The loaded chunks stay in the chunk
+ * pointers of the containers; the cache only keeps track of them and drops them again when the budget is exceeded.
+ *
+ * Eviction is fair: the least recently used chunk of a container that uses more than its share of the budget
+ * (budget / number of containers) is evicted first. Thus a single large file can use the whole budget but it can't push
+ * out the chunks of all other open containers.
+ */
+public class ChunkContainerCache {
+    final static public long DEFAULT_BUDGET = 32 * 1024 * 1024;
+
+    static private ChunkContainerCache defaultCache;
+
+    static class Entry extends DoubleLinkedList.Entry {
+        final CacheManager owner;
+        final IChunkPointer dataChunkPointer;
+        final ChunkContainerNode parent;
+        final long size;
+
+        Entry(CacheManager owner, IChunkPointer dataChunkPointer, ChunkContainerNode parent, long size) {
+            this.owner = owner;
+            this.dataChunkPointer = dataChunkPointer;
+            this.parent = parent;
+            this.size = size;
+        }
+
+        Entry getPrevious() {
+            return (Entry)previous;
+        }
+    }
+
+    final private DoubleLinkedList<Entry> queue = new DoubleLinkedList<>();
+    private long budget;
+    private long usedBytes = 0;
+    // number of containers that have entries in the cache
+    private int nContainers = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ChunkContainerCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Cache for containers whose accessor doesn't provide one.
+     */
+    static synchronized public ChunkContainerCache getDefault() {
+        if (defaultCache == null)
+            defaultCache = new ChunkContainerCache(DEFAULT_BUDGET);
+        return defaultCache;
+    }
+
+    static ChunkContainerCache get(IChunkAccessor accessor) {
+        if (accessor instanceof IChunkCacheProvider) {
+            ChunkContainerCache cache = ((IChunkCacheProvider)accessor).getContainerCache();
+            if (cache != null)
+                return cache;
+        }
+        return getDefault();
+    }
+
+    synchronized public long getBudget() {
+        return budget;
+    }
+
+    synchronized public void setBudget(long budget) {
+        this.budget = budget;
+        evict(null);
+    }
+
+    synchronized public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    synchronized public long getHits() {
+        return hits;
+    }
+
+    synchronized public long getMisses() {
+        return misses;
+    }
+
+    synchronized public long getEvictions() {
+        return evictions;
+    }
+
+    synchronized public void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    @Override
+    synchronized public String toString() {
+        return "used: " + usedBytes + "/" + budget + ", hits: " + hits + ", misses: " + misses + ", evictions: "
+                + evictions;
+    }
+
+    /**
+     * Records a read access to a data chunk.
+     */
+    synchronized void access(CacheManager owner, IChunkPointer dataChunkPointer, ChunkContainerNode parent) {
+        if (dataChunkPointer.getCachedChunk() != null)
+            hits++;
+        else
+            misses++;
+        add(owner, dataChunkPointer, parent);
+    }
+
+    /**
+     * Records a data chunk that has been loaded or written.
+     */
+    synchronized void add(CacheManager owner, IChunkPointer dataChunkPointer, ChunkContainerNode parent) {
+        Entry entry = owner.entries.get(dataChunkPointer);
+        if (entry != null) {
+            queue.remove(entry);
+            queue.addFirst(entry);
+            return;
+        }
+        entry = new Entry(owner, dataChunkPointer, parent, dataChunkPointer.getDataLength());
+        queue.addFirst(entry);
+        if (owner.entries.isEmpty())
+            nContainers++;
+        owner.entries.put(dataChunkPointer, entry);
+        owner.usedBytes += entry.size;
+        usedBytes += entry.size;
+
+        evict(entry);
+    }
+
+    synchronized void remove(CacheManager owner, IChunkPointer dataChunkPointer) {
+        Entry entry = owner.entries.get(dataChunkPointer);
+        if (entry != null)
+            removeEntry(entry);
+    }
+
+    private void removeEntry(Entry entry) {
+        queue.remove(entry);
+        CacheManager owner = entry.owner;
+        owner.entries.remove(entry.dataChunkPointer);
+        if (owner.entries.isEmpty())
+            nContainers--;
+        owner.usedBytes -= entry.size;
+        usedBytes -= entry.size;
+    }
+
+    /**
+     * Returns and clears the evicted entries of a container.
+     */
+    synchronized List<Entry> takeEvicted(CacheManager owner) {
+        if (owner.evicted.isEmpty())
+            return Collections.emptyList();
+        List<Entry> evicted = new ArrayList<>(owner.evicted);
+        owner.evicted.clear();
+        return evicted;
+    }
+
+    /**
+     * @param keep the entry that has just been added, it is not evicted
+     */
+    private void evict(Entry keep) {
+        while (usedBytes > budget) {
+            Entry victim = findVictim(keep);
+            if (victim == null)
+                return;
+            removeEntry(victim);
+            // the victim may belong to a container of another thread, its nodes are cleaned by the owner
+            victim.dataChunkPointer.setCachedChunk(null);
+            victim.owner.evicted.add(victim);
+            evictions++;
+        }
+    }
+
+    private Entry findVictim(Entry keep) {
+        long fairShare = budget / Math.max(1, nContainers);
+        Entry fallback = null;
+        for (Entry entry = queue.getTail(); entry != null; entry = entry.getPrevious()) {
+            if (entry == keep)
+                continue;
+            if (entry.owner.usedBytes > fairShare)
+                return entry;
+            if (fallback == null)
+                fallback = entry;
+        }
+        return fallback;
+    }
+}
@@ -11,15 +11,60 @@ import org.fejoa.library.crypto.CryptoException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
 
 
+/**
+ * Reads the data of a chunk container.
+ *
+ * While the current chunk is consumed the following chunks are loaded, i.e. fetched, decrypted and inflated, on a
+ * background executor. This is only done if the container's accessor is an IParallelChunkAccessor, i.e. if it can be
+ * used from other threads. When the container is changed while the stream is open, the loaded chunks are dropped.
+ */
 public class ChunkContainerInputStream extends InputStream {
+    final static public int DEFAULT_READ_AHEAD = 4;
+
+    final static private BackgroundExecutor readAheadExecutor = new BackgroundExecutor("ChunkContainerReadAhead",
+            Runtime.getRuntime().availableProcessors());
+
+    static private class PrefetchedChunk {
+        final ChunkContainer.DataChunkPointer pointer;
+        final Future<DataChunk> chunk;
+
+        PrefetchedChunk(ChunkContainer.DataChunkPointer pointer, Future<DataChunk> chunk) {
+            this.pointer = pointer;
+            this.chunk = chunk;
+        }
+    }
+
     final private ChunkContainer container;
+    // positioned at the last loaded chunk
+    final private ChunkContainer.Cursor cursor;
+    // number of chunks that are loaded in advance
+    final private int readAhead;
     private long position = 0;
     private ChunkContainer.DataChunkPointer chunkPosition;
+    private DataChunk currentChunk;
+    // modification count of the container when the chunks were loaded
+    private long modificationCount;
+    // the chunks following the current chunk
+    final private Deque<PrefetchedChunk> prefetched = new ArrayDeque<>();
 
     public ChunkContainerInputStream(ChunkContainer container) {
+        this(container, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * @param readAhead number of chunks that are loaded in advance, 0 to disable the read-ahead. Ignored if the
+     *                  container's accessor is not an IParallelChunkAccessor.
+     */
+    public ChunkContainerInputStream(ChunkContainer container, int readAhead) {
         this.container = container;
+        this.cursor = container.getCursor();
+        this.readAhead = container.hasParallelAccessor() ? readAhead : 0;
+        this.modificationCount = container.getModificationCount();
     }
 
     @Override
@@ -37,20 +82,113 @@ public class ChunkContainerInputStream extends InputStream {
         return b;
     }
 
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || length > buffer.length - offset)
+            throw new IndexOutOfBoundsException();
+        if (length == 0)
+            return 0;
+        long dataLength = container.getDataLength();
+        if (position >= dataLength)
+            return -1;
+
+        int bytesRead = 0;
+        try {
+            while (bytesRead < length && position < dataLength) {
+                byte[] data = validateCurrentChunk().getData();
+                int inChunkPosition = (int)(position - chunkPosition.position);
+                int chunkBytes = Math.min(length - bytesRead, data.length - inChunkPosition);
+                System.arraycopy(data, inChunkPosition, buffer, offset + bytesRead, chunkBytes);
+                bytesRead += chunkBytes;
+                position += chunkBytes;
+            }
+        } catch (CryptoException e) {
+            throw new IOException(e);
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (chunkPosition == null || !isInChunk(chunkPosition, position))
+            return 0;
+        return (int)(chunkPosition.position + chunkPosition.getDataLength() - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        clearPrefetched();
+        chunkPosition = null;
+        currentChunk = null;
+        super.close();
+    }
+
     public void seek(long position) throws IOException, CryptoException {
         this.position = position;
-        if (chunkPosition != null && (position >= chunkPosition.position + chunkPosition.getDataChunk().getDataLength()
-                    || position < chunkPosition.position)) {
-                chunkPosition = null;
+        if (chunkPosition != null && !isInChunk(chunkPosition, position)) {
+            chunkPosition = null;
+            currentChunk = null;
         }
     }
 
+    static private boolean isInChunk(ChunkContainer.DataChunkPointer pointer, long position) {
+        return position >= pointer.position && position < pointer.position + pointer.getDataLength();
+    }
+
     private DataChunk validateCurrentChunk() throws IOException, CryptoException {
-        if (chunkPosition != null
-                && position < (chunkPosition.position + chunkPosition.getDataChunk().getDataLength())) {
-            return chunkPosition.getDataChunk();
+        if (modificationCount != container.getModificationCount()) {
+            // the loaded chunks might be outdated
+            clearPrefetched();
+            chunkPosition = null;
+            currentChunk = null;
+            modificationCount = container.getModificationCount();
         }
-        chunkPosition = container.get(position);
-        return chunkPosition.getDataChunk();
+        if (chunkPosition != null && isInChunk(chunkPosition, position))
+            return currentChunk;
+
+        PrefetchedChunk next = prefetched.peekFirst();
+        if (next != null && isInChunk(next.pointer, position)) {
+            prefetched.removeFirst();
+            chunkPosition = next.pointer;
+            currentChunk = BackgroundExecutor.waitFor(next.chunk);
+        } else {
+            // e.g. after a seek
+            clearPrefetched();
+            chunkPosition = cursor.seek(position);
+            currentChunk = chunkPosition.getDataChunk();
+        }
+        prefetch();
+        return currentChunk;
+    }
+
+    private void prefetch() throws IOException, CryptoException {
+        if (readAhead <= 0)
+            return;
+        ChunkContainer.DataChunkPointer last = prefetched.isEmpty() ? chunkPosition : prefetched.peekLast().pointer;
+        long nextPosition = last.position + last.getDataLength();
+        while (prefetched.size() < readAhead && nextPosition < container.getDataLength()) {
+            ChunkContainer.DataChunkPointer pointer = cursor.seek(nextPosition);
+            DataChunk loaded = pointer.getLoadedDataChunk();
+            prefetched.addLast(new PrefetchedChunk(pointer, loaded != null ? completed(loaded)
+                    : readAheadExecutor.get().submit(pointer.getDataChunkLoader())));
+            nextPosition = pointer.position + pointer.getDataLength();
+        }
+    }
+
+    private void clearPrefetched() {
+        for (PrefetchedChunk prefetchedChunk : prefetched)
+            prefetchedChunk.chunk.cancel(false);
+        prefetched.clear();
+    }
+
+    static private Future<DataChunk> completed(final DataChunk dataChunk) {
+        FutureTask<DataChunk> future = new FutureTask<>(new Callable<DataChunk>() {
+            @Override
+            public DataChunk call() throws Exception {
+                return dataChunk;
+            }
+        });
+        future.run();
+        return future;
     }
 }
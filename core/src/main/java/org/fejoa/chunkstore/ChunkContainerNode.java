@@ -31,6 +31,8 @@ public class ChunkContainerNode implements IChunk {
     private byte[] data;
     private HashValue dataHash;
     final private List<IChunkPointer> slots = new ArrayList<>();
+    // data positions of the slots relative to this node; the last entry is the data length of the node
+    private long[] slotPositions;
     protected ChunkSplitter nodeSplitter;
 
     static public ChunkContainerNode create(IChunkAccessor blobAccessor, ChunkContainerNode parent,
@@ -126,10 +128,58 @@ public class ChunkContainerNode implements IChunk {
     }
 
     protected long calculateDataLength() {
-        long length = 0;
-        for (IChunkPointer pointer : slots)
-            length += pointer.getDataLength();
-        return length;
+        return getSlotPositions()[slots.size()];
+    }
+
+    private long[] getSlotPositions() {
+        if (slotPositions != null)
+            return slotPositions;
+        long[] positions = new long[slots.size() + 1];
+        for (int i = 0; i < slots.size(); i++)
+            positions[i + 1] = positions[i] + slots.get(i).getDataLength();
+        slotPositions = positions;
+        return positions;
+    }
+
+    /**
+     * @return the data position of the slot relative to this node
+     */
+    protected long getSlotPosition(int index) {
+        return getSlotPositions()[index];
+    }
+
+    /**
+     * Binary search for the slot that contains the data position.
+     *
+     * @param dataPosition relative to this node
+     * @return the slot index or size() if the position is not in this node
+     */
+    protected int findSlot(long dataPosition) {
+        long[] positions = getSlotPositions();
+        int size = slots.size();
+        if (dataPosition >= positions[size])
+            return size;
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (positions[middle + 1] <= dataPosition)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * @param dataPosition relative to this node
+     * @return true if the slot contains the data position
+     */
+    protected boolean slotContains(int index, long dataPosition) {
+        if (index < 0 || index >= slots.size())
+            return false;
+        long[] positions = getSlotPositions();
+        return dataPosition >= positions[index] && dataPosition < positions[index + 1];
     }
 
     public int getBlobLength() {
@@ -165,15 +215,9 @@ public class ChunkContainerNode implements IChunk {
         if (dataPosition > node.getDataLength())
             return null;
 
-        long position = 0;
-        for (int i = 0; i < node.slots.size(); i++) {
-            IChunkPointer pointer = node.slots.get(i);
-            long dataLength = pointer.getDataLength();
-            if (position + dataLength > dataPosition)
-                return new SearchResult(position, pointer, node);
-            position += dataLength;
-        }
-        return new SearchResult(position, null, node);
+        int index = node.findSlot(dataPosition);
+        IChunkPointer pointer = index < node.size() ? node.get(index) : null;
+        return new SearchResult(node.getSlotPosition(index), pointer, node);
     }
 
     @Override
@@ -184,12 +228,16 @@ public class ChunkContainerNode implements IChunk {
             IChunkPointer pointer = new ChunkPointerImpl(that.getLevel() - 1);
             pointer.read(inputStream);
             dataLengthRead += pointer.getDataLength();
-            addBlobPointer(pointer);
+            slots.add(pointer);
         }
         if (dataLengthRead != dataLength) {
             throw new IOException("Chunk container node addresses " + dataLengthRead + " bytes but " + dataLength
                     + " bytes expected");
         }
+        // loading a node doesn't change the container, i.e. don't invalidate the parents
+        slotPositions = null;
+        data = null;
+        dataHash = null;
         onDisk = true;
     }
 
@@ -425,6 +473,7 @@ public class ChunkContainerNode implements IChunk {
     }
 
     protected void invalidate() {
+        slotPositions = null;
         data = null;
         dataHash = null;
         onDisk = false;
@@ -434,8 +483,9 @@ public class ChunkContainerNode implements IChunk {
 
     protected void addBlobPointer(int index, IChunkPointer pointer) throws IOException {
         slots.add(index, pointer);
-        if (!isDataPointer(pointer) && pointer.getCachedChunk() != null)
-            ((ChunkContainerNode)pointer.getCachedChunk()).setParent(this);
+        IChunk cachedChunk = pointer.getCachedChunk();
+        if (!isDataPointer(pointer) && cachedChunk != null)
+            ((ChunkContainerNode)cachedChunk).setParent(this);
         invalidate();
     }
 
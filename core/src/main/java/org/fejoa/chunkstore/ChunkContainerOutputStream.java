@@ -12,11 +12,13 @@ import org.fejoa.library.crypto.CryptoException;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 
 public class ChunkContainerOutputStream extends OutputStream {
     private interface ITransaction {
         void write(int i) throws IOException;
+        void write(byte[] buffer, int offset, int length) throws IOException;
         void finish() throws IOException;
     }
 
@@ -28,7 +30,7 @@ public class ChunkContainerOutputStream extends OutputStream {
         private long bytesWritten;
         private boolean appending = false;
         private ChunkContainer.DataChunkPointer lastDeletedPointer;
-        private ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final private ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 
         public OverwriteTransaction(final long seekPosition, final long containerSize) throws IOException,
                 CryptoException {
@@ -51,8 +53,7 @@ public class ChunkContainerOutputStream extends OutputStream {
             removeChunk(lastDeletedPointer.position, lastDeletedPointer.chunkDataLength);
             writeStartPosition = lastDeletedPointer.position;
 
-            for (int i = 0; i < seekPosition - writeStartPosition; i++)
-                write(chunk.data[i]);
+            write(chunk.data, 0, (int)(seekPosition - writeStartPosition));
         }
 
         private void removeChunk(long position, long size) throws IOException, CryptoException {
@@ -67,9 +68,8 @@ public class ChunkContainerOutputStream extends OutputStream {
                 long bytesToWrite = bytesDeleted - bytesWritten;
                 if (bytesToWrite <= 0)
                     break;
-                long start = data.length - bytesToWrite;
-                for (int i = (int)start; i < data.length; i++)
-                    write(data[i]);
+                int start = (int)(data.length - bytesToWrite);
+                write(data, start, data.length - start);
             }
             flushChunk();
         }
@@ -87,15 +87,19 @@ public class ChunkContainerOutputStream extends OutputStream {
             removeChunk(lastDeletedPointer.position, lastDeletedPointer.chunkDataLength);
         }
 
+        private void prepareWrite() throws IOException {
+            if (lastDeletedPointer != null)
+                return;
+            try {
+                overwriteNextChunk();
+            } catch (CryptoException e) {
+                throw new IOException(e);
+            }
+        }
+
         @Override
         public void write(int i) throws IOException {
-            if (lastDeletedPointer == null) {
-                try {
-                    overwriteNextChunk();
-                } catch (CryptoException e) {
-                    throw new IOException(e);
-                }
-            }
+            prepareWrite();
             outputStream.write(i);
             bytesWritten++;
             if (chunkSplitter.update((byte)i)) {
@@ -104,8 +108,38 @@ public class ChunkContainerOutputStream extends OutputStream {
             }
         }
 
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            int end = offset + length;
+            while (offset < end) {
+                // the deleted chunk only changes when a chunk is flushed
+                prepareWrite();
+                int boundary = chunkSplitter.findBoundary(buffer, offset, end - offset);
+                if (boundary < 0) {
+                    outputStream.write(buffer, offset, end - offset);
+                    bytesWritten += end - offset;
+                    return;
+                }
+                bytesWritten += boundary - offset;
+                chunkSplitter.reset();
+                if (outputStream.size() == 0) {
+                    // the whole chunk is in the buffer
+                    flushChunk(Arrays.copyOfRange(buffer, offset, boundary));
+                } else {
+                    outputStream.write(buffer, offset, boundary - offset);
+                    flushChunk();
+                }
+                offset = boundary;
+            }
+        }
+
         private void flushChunk() throws IOException {
             byte[] data = outputStream.toByteArray();
+            outputStream.reset();
+            flushChunk(data);
+        }
+
+        private void flushChunk(byte[] data) throws IOException {
             if (data.length == 0)
                 return;
             try {
@@ -119,7 +153,6 @@ public class ChunkContainerOutputStream extends OutputStream {
             } catch (CryptoException e) {
                 throw new IOException(e);
             }
-            outputStream = new ByteArrayOutputStream();
         }
 
         @Override
@@ -174,6 +207,13 @@ public class ChunkContainerOutputStream extends OutputStream {
         currentTransaction.write(i);
     }
 
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || length > buffer.length - offset)
+            throw new IndexOutOfBoundsException();
+        currentTransaction.write(buffer, offset, length);
+    }
+
     @Override
     public void flush() throws IOException {
         super.flush();
@@ -32,11 +32,27 @@ public class ChunkHash {
             }
         }
 
-        public byte[] digest() {
+        public void update(byte[] data, int offset, int length) {
+            if (bufferSize + length > buffer.length)
+                flushBuffer();
+            // large ranges don't need to be buffered
+            if (length >= buffer.length) {
+                hash.update(data, offset, length);
+                return;
+            }
+            System.arraycopy(data, offset, buffer, bufferSize, length);
+            bufferSize += length;
+        }
+
+        private void flushBuffer() {
             if (bufferSize > 0) {
                 hash.update(buffer, 0, bufferSize);
                 bufferSize = 0;
             }
+        }
+
+        public byte[] digest() {
+            flushBuffer();
             return hash.digest();
         }
 
@@ -85,6 +101,25 @@ public class ChunkHash {
             }
         }
 
+        /**
+         * Hashes a range of data bytes. In contrast to update(byte...) a chunk can end within the range.
+         */
+        void updateData(byte[] data, int offset, int length) {
+            int end = offset + length;
+            while (offset < end) {
+                if (hash == null)
+                    hash = getMessageDigest();
+                int boundary = splitter.findBoundary(data, offset, end - offset);
+                int chunkEnd = boundary < 0 ? end : boundary;
+                hash.update(data, offset, chunkEnd - offset);
+                offset = chunkEnd;
+                if (boundary >= 0) {
+                    splitter.reset();
+                    finalizeChunk();
+                }
+            }
+        }
+
         private void finalizeChunk() {
             if (hash == null)
                 return;
@@ -129,9 +164,20 @@ public class ChunkHash {
     final private ChunkSplitter nodeSplitter;
     private Layer currentLayer;
     final private IMessageDigestFactory messageDigestFactory;
+    // hash data that fits into a single chunk again, i.e. like the root node of a chunk container
+    final private boolean containerHash;
 
     public ChunkHash(ChunkSplitter dataSplitter, ChunkSplitter nodeSplitter, IMessageDigestFactory messageDigestFactory)
             throws NoSuchAlgorithmException {
+        this(dataSplitter, nodeSplitter, messageDigestFactory, false);
+    }
+
+    /**
+     * @param containerHash if true the digest is the data hash of a ChunkContainer holding the data
+     */
+    public ChunkHash(ChunkSplitter dataSplitter, ChunkSplitter nodeSplitter, IMessageDigestFactory messageDigestFactory,
+                     boolean containerHash) throws NoSuchAlgorithmException {
+        this.containerHash = containerHash;
         this.dataSplitter = dataSplitter;
         this.nodeSplitter = nodeSplitter;
         this.messageDigestFactory = messageDigestFactory;
@@ -150,8 +196,11 @@ public class ChunkHash {
     }
 
     public void update(byte[] data) {
-        for (byte b : data)
-            update(b);
+        update(data, 0, data.length);
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        currentLayer.updateData(data, offset, length);
     }
 
     public void update(byte data) {
@@ -159,7 +208,13 @@ public class ChunkHash {
     }
 
     public byte[] digest() {
-        return currentLayer.digest();
+        byte[] digest = currentLayer.digest();
+        if (!containerHash || currentLayer.upperLayer != null)
+            return digest;
+        // a container always has a root node, even for a single or no data chunk
+        BufferedHash rootHash = getMessageDigest();
+        rootHash.update(digest, 0, digest.length);
+        return rootHash.digest();
     }
 
     public void reset() {
@@ -37,4 +37,28 @@ abstract public class ChunkSplitter extends OutputStream {
     public boolean isTriggered() {
         return triggered;
     }
+
+    /**
+     * Feeds the bytes of the buffer range to the splitter until a chunk boundary is found.
+     *
+     * @return the buffer offset after the last byte of the chunk or -1 if the chunk doesn't end within the range
+     */
+    public int findBoundary(byte[] buffer, int offset, int length) {
+        int boundary = findBoundaryInternal(buffer, offset, length);
+        if (boundary >= 0)
+            triggered = true;
+        return boundary;
+    }
+
+    /**
+     * Per byte implementation, splitters should override it with a faster scan.
+     */
+    protected int findBoundaryInternal(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (updateInternal(buffer[i]))
+                return i + 1;
+        }
+        return -1;
+    }
 }
@@ -7,69 +7,41 @@
  */
 package org.fejoa.chunkstore;
 
-import org.fejoa.library.crypto.CryptoHelper;
-
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
-
-
-interface IChunkStoreEngine {
-    void create(File dir, String name) throws IOException;
-    void open(File dir, String name) throws IOException;
-
-    long size();
-    ChunkStore.IChunkStoreIterator iterator() throws IOException;
-    byte[] getChunk(byte[] hash) throws IOException;
-    PutResult<HashValue> put(byte[] data) throws IOException;
-    boolean contains(byte[] hash) throws IOException;
-    void startNewTransaction();
-    void commit() throws IOException;
-    void cancel();
-}
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
 
-class SimpleChunkStoreEngine implements IChunkStoreEngine {
-    public class ChunkStoreIterator implements ChunkStore.IChunkStoreIterator {
+class SimpleChunkStoreEngine extends BaseChunkStoreEngine {
+    public class ChunkStoreIterator extends ReadLockedIterator {
         final private Iterator<BPlusTree.Entry<Long>> iterator;
+        final private boolean readData;
 
-        ChunkStoreIterator(Iterator<BPlusTree.Entry<Long>> iterator) {
+        ChunkStoreIterator(Iterator<BPlusTree.Entry<Long>> iterator, boolean readData) {
             this.iterator = iterator;
-
-            lock();
-        }
-
-        public void unlock() {
-            SimpleChunkStoreEngine.this.unlock();
-        }
-
-        @Override
-        protected void finalize() throws Throwable {
-            unlock();
+            this.readData = readData;
         }
 
         @Override
-        public boolean hasNext() {
+        protected boolean hasNextEntry() {
             return iterator.hasNext();
         }
 
         @Override
-        public void remove() {
-
-        }
-
-        @Override
-        public ChunkStore.Entry next() {
+        protected ChunkStore.Entry nextEntry() {
             BPlusTree.Entry<Long> next = iterator.next();
+            if (!readData)
+                return new ChunkStore.Entry(new HashValue(next.key), null);
             Long position = next.data;
             byte[] chunk;
             try {
-                chunk = packFile.get(position.intValue(), next.key);
+                chunk = packFile.get(position, next.key);
             } catch (IOException e) {
                 e.printStackTrace();
                 return null;
@@ -78,123 +50,289 @@ class SimpleChunkStoreEngine implements IChunkStoreEngine {
         }
     }
 
-    final private BPlusTree tree;
-    final private PackFile packFile;
-    final private Lock lock;
+    // size of the chunk batches that are copied by the garbage collection
+    final static private int COPY_BATCH_SIZE = 4 * 1024 * 1024;
+
+    final private File dir;
+    final private String name;
+    private BPlusTree tree;
+    private PackFile packFile;
+    private TransactionJournal journal;
+    private boolean isOpen = false;
+    private TransactionJournal.Record lastCommit;
 
     public SimpleChunkStoreEngine(File dir, String name) throws FileNotFoundException {
-        this.tree = new BPlusTree(new RandomAccessFile(new File(dir, name +".idx"), "rw"));
-        this.packFile = new PackFile(new RandomAccessFile(new File(dir, name + ".pack"), "rw"));
-        this.lock = LockBucket.getInstance().getLock(new File(dir, name).getPath());
+        super(LockBucket.getInstance().getReadWriteLock(new File(dir, name).getPath()));
+        this.dir = dir;
+        this.name = name;
+        openFiles();
     }
 
-    private void lock() {
-        lock.lock();
+    private File getFile(String extension) {
+        return new File(dir, name + "." + extension);
     }
 
-    private void unlock() {
-        lock.unlock();
+    private void openFiles() throws FileNotFoundException {
+        tree = new BPlusTree(new RandomAccessFile(getFile("idx"), "rw"));
+        tree.setAutoCommit(false);
+        packFile = new PackFile(new RandomAccessFile(getFile("pack"), "rw"));
+        journal = new TransactionJournal(new RandomAccessFile(getFile("journal"), "rw"));
+    }
+
+    private void closeFiles() throws IOException {
+        tree.close();
+        packFile.close();
+        journal.close();
     }
 
     @Override
     public void create(File dir, String name) throws IOException {
         try {
-            lock();
+            lockWrite();
+            clearStagedChunks();
+            // files of an unfinished garbage collection must not be applied to the new store
+            completeRewrite(false);
             tree.create(ChunkStore.hashSize(), 1024);
             packFile.create(ChunkStore.hashSize());
+            journal.create();
+            writeCommitRecord();
+            isOpen = true;
         } finally {
-            unlock();
+            unlockWrite();
         }
     }
 
     @Override
     public void open(File dir, String name) throws IOException {
         try {
-            lock();
+            lockWrite();
+            // the engine is shared, only recover on the first open to not discard data of open transactions
+            if (isOpen)
+                return;
+            if (completeRewrite(true)) {
+                closeFiles();
+                openFiles();
+            }
             tree.open();
             packFile.open();
+            recover();
+            isOpen = true;
         } finally {
-            unlock();
+            unlockWrite();
         }
     }
 
     @Override
     public long size() {
         try {
-            lock();
+            lockRead();
             return tree.size();
         } finally {
-            unlock();
+            unlockRead();
         }
     }
 
     @Override
     public ChunkStore.IChunkStoreIterator iterator() throws IOException {
-        return new ChunkStoreIterator(tree.iterator());
+        return iterator(true);
     }
 
     @Override
-    public byte[] getChunk(byte[] hash) throws IOException {
-        try {
-            lock();
-            Long position = tree.get(hash);
-            if (position == null)
-                return null;
-            return packFile.get(position.intValue(), hash);
-        } finally {
-            unlock();
-        }
+    public ChunkStore.IChunkStoreIterator iterator(boolean readData) throws IOException {
+        return new ChunkStoreIterator(tree.iterator(), readData);
     }
 
     @Override
-    public PutResult<HashValue> put(byte[] data) throws IOException {
-        try {
-            lock();
-            // make this configurable
-            HashValue hash = new HashValue(CryptoHelper.sha3_256Hash(data));
-            // TODO make it more efficient by only using one lookup
-            if (tree.get(hash.getBytes()) != null)
-                return new PutResult<>(hash, true);
-            long position = packFile.put(hash, data);
-            boolean wasInDatabase = !tree.put(hash, position);
-            PutResult<HashValue> putResult = new PutResult<>(hash, wasInDatabase);
-            return putResult;
-        } finally {
-            unlock();
-        }
+    protected Long getLocation(byte[] hash) throws IOException {
+        return tree.get(hash);
     }
 
     @Override
-    public boolean contains(byte[] hash) throws IOException {
+    protected List<Long> getLocations(List<byte[]> sortedKeys) throws IOException {
+        return tree.getAll(sortedKeys);
+    }
+
+    @Override
+    protected byte[] readChunk(long location, byte[] hash) throws IOException {
+        return packFile.get(location, hash);
+    }
+
+    @Override
+    protected long[] writeChunks(List<HashValue> hashes, List<byte[]> data) throws IOException {
+        return packFile.put(hashes, data);
+    }
+
+    @Override
+    protected void writeCommit(List<Map.Entry<HashValue, Long>> entries) throws IOException {
         try {
-            lock();
-            return tree.get(hash) != null;
-        } finally {
-            unlock();
+            for (Map.Entry<HashValue, Long> entry : entries)
+                tree.putIfAbsent(entry.getKey(), entry.getValue());
+            tree.commit();
+            writeCommitRecord();
+        } catch (IOException e) {
+            tree.restore(lastCommit.indexHeader, lastCommit.indexLength);
+            throw e;
         }
     }
 
     /**
-     * TODO: make the transaction actually do something, i.e. make a transaction atomic
+     * Rolls back to the last commit record, i.e. discards the data of transactions that have not been committed
+     * before a crash.
      */
-    @Override
-    public void startNewTransaction() {
+    private void recover() throws IOException {
+        lastCommit = journal.read();
+        if (lastCommit == null) {
+            // store without journal, start journaling from the current state
+            writeCommitRecord();
+            return;
+        }
+        packFile.truncate(lastCommit.packLength);
+        tree.restore(lastCommit.indexHeader, lastCommit.indexLength);
+    }
 
+    /**
+     * Syncs the data files and then writes the commit record that refers to them.
+     */
+    private void writeCommitRecord() throws IOException {
+        long packLength = packFile.length();
+        packFile.sync();
+        tree.sync();
+        lastCommit = journal.write(packLength, tree.getFileLength(), tree.getHeader());
     }
 
     @Override
-    public void commit() throws IOException {
-
+    protected long getDataSize() throws IOException {
+        return packFile.length();
     }
 
+    /**
+     * Copies the retained chunks into new pack and index files. The new files are swapped in by moving a new journal
+     * into place, i.e. if the collection is interrupted, the swap is either completed or discarded on the next open.
+     */
     @Override
-    public void cancel() {
+    protected void rewrite(IChunkFilter filter, Map<HashValue, Long> staged) throws IOException {
+        completeRewrite(false);
+        BPlusTree newTree = new BPlusTree(new RandomAccessFile(getFile("idx.gc"), "rw"));
+        PackFile newPackFile = new PackFile(new RandomAccessFile(getFile("pack.gc"), "rw"));
+        TransactionJournal newJournal = new TransactionJournal(new RandomAccessFile(getFile("journal.gc.tmp"), "rw"));
+        TransactionJournal.Record record;
+        try {
+            newTree.create(ChunkStore.hashSize(), 1024);
+            newTree.setAutoCommit(false);
+            newPackFile.create(ChunkStore.hashSize());
+
+            // the index is iterated in key order, i.e. the new index is filled sequentially
+            List<HashValue> hashes = new ArrayList<>();
+            List<byte[]> data = new ArrayList<>();
+            long batchSize = 0;
+            Iterator<BPlusTree.Entry<Long>> iterator = tree.iterator();
+            while (iterator.hasNext()) {
+                BPlusTree.Entry<Long> entry = iterator.next();
+                HashValue hash = new HashValue(entry.key);
+                if (!filter.retain(hash))
+                    continue;
+                byte[] chunk = packFile.get(entry.data, entry.key);
+                hashes.add(hash);
+                data.add(chunk);
+                batchSize += chunk.length;
+                if (batchSize >= COPY_BATCH_SIZE) {
+                    copyChunks(newPackFile, newTree, hashes, data);
+                    batchSize = 0;
+                }
+            }
+            copyChunks(newPackFile, newTree, hashes, data);
+            newTree.commit();
+            long packLength = newPackFile.length();
+
+            // staged chunks are not in the index and are discarded if the store is not closed properly
+            for (Map.Entry<HashValue, Long> entry : staged.entrySet()) {
+                byte[] chunk = packFile.get(entry.getValue(), entry.getKey().getBytes());
+                entry.setValue(newPackFile.put(entry.getKey(), chunk));
+            }
+
+            newPackFile.sync();
+            newTree.sync();
+            newJournal.create();
+            record = newJournal.write(packLength, newTree.getFileLength(), newTree.getHeader());
+        } catch (IOException e) {
+            newTree.close();
+            newPackFile.close();
+            newJournal.close();
+            completeRewrite(false);
+            throw e;
+        }
+        // commit point
+        Files.move(getFile("journal.gc.tmp").toPath(), getFile("journal.gc").toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        completeRewrite(true);
+
+        // the open files follow the moved files
+        int cacheCapacity = tree.getTileCache().getCapacity();
+        closeFiles();
+        tree = newTree;
+        packFile = newPackFile;
+        journal = newJournal;
+        tree.getTileCache().setCapacity(cacheCapacity);
+        lastCommit = record;
+    }
+
+    private void copyChunks(PackFile newPackFile, BPlusTree newTree, List<HashValue> hashes, List<byte[]> data)
+            throws IOException {
+        if (hashes.size() == 0)
+            return;
+        long[] locations = newPackFile.put(hashes, data);
+        for (int i = 0; i < locations.length; i++)
+            newTree.put(hashes.get(i), locations[i]);
+        hashes.clear();
+        data.clear();
+    }
+
+    /**
+     * Moves the files of a garbage collection in place if the collection has been committed, i.e. if the new journal
+     * is in place. Otherwise, or if apply is false, the files are deleted.
+     *
+     * @return true if files have been moved
+     */
+    private boolean completeRewrite(boolean apply) throws IOException {
+        File newJournal = getFile("journal.gc");
+        if (!apply || !newJournal.exists()) {
+            getFile("pack.gc").delete();
+            getFile("idx.gc").delete();
+            getFile("journal.gc.tmp").delete();
+            newJournal.delete();
+            return false;
+        }
+        for (String extension : new String[]{"pack", "idx"}) {
+            File file = getFile(extension + ".gc");
+            // might have been moved before an interruption
+            if (file.exists()) {
+                Files.move(file.toPath(), getFile(extension).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        Files.move(newJournal.toPath(), getFile("journal").toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
 
+    @Override
+    public TileCache<?> getIndexCache() {
+        return tree.getTileCache();
     }
 }
 
 public class ChunkStore {
     public class Transaction {
+        final private IChunkStoreTransaction transaction;
+
+        private Transaction(IChunkStoreTransaction transaction) {
+            this.transaction = transaction;
+        }
+
+        public ChunkStore getChunkStore() {
+            return ChunkStore.this;
+        }
+
         public long size() {
             return ChunkStore.this.size();
         }
@@ -207,58 +345,127 @@ public class ChunkStore {
             return ChunkStore.this.getChunk(hash);
         }
 
+        public Map<HashValue, byte[]> getChunks(Collection<HashValue> hashes) throws IOException {
+            return ChunkStore.this.getChunks(hashes);
+        }
+
         public PutResult<HashValue> put(byte[] data) throws IOException {
-            return ChunkStore.this.put(data);
+            return transaction.put(data);
         }
 
         public boolean contains(HashValue hash) throws IOException {
             return ChunkStore.this.hasChunk(hash);
         }
 
+        public Set<HashValue> contains(Collection<HashValue> hashes) throws IOException {
+            return ChunkStore.this.hasChunks(hashes);
+        }
+
+        /**
+         * Atomically makes all chunks of the transaction persistent.
+         */
         public void commit() throws IOException {
-            ChunkStore.this.commit();
+            transaction.commit();
+            ChunkStore.this.finishTransaction(this);
         }
 
+        /**
+         * Discards all chunks that have been put since the last commit.
+         */
         public void cancel() {
-            ChunkStore.this.cancel();
+            transaction.cancel();
+            ChunkStore.this.finishTransaction(this);
         }
     }
 
+    /**
+     * SIMPLE stores the chunks in a pack file indexed by a B+ tree, LOG is a log-structured engine for write heavy
+     * stores.
+     */
+    public enum EngineType {
+        SIMPLE,
+        LOG
+    }
+
     static class DatabaseBucket {
         private Map<String, WeakReference<IChunkStoreEngine>> map = new HashMap<>();
 
-        synchronized public IChunkStoreEngine getDB(File dir, String name) throws FileNotFoundException {
+        /**
+         * @param create if true the engine of the default type is returned, otherwise the type of an existing store
+         */
+        synchronized public IChunkStoreEngine getDB(File dir, String name, boolean create)
+                throws FileNotFoundException {
+            EngineType type = create ? getDefaultEngineType() : getEngineType(dir, name);
             String id = new File(dir, name).getPath();
             WeakReference<IChunkStoreEngine> weakObject = map.get(id);
             if (weakObject != null) {
                 IChunkStoreEngine db = weakObject.get();
-                if (db != null)
+                if (db != null && getEngineType(db) == type)
                     return db;
             }
 
             // create new db
-            IChunkStoreEngine engine = new SimpleChunkStoreEngine(dir, name);
+            IChunkStoreEngine engine;
+            if (type == EngineType.LOG)
+                engine = new LogChunkStoreEngine(dir, name);
+            else
+                engine = new SimpleChunkStoreEngine(dir, name);
             map.put(id, new WeakReference<>(engine));
             return engine;
         }
+
+        static private EngineType getEngineType(IChunkStoreEngine engine) {
+            if (engine instanceof LogChunkStoreEngine)
+                return EngineType.LOG;
+            return EngineType.SIMPLE;
+        }
+
+        static private EngineType getEngineType(File dir, String name) {
+            if (LogChunkStoreEngine.exists(dir, name))
+                return EngineType.LOG;
+            if (new File(dir, name + ".idx").exists())
+                return EngineType.SIMPLE;
+            return getDefaultEngineType();
+        }
+    }
+
+    final static public String ENGINE_TYPE_PROPERTY = "fejoa.chunkstore.engine";
+    static private EngineType defaultEngineType;
+
+    /**
+     * The engine type used for new stores. Existing stores are always opened with the engine they have been created
+     * with. Defaults to the value of the fejoa.chunkstore.engine system property or SIMPLE.
+     */
+    synchronized static public EngineType getDefaultEngineType() {
+        if (defaultEngineType == null) {
+            String property = System.getProperty(ENGINE_TYPE_PROPERTY);
+            defaultEngineType = EngineType.SIMPLE;
+            if (property != null)
+                defaultEngineType = EngineType.valueOf(property.toUpperCase());
+        }
+        return defaultEngineType;
+    }
+
+    synchronized static public void setDefaultEngineType(EngineType engineType) {
+        defaultEngineType = engineType;
     }
 
     final static protected DatabaseBucket databaseBucket = new DatabaseBucket();
     final private IChunkStoreEngine db;
     private Transaction currentTransaction;
 
-    protected ChunkStore(File dir, String name) throws FileNotFoundException {
-        this.db = databaseBucket.getDB(dir, name);
+    protected ChunkStore(File dir, String name, boolean create) throws FileNotFoundException {
+        this.db = databaseBucket.getDB(dir, name, create);
     }
 
     static public ChunkStore create(File dir, String name) throws IOException {
-        ChunkStore chunkStore = new ChunkStore(dir, name);
+        ChunkStore chunkStore = new ChunkStore(dir, name, true);
         chunkStore.db.create(dir, name);
         return chunkStore;
     }
 
     static public ChunkStore open(File dir, String name) throws IOException {
-        ChunkStore chunkStore = new ChunkStore(dir, name);
+        ChunkStore chunkStore = new ChunkStore(dir, name, false);
         chunkStore.db.open(dir, name);
         return chunkStore;
     }
@@ -284,10 +491,29 @@ public class ChunkStore {
         return db.getChunk(hash);
     }
 
+    /**
+     * Reads many chunks in one batch.
+     *
+     * @return the found chunks, missing chunks are not in the map
+     */
+    public Map<HashValue, byte[]> getChunks(Collection<HashValue> hashes) throws IOException {
+        return db.getChunks(hashes);
+    }
+
     public long size() {
         return db.size();
     }
 
+    /**
+     * Returns a filter over the hashes of all committed chunks in the store.
+     *
+     * The filter is built from the index once and committed chunks are added to it. The returned filter is a copy, it
+     * doesn't contain chunks that are committed later.
+     */
+    public BloomFilter getChunkFilter() throws IOException {
+        return db.getChunkFilter();
+    }
+
     static public class Entry {
         final public HashValue key;
         final public byte[] data;
@@ -298,45 +524,116 @@ public class ChunkStore {
         }
     }
 
-    public interface IChunkStoreIterator extends Iterator<Entry> {
-        void unlock();
+    /**
+     * Iterator that holds a read lock of the store. It is closed automatically when exhausted; otherwise it has to be
+     * closed by the thread that created it.
+     */
+    public interface IChunkStoreIterator extends Iterator<Entry>, Closeable {
+        @Override
+        void close();
     }
 
     public IChunkStoreIterator iterator() throws IOException {
         return db.iterator();
     }
 
+    /**
+     * Iterates over the hashes of all chunks, the data of the entries is null.
+     */
+    public IChunkStoreIterator hashIterator() throws IOException {
+        return db.iterator(false);
+    }
+
+    /**
+     * Returns the cache of decoded index tiles. The cache is shared by all ChunkStore instances of the same store and
+     * its capacity can be adjusted to the memory budget of the store.
+     *
+     * @return the cache or null if the engine doesn't cache index tiles
+     */
+    public TileCache<?> getIndexCache() {
+        return db.getIndexCache();
+    }
+
+    /**
+     * Puts are collected in a write batch of the given size in bytes and are appended to the pack file in one write.
+     * The batch is also written on commit. A size of 0 writes every chunk right away.
+     */
+    public void setWriteBatchSize(int writeBatchSize) {
+        db.setWriteBatchSize(writeBatchSize);
+    }
+
+    /**
+     * Outcome of a garbage collection.
+     */
+    static public class SweepResult {
+        final public long removedChunks;
+        final public long reclaimedBytes;
+        final public Collection<HashValue> removedHashes;
+
+        public SweepResult(long removedChunks, long reclaimedBytes) {
+            this(removedChunks, reclaimedBytes, Collections.<HashValue>emptyList());
+        }
+
+        public SweepResult(long removedChunks, long reclaimedBytes, Collection<HashValue> removedHashes) {
+            this.removedChunks = removedChunks;
+            this.reclaimedBytes = reclaimedBytes;
+            this.removedHashes = removedHashes;
+        }
+    }
+
+    /**
+     * Starts a garbage collection. From now on, all chunks that are committed or that are put by a transaction that is
+     * committed are kept by the collection. Chunks that an open transaction found in the store are kept until the
+     * transaction commits or cancels. The caller then marks all chunks that are reachable from its roots and calls
+     * finishGarbageCollection. The store can be used during the whole collection.
+     *
+     * @see GarbageCollector
+     */
+    public void startGarbageCollection() throws IOException {
+        db.startGarbageCollection();
+    }
+
+    /**
+     * Removes all committed chunks that are neither reachable nor have been used since the collection started. The
+     * remaining chunks are copied into new files that atomically replace the old files.
+     */
+    public SweepResult finishGarbageCollection(Set<HashValue> reachable) throws IOException {
+        SweepResult result = db.finishGarbageCollection(reachable);
+        // don't serve removed chunks from the cache
+        DecodedChunkCache.getDefault().invalidate(result.removedHashes);
+        return result;
+    }
+
+    public void cancelGarbageCollection() {
+        db.cancelGarbageCollection();
+    }
+
     public boolean hasChunk(HashValue hashValue) throws IOException {
         return db.contains(hashValue.getBytes());
     }
 
+    /**
+     * Checks many chunks in one batch.
+     *
+     * @return the subset of the hashes that is in the store
+     */
+    public Set<HashValue> hasChunks(Collection<HashValue> hashes) throws IOException {
+        return db.contains(hashes);
+    }
+
     // TODO rename to getCurrentTransaction?
     public Transaction openTransaction() throws IOException {
         synchronized (this) {
             if (currentTransaction != null)
                 return currentTransaction;
-            currentTransaction = new Transaction();
-            db.startNewTransaction();
+            currentTransaction = new Transaction(db.startNewTransaction());
             return currentTransaction;
         }
     }
 
-    private void commit() throws IOException {
-        synchronized (this) {
-            db.commit();
+    synchronized private void finishTransaction(Transaction transaction) {
+        if (currentTransaction == transaction)
             currentTransaction = null;
-        }
-    }
-
-    private void cancel() {
-        synchronized (this) {
-            db.cancel();
-            currentTransaction = null;
-        }
-    }
-
-    private PutResult<HashValue> put(byte[] data) throws IOException {
-        return db.put(data);
     }
 
     static public int hashSize() {
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.IMessageDigestFactory;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.concurrent.*;
+
+
+/**
+ * Stores data chunks on a pool of worker threads.
+ *
+ * The chunk boundaries are still found sequentially by the writer. Hashing, compressing, encrypting and putting a
+ * chunk runs on the workers. The returned futures are kept in the container in the order of the data. The number of
+ * chunks in flight is bounded so that the writer blocks instead of buffering a whole file in memory.
+ */
+public class ChunkWritePipeline {
+    static private ChunkWritePipeline defaultPipeline;
+
+    final private ExecutorService executor;
+    final private Semaphore inFlight;
+
+    public ChunkWritePipeline(int nThreads, int maxChunksInFlight) {
+        this.executor = Executors.newFixedThreadPool(nThreads,
+                BackgroundExecutor.createThreadFactory("ChunkWritePipeline"));
+        this.inFlight = new Semaphore(maxChunksInFlight);
+    }
+
+    static synchronized public ChunkWritePipeline getDefault() {
+        if (defaultPipeline == null) {
+            int nThreads = Runtime.getRuntime().availableProcessors();
+            defaultPipeline = new ChunkWritePipeline(nThreads, 4 * nThreads);
+        }
+        return defaultPipeline;
+    }
+
+    /**
+     * Hashes and puts the chunk in the background.
+     *
+     * Blocks while the maximal number of chunks is in flight.
+     */
+    public Future<ChunkPointer> put(final IChunkAccessor accessor, final DataChunk chunk,
+                                    final IMessageDigestFactory digestFactory) throws IOException {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        try {
+            return executor.submit(new Callable<ChunkPointer>() {
+                @Override
+                public ChunkPointer call() throws Exception {
+                    try {
+                        byte[] data = chunk.getData();
+                        MessageDigest messageDigest = digestFactory.create();
+                        HashValue hash = chunk.hash(messageDigest);
+                        HashValue boxHash = accessor.putChunk(data, hash).key;
+                        return new ChunkPointer(hash, boxHash, hash, data.length);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw new IOException(e);
+        }
+    }
+}
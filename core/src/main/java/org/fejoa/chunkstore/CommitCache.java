@@ -9,74 +9,360 @@ package org.fejoa.chunkstore;
 
 import org.fejoa.library.crypto.CryptoException;
 
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
 
 
+/**
+ * Cache for the commits of a branch.
+ *
+ * Decoded commits are kept in a bounded LRU cache. The refs of the recently seen commits are kept in a larger LRU and
+ * are written to a file, encoded by the commit callback like in the branch log, so that after a restart a commit is
+ * read directly instead of being searched from the head. New refs are appended to the file; the file is rewritten
+ * with the current refs once it holds twice as many entries as the ref LRU or when a wrong ref has been dropped. The file only contains the encoded refs; the commit hashes are taken from the decoded refs and are
+ * verified when the commit is read. Ancestor queries are answered from the commit graph; the ancestor sets of recently
+ * queried commits are cached so that repeated queries, positive or negative, are bit lookups.
+ *
+ * There is one cache per branch that is shared by all SyncRepository instances of the branch.
+ */
 public class CommitCache {
-    final private Map<HashValue, CommitBox> commitCache = new HashMap<>();
-    // All commits in this list as well are their parent are in the cached.
-    final private LinkedList<CommitBox> tailList = new LinkedList<>();
-    final private SyncRepository repository;
+    final static public int DEFAULT_MAX_COMMITS = 1024;
+    final static public int DEFAULT_MAX_REFS = 16 * DEFAULT_MAX_COMMITS;
+    final static private int MAX_ANCESTOR_SETS = 16;
+
+    final static private Map<String, WeakReference<CommitCache>> openCaches = new HashMap<>();
+
+    final private File file;
+    final private CommitGraph graph;
+    final private ICommitCallback commitCallback;
+    // commit hash -> encoded commit ref
+    final private LruMap<HashValue, String> refs = new LruMap<>(DEFAULT_MAX_REFS);
+    // refs that are not in the file yet
+    final private List<HashValue> unpersistedRefs = new ArrayList<>();
+    // length of the valid part of the file
+    private long persistedLength = 0;
+    // number of entries in the valid part of the file
+    private int persistedCount = 0;
+    // the file contains dropped refs
+    private boolean rewriteNeeded = false;
+    final private LruMap<HashValue, CommitBox> commits = new LruMap<>(DEFAULT_MAX_COMMITS);
+    // commit index -> indexes of its ancestors
+    final private LruMap<Integer, BitSet> ancestorSets = new LruMap<>(MAX_ANCESTOR_SETS);
+
+    static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        final static private long serialVersionUID = 1L;
+
+        private int maxSize;
+
+        public LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            Iterator<K> iterator = keySet().iterator();
+            while (size() > maxSize && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private CommitCache(File file, CommitGraph graph, ICommitCallback commitCallback) {
+        this.file = file;
+        this.graph = graph;
+        this.commitCallback = commitCallback;
+    }
+
+    /**
+     * Opens the cache stored in the file. There is only one cache instance per file, i.e. the commit callback of the
+     * first caller is used.
+     */
+    static public CommitCache open(File file, CommitGraph graph, ICommitCallback commitCallback) throws IOException {
+        String path = file.getAbsolutePath();
+        synchronized (openCaches) {
+            WeakReference<CommitCache> weakCache = openCaches.get(path);
+            if (weakCache != null) {
+                CommitCache cache = weakCache.get();
+                if (cache != null)
+                    return cache;
+            }
+            CommitCache cache = read(file, graph, commitCallback);
+            openCaches.put(path, new WeakReference<>(cache));
+            return cache;
+        }
+    }
+
+    /**
+     * Reads the cache without registering it, i.e. the caller must make sure that no other instance uses the file.
+     */
+    static CommitCache read(File file, CommitGraph graph, ICommitCallback commitCallback) throws IOException {
+        CommitCache cache = new CommitCache(file, graph, commitCallback);
+        cache.load();
+        return cache;
+    }
+
+    private void load() throws IOException {
+        if (!file.exists())
+            return;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            long length = 0;
+            int count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // e.g. an entry of the old format that contained the plain hash
+                if (line.isEmpty() || line.indexOf(' ') >= 0)
+                    break;
+                ChunkContainerRef ref;
+                try {
+                    ref = commitCallback.commitPointerFromLog(line);
+                } catch (CryptoException | RuntimeException e) {
+                    break;
+                }
+                if (ref == null)
+                    break;
+                // later entries are newer, i.e. the ref LRU keeps the most recent ones
+                refs.put(ref.getDataHash(), line);
+                length += line.getBytes("UTF-8").length + 1;
+                count++;
+            }
+            persistedLength = length;
+            persistedCount = count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Appends the new refs. The whole file is rewritten with the current refs if it doesn't match, e.g. if it has been
+     * damaged or removed, if it contains dropped refs or if it has grown too large.
+     */
+    private void persist() throws IOException {
+        if (unpersistedRefs.size() == 0 && !rewriteNeeded)
+            return;
+        boolean append = !rewriteNeeded && file.length() == persistedLength
+                && persistedCount + unpersistedRefs.size() <= 2 * refs.getMaxSize();
+        Collection<HashValue> toWrite = unpersistedRefs;
+        if (!append) {
+            persistedLength = 0;
+            persistedCount = 0;
+            // copy the keys, reading the refs changes the access order
+            toWrite = new ArrayList<>(refs.keySet());
+        }
+        if (file.getParentFile() != null)
+            file.getParentFile().mkdirs();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8"));
+        try {
+            for (HashValue hash : toWrite) {
+                String ref = refs.get(hash);
+                // evicted before it has been written
+                if (ref == null)
+                    continue;
+                String line = ref + "\n";
+                writer.write(line);
+                persistedLength += line.getBytes("UTF-8").length;
+                persistedCount++;
+            }
+        } finally {
+            writer.close();
+        }
+        unpersistedRefs.clear();
+        rewriteNeeded = false;
+    }
+
+    synchronized public int getMaxCommits() {
+        return commits.getMaxSize();
+    }
+
+    /**
+     * Sets the max number of decoded commits that are kept in memory.
+     */
+    synchronized public void setMaxCommits(int maxCommits) {
+        commits.setMaxSize(maxCommits);
+    }
+
+    synchronized public int getMaxRefs() {
+        return refs.getMaxSize();
+    }
+
+    /**
+     * Sets the max number of commit refs that are kept in memory and in the file.
+     */
+    synchronized public void setMaxRefs(int maxRefs) throws IOException {
+        int size = refs.size();
+        refs.setMaxSize(maxRefs);
+        if (refs.size() < size) {
+            rewriteNeeded = true;
+            persist();
+        }
+    }
+
+    synchronized public int getRefCount() {
+        return refs.size();
+    }
+
+    synchronized public int getCachedCommitCount() {
+        return commits.size();
+    }
 
-    public CommitCache(SyncRepository repository) {
-        this.repository = repository;
+    synchronized public boolean hasRef(HashValue commit) {
+        return refs.containsKey(commit);
     }
 
-    public CommitBox getCommit(HashValue hashValue) throws IOException, CryptoException {
-        CommitBox commitBox = commitCache.get(hashValue);
+    private void addRef(HashValue commit, ChunkContainerRef ref) throws CryptoException {
+        if (refs.containsKey(commit))
+            return;
+        refs.put(commit, commitCallback.commitPointerToLog(ref));
+        unpersistedRefs.add(commit);
+    }
+
+    private void addInternal(CommitBox commitBox) throws CryptoException {
+        commits.put(commitBox.getPlainHash(), commitBox);
+        addRef(commitBox.getPlainHash(), commitBox.getRef());
+        // the refs of the parents are known without reading them
+        for (ChunkContainerRef parent : commitBox.getParents())
+            addRef(parent.getDataHash(), parent);
+    }
+
+    /**
+     * Adds a commit that has been read or written.
+     */
+    synchronized public void add(CommitBox commitBox) throws IOException, CryptoException {
+        addInternal(commitBox);
+        persist();
+    }
+
+    private CommitBox readCommit(IRepoChunkAccessors.ITransaction transaction, ChunkContainerRef ref)
+            throws IOException, CryptoException {
+        CommitBox commitBox = commits.get(ref.getDataHash());
         if (commitBox != null)
             return commitBox;
-        return loadCommit(hashValue);
-    }
-
-    public boolean isParent(HashValue commit, HashValue isParentCommit) throws IOException, CryptoException {
-        CommitBox commitBox = getCommit(commit);
-        for (ChunkContainerRef parent : commitBox.getParents()) {
-            CommitBox parentCommit = CommitBox.read(getCommitAccessor(parent), parent);
-            HashValue parentHash = parentCommit.getPlainHash();
-            if (parentHash.equals(isParentCommit))
-                return true;
-            if (isParent(parentHash, isParentCommit))
-                return true;
+        commitBox = CommitBox.read(transaction.getCommitAccessor(ref), ref);
+        addInternal(commitBox);
+        return commitBox;
+    }
+
+    /**
+     * @param head the commit the search for an unknown commit starts from
+     * @return the commit or null if it is not reachable from the head
+     */
+    synchronized public CommitBox getCommit(IRepoChunkAccessors.ITransaction transaction, CommitBox head,
+                                            HashValue hashValue) throws IOException, CryptoException {
+        try {
+            CommitBox commitBox = commits.get(hashValue);
+            if (commitBox != null)
+                return commitBox;
+            String ref = refs.get(hashValue);
+            if (ref != null) {
+                try {
+                    ChunkContainerRef commitRef = commitCallback.commitPointerFromLog(ref);
+                    if (commitRef != null) {
+                        commitBox = readCommit(transaction, commitRef);
+                        // the ref has been read from the file, make sure it points to the requested commit
+                        if (commitBox.getPlainHash().equals(hashValue))
+                            return commitBox;
+                    }
+                } catch (IOException e) {
+                    // e.g. the ref is stale, search the commit
+                }
+                // don't use the wrong ref again, also not after a restart
+                refs.remove(hashValue);
+                rewriteNeeded = true;
+            }
+            return searchCommit(transaction, head, hashValue);
+        } finally {
+            persist();
         }
-        return false;
     }
 
-    private CommitBox loadCommit(final HashValue hashValue) throws IOException, CryptoException {
-        CommitBox head = repository.getHeadCommit();
+    private CommitBox searchCommit(IRepoChunkAccessors.ITransaction transaction, CommitBox head, HashValue hashValue)
+            throws IOException, CryptoException {
         if (head == null)
             return null;
-        HashValue headHash = head.getPlainHash();
-        if (!commitCache.containsKey(headHash)) {
-            commitCache.put(headHash, head);
-            tailList.addFirst(head);
-            if (headHash.equals(hashValue))
-                return head;
+        if (head.getPlainHash().equals(hashValue))
+            return head;
+        // all ancestors of an indexed commit are in the graph
+        int headIndex = graph.getIndex(head.getPlainHash());
+        if (headIndex >= 0) {
+            int index = graph.getIndex(hashValue);
+            if (index < 0 || !getAncestorSet(headIndex).get(index))
+                return null;
         }
 
-        while (tailList.size() > 0) {
-            CommitBox currentCommit = tailList.removeFirst();
-            CommitBox foundCommit = null;
-            for (ChunkContainerRef boxPointer : currentCommit.getParents()) {
-                CommitBox parent = CommitBox.read(getCommitAccessor(boxPointer), boxPointer);
-                HashValue parentHash = parent.getPlainHash();
-                if (parentHash.equals(hashValue))
-                    foundCommit = parent;
-                if (!commitCache.containsKey(parentHash)) {
-                    tailList.add(parent);
-                    commitCache.put(parentHash, parent);
-                }
+        Set<HashValue> visited = new HashSet<>();
+        Deque<CommitBox> queue = new ArrayDeque<>();
+        queue.add(head);
+        while (queue.size() > 0) {
+            CommitBox current = queue.removeFirst();
+            for (ChunkContainerRef parent : current.getParents()) {
+                if (!visited.add(parent.getDataHash()))
+                    continue;
+                CommitBox parentCommit = readCommit(transaction, parent);
+                if (parentCommit.getPlainHash().equals(hashValue))
+                    return parentCommit;
+                queue.addLast(parentCommit);
             }
-            if (foundCommit != null)
-                return foundCommit;
         }
         return null;
     }
 
-    private IChunkAccessor getCommitAccessor(ChunkContainerRef ref) {
-        return repository.getCurrentTransaction().getCommitAccessor(ref);
+    private BitSet getAncestorSet(int commit) {
+        BitSet ancestors = ancestorSets.get(commit);
+        if (ancestors != null)
+            return ancestors;
+        // a new commit, e.g. the new head, is derived from the sets of its parents
+        int[] parents = graph.getParents(commit);
+        for (int parent : parents) {
+            BitSet parentAncestors = ancestorSets.get(parent);
+            if (parentAncestors == null) {
+                ancestors = null;
+                break;
+            }
+            if (ancestors == null)
+                ancestors = (BitSet)parentAncestors.clone();
+            else
+                ancestors.or(parentAncestors);
+        }
+        if (ancestors != null)
+            ancestors.set(commit);
+        else
+            ancestors = graph.getAncestors(commit);
+        ancestorSets.put(commit, ancestors);
+        return ancestors;
+    }
+
+    /**
+     * @param head the commit the search for an unknown commit starts from
+     * @return true if ancestor is an ancestor of commit, a commit is not its own ancestor
+     */
+    synchronized public boolean isAncestor(IRepoChunkAccessors.ITransaction transaction, CommitBox head,
+                                           HashValue ancestor, HashValue commit)
+            throws IOException, CryptoException {
+        if (ancestor.equals(commit))
+            return false;
+        int commitIndex = graph.getIndex(commit);
+        if (commitIndex < 0) {
+            CommitBox commitBox = getCommit(transaction, head, commit);
+            if (commitBox == null)
+                return false;
+            commitIndex = graph.index(transaction, commitBox);
+        }
+        int ancestorIndex = graph.getIndex(ancestor);
+        // all ancestors of the commit are in the graph
+        if (ancestorIndex < 0)
+            return false;
+        return getAncestorSet(commitIndex).get(ancestorIndex);
     }
 }
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoException;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+
+/**
+ * Index of the commit graph of a branch.
+ *
+ * For each commit the hash, the indexes of its parents and its generation number are stored. The generation of a
+ * commit is one larger than the max generation of its parents, i.e. a commit can only be an ancestor of commits with a
+ * larger generation. Ancestor and merge base queries are pruned searches over integers and don't need to read (and
+ * decrypt) commit boxes.
+ *
+ * A commit is always added after its parents. New commits are appended to the graph file. The graph only caches
+ * information that is in the commits, if the file is damaged it is discarded and rebuilt. The file contains the plain
+ * commit hashes, thus, the graph of an encrypted repository is only kept in memory.
+ */
+public class CommitGraph {
+    /**
+     * Result of a difference query.
+     */
+    static public class Difference {
+        // commits that are ancestors of the other commit (inclusive) but not of the local commit
+        final public Set<Integer> exclusive = new HashSet<>();
+        // common commits that are parents of exclusive commits, or the other commit if it is common
+        final public Set<Integer> boundary = new HashSet<>();
+    }
+
+    final static private int VERSION = 1;
+    final static private int HASH_SIZE = Config.DATA_HASH_SIZE;
+
+    final static private Map<String, WeakReference<CommitGraph>> openGraphs = new HashMap<>();
+
+    // null if the graph is only kept in memory
+    final private File file;
+    // length of the valid part of the file
+    private long persistedLength = 0;
+    private int persistedCount = 0;
+    final private List<HashValue> hashes = new ArrayList<>();
+    final private Map<HashValue, Integer> indexes = new HashMap<>();
+    final private List<int[]> parents = new ArrayList<>();
+    private int[] generations = new int[16];
+
+    /**
+     * Creates a graph that is only kept in memory.
+     */
+    public CommitGraph() {
+        this.file = null;
+    }
+
+    private CommitGraph(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the graph stored in the file. There is only one graph instance per file.
+     */
+    static public CommitGraph open(File file) throws IOException {
+        return open(file, true);
+    }
+
+    /**
+     * @param persistent if false the graph is only kept in memory and an existing file is removed. There is still only
+     *                   one graph instance per file.
+     */
+    static public CommitGraph open(File file, boolean persistent) throws IOException {
+        String path = file.getAbsolutePath();
+        synchronized (openGraphs) {
+            WeakReference<CommitGraph> weakGraph = openGraphs.get(path);
+            if (weakGraph != null) {
+                CommitGraph graph = weakGraph.get();
+                if (graph != null && (graph.file != null) == persistent)
+                    return graph;
+            }
+            CommitGraph graph;
+            if (persistent) {
+                graph = read(file);
+            } else {
+                graph = new CommitGraph();
+                if (file.exists() && !file.delete())
+                    throw new IOException("Can't remove the commit graph: " + file.getPath());
+            }
+            openGraphs.put(path, new WeakReference<>(graph));
+            return graph;
+        }
+    }
+
+    /**
+     * Reads the graph without registering it, i.e. the caller must make sure that no other instance uses the file.
+     */
+    static CommitGraph read(File file) throws IOException {
+        CommitGraph graph = new CommitGraph(file);
+        graph.load();
+        return graph;
+    }
+
+    private void load() throws IOException {
+        if (!file.exists())
+            return;
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (inputStream.readInt() != VERSION)
+                throw new IOException("Unsupported commit graph version");
+            long length = 4;
+            while (true) {
+                byte[] hash = new byte[HASH_SIZE];
+                int read = inputStream.read(hash);
+                if (read <= 0)
+                    break;
+                if (read < HASH_SIZE)
+                    inputStream.readFully(hash, read, HASH_SIZE - read);
+                int generation = inputStream.readInt();
+                int[] commitParents = new int[inputStream.readShort()];
+                for (int i = 0; i < commitParents.length; i++)
+                    commitParents[i] = inputStream.readInt();
+                if (addInternal(new HashValue(hash), commitParents) != generation)
+                    throw new IOException("Invalid generation");
+                length += getRecordLength(commitParents.length);
+            }
+            persistedLength = length;
+            persistedCount = hashes.size();
+        } catch (IOException | IllegalArgumentException e) {
+            // e.g. a partially written record; start from scratch, the file is rewritten on the next change
+            hashes.clear();
+            indexes.clear();
+            parents.clear();
+            persistedLength = 0;
+            persistedCount = 0;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    static private long getRecordLength(int parentCount) {
+        return HASH_SIZE + 4 + 2 + 4 * parentCount;
+    }
+
+    private void writeRecord(DataOutputStream outputStream, int index) throws IOException {
+        outputStream.write(hashes.get(index).getBytes());
+        outputStream.writeInt(generations[index]);
+        int[] commitParents = parents.get(index);
+        outputStream.writeShort(commitParents.length);
+        for (int parent : commitParents)
+            outputStream.writeInt(parent);
+    }
+
+    /**
+     * Appends the commits that are not in the file yet. The whole file is rewritten if it doesn't match, e.g. if it
+     * has been damaged or removed.
+     */
+    private void persist() throws IOException {
+        if (file == null || persistedCount == hashes.size())
+            return;
+        boolean append = persistedLength > 0 && file.length() == persistedLength;
+        if (!append) {
+            persistedLength = 0;
+            persistedCount = 0;
+            if (file.getParentFile() != null)
+                file.getParentFile().mkdirs();
+        }
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, append)));
+        try {
+            if (!append) {
+                outputStream.writeInt(VERSION);
+                persistedLength = 4;
+            }
+            for (int i = persistedCount; i < hashes.size(); i++) {
+                writeRecord(outputStream, i);
+                persistedLength += getRecordLength(parents.get(i).length);
+            }
+        } finally {
+            outputStream.close();
+        }
+        persistedCount = hashes.size();
+    }
+
+    /**
+     * @return the generation of the new commit
+     */
+    private int addInternal(HashValue commit, int[] commitParents) {
+        int index = hashes.size();
+        int generation = 1;
+        for (int parent : commitParents) {
+            if (parent < 0 || parent >= index)
+                throw new IllegalArgumentException("Invalid parent index: " + parent);
+            generation = Math.max(generation, generations[parent] + 1);
+        }
+        if (index == generations.length)
+            generations = Arrays.copyOf(generations, 2 * generations.length);
+        generations[index] = generation;
+        hashes.add(commit);
+        parents.add(commitParents);
+        indexes.put(commit, index);
+        return generation;
+    }
+
+    synchronized public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * @return the index of the commit or -1 if the commit is not in the graph
+     */
+    synchronized public int getIndex(HashValue commit) {
+        Integer index = indexes.get(commit);
+        if (index == null)
+            return -1;
+        return index;
+    }
+
+    synchronized public HashValue getHash(int index) {
+        return hashes.get(index);
+    }
+
+    synchronized public int getGeneration(int index) {
+        return generations[index];
+    }
+
+    synchronized public int[] getParents(int index) {
+        return parents.get(index).clone();
+    }
+
+    /**
+     * Adds a commit whose parents are in the graph already.
+     *
+     * @return the index of the commit
+     */
+    synchronized public int add(HashValue commit, List<HashValue> commitParents) throws IOException {
+        Integer existing = indexes.get(commit);
+        if (existing != null)
+            return existing;
+        int[] parentIndexes = new int[commitParents.size()];
+        for (int i = 0; i < parentIndexes.length; i++) {
+            Integer parent = indexes.get(commitParents.get(i));
+            if (parent == null)
+                throw new IOException("Parent is not in the graph: " + commitParents.get(i));
+            parentIndexes[i] = parent;
+        }
+        addInternal(commit, parentIndexes);
+        persist();
+        return hashes.size() - 1;
+    }
+
+    static private List<HashValue> getParentHashes(CommitBox commitBox) {
+        List<HashValue> parentHashes = new ArrayList<>();
+        for (ChunkContainerRef parent : commitBox.getParents())
+            parentHashes.add(parent.getDataHash());
+        return parentHashes;
+    }
+
+    /**
+     * Adds the commit and all its ancestors that are not in the graph yet. Only the missing commits are read.
+     *
+     * @return the index of the commit
+     */
+    synchronized public int index(IRepoChunkAccessors.ITransaction transaction, CommitBox commitBox)
+            throws IOException, CryptoException {
+        Integer existing = indexes.get(commitBox.getPlainHash());
+        if (existing != null)
+            return existing;
+
+        Map<HashValue, CommitBox> loaded = new HashMap<>();
+        Deque<CommitBox> stack = new ArrayDeque<>();
+        stack.push(commitBox);
+        try {
+            while (!stack.isEmpty()) {
+                CommitBox current = stack.peek();
+                if (indexes.containsKey(current.getPlainHash())) {
+                    stack.pop();
+                    continue;
+                }
+                boolean parentsIndexed = true;
+                for (ChunkContainerRef parent : current.getParents()) {
+                    HashValue parentHash = parent.getDataHash();
+                    if (indexes.containsKey(parentHash))
+                        continue;
+                    parentsIndexed = false;
+                    CommitBox parentBox = loaded.get(parentHash);
+                    if (parentBox == null) {
+                        parentBox = CommitBox.read(transaction.getCommitAccessor(parent), parent);
+                        loaded.put(parentHash, parentBox);
+                    }
+                    stack.push(parentBox);
+                }
+                if (!parentsIndexed)
+                    continue;
+                stack.pop();
+                List<HashValue> parentHashes = getParentHashes(current);
+                int[] parentIndexes = new int[parentHashes.size()];
+                for (int i = 0; i < parentIndexes.length; i++)
+                    parentIndexes[i] = indexes.get(parentHashes.get(i));
+                addInternal(current.getPlainHash(), parentIndexes);
+            }
+        } finally {
+            persist();
+        }
+        return indexes.get(commitBox.getPlainHash());
+    }
+
+    /**
+     * @return true if ancestor is an ancestor of commit or the commit itself
+     */
+    synchronized public boolean isAncestor(int ancestor, int commit) {
+        if (ancestor == commit)
+            return true;
+        int minGeneration = generations[ancestor];
+        if (generations[commit] <= minGeneration)
+            return false;
+        BitSet visited = new BitSet(hashes.size());
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(commit);
+        visited.set(commit);
+        while (!queue.isEmpty()) {
+            int current = queue.removeFirst();
+            for (int parent : parents.get(current)) {
+                if (parent == ancestor)
+                    return true;
+                // the ancestor can't be reached from commits of the same or a lower generation
+                if (visited.get(parent) || generations[parent] <= minGeneration)
+                    continue;
+                visited.set(parent);
+                queue.addLast(parent);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the indexes of all ancestors of the commit including the commit itself
+     */
+    synchronized public BitSet getAncestors(int commit) {
+        BitSet ancestors = new BitSet(hashes.size());
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(commit);
+        ancestors.set(commit);
+        while (!queue.isEmpty()) {
+            for (int parent : parents.get(queue.removeFirst())) {
+                if (ancestors.get(parent))
+                    continue;
+                ancestors.set(parent);
+                queue.addLast(parent);
+            }
+        }
+        return ancestors;
+    }
+
+    /**
+     * Finds the commits that are only reachable from the other commit and the common commits they lead to.
+     *
+     * The commits are visited in decreasing generation order so the flags of a commit are complete when it is visited.
+     * The search stops when no commit that is only reachable from the other commit is left.
+     */
+    synchronized public Difference getDifference(int local, int other) {
+        final byte LOCAL = 1;
+        final byte OTHER = 2;
+        final Map<Integer, Byte> flags = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(16, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(generations[b], generations[a]);
+            }
+        });
+        flags.put(local, LOCAL);
+        queue.add(local);
+        if (other == local) {
+            flags.put(other, (byte)(LOCAL | OTHER));
+        } else {
+            flags.put(other, OTHER);
+            queue.add(other);
+        }
+        // number of queued commits with the OTHER flag
+        int otherCount = 1;
+
+        Difference difference = new Difference();
+        while (otherCount > 0) {
+            int current = queue.remove();
+            byte currentFlags = flags.get(current);
+            byte parentFlags = currentFlags;
+            if ((currentFlags & OTHER) != 0) {
+                otherCount--;
+                if ((currentFlags & LOCAL) != 0) {
+                    difference.boundary.add(current);
+                    // don't follow common commits on the other side
+                    parentFlags = LOCAL;
+                } else {
+                    difference.exclusive.add(current);
+                }
+            }
+            for (int parent : parents.get(current)) {
+                Byte existing = flags.get(parent);
+                if (existing == null) {
+                    flags.put(parent, parentFlags);
+                    queue.add(parent);
+                    if ((parentFlags & OTHER) != 0)
+                        otherCount++;
+                } else if ((existing | parentFlags) != existing) {
+                    if ((existing & OTHER) == 0 && (parentFlags & OTHER) != 0)
+                        otherCount++;
+                    flags.put(parent, (byte)(existing | parentFlags));
+                }
+            }
+        }
+        return difference;
+    }
+
+    /**
+     * @return the best common ancestors, i.e. the common ancestors that are not ancestors of another common ancestor
+     */
+    synchronized public List<Integer> getMergeBases(int a, int b) {
+        List<Integer> candidates = new ArrayList<>(getDifference(a, b).boundary);
+        List<Integer> mergeBases = new ArrayList<>();
+        for (int candidate : candidates) {
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != candidate && isAncestor(candidate, other)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant)
+                mergeBases.add(candidate);
+        }
+        return mergeBases;
+    }
+}
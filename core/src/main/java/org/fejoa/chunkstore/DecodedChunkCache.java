@@ -0,0 +1,373 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.support.DoubleLinkedList;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Process wide cache for decoded, i.e. decrypted and inflated, chunks.
+ *
+ * Entries are keyed by the box hash. The id of the key that decoded the chunk is stored with the entry and has to match
+ * on lookup.
+ *
+ * Eviction follows W-TinyLFU and is size aware. New entries go into a small LRU window. An entry that drops out of the
+ * window only stays in the main area if it has been requested more often than the entry the main area would evict
+ * for it. The request frequencies are estimated by a count-min sketch that is halved periodically. The main area is a
+ * segmented LRU: entries that are hit again move from the probation into the protected segment.
+ *
+ * Priority entries, e.g. directory and commit chunks, skip the window and the admission and go straight into the
+ * protected segment.
+ *
+ * Off-heap caches keep the data in direct byte buffers so that a large cache doesn't burden the garbage collector.
+ */
+public class DecodedChunkCache {
+    final static public long DEFAULT_BUDGET = 64 * 1024 * 1024;
+    final static private int WINDOW_PERCENT = 1;
+    final static private int PROTECTED_PERCENT = 80;
+
+    final static private int WINDOW = 0;
+    final static private int PROBATION = 1;
+    final static private int PROTECTED = 2;
+
+    static private DecodedChunkCache defaultCache;
+
+    /**
+     * Count-min sketch with 4 bit counters (stored in bytes) and 4 rows.
+     */
+    static private class FrequencySketch {
+        final static private int MAX_COUNT = 15;
+        final static private long[] SEEDS = {0x97CB3127L, 0xB0B3D2A1L, 0xC4CEB9FEL, 0x9E3779B9L};
+
+        final private byte[][] table;
+        final private int mask;
+        final private int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(long budget) {
+            // roughly one counter per 4K of cached data
+            int width = Integer.highestOneBit((int)Math.max(64, Math.min(1 << 20, budget / 4096)));
+            table = new byte[SEEDS.length][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            return (int)(h ^ (h >>> 32)) & mask;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < table.length; row++) {
+                int i = index(hash, row);
+                if (table[row][i] < MAX_COUNT) {
+                    table[row][i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize)
+                age();
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < table.length; row++)
+                frequency = Math.min(frequency, table[row][index(hash, row)]);
+            return frequency;
+        }
+
+        /**
+         * Halves all counters so that old popularity fades.
+         */
+        private void age() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++)
+                    row[i] = (byte)(row[i] >> 1);
+            }
+            additions /= 2;
+        }
+    }
+
+    static private class Entry extends DoubleLinkedList.Entry {
+        final HashValue boxHash;
+        final String keyId;
+        final int size;
+        final private byte[] data;
+        final private ByteBuffer offHeapData;
+        int segment;
+
+        Entry(HashValue boxHash, String keyId, byte[] data, boolean offHeap) {
+            this.boxHash = boxHash;
+            this.keyId = keyId;
+            this.size = data.length;
+            if (offHeap) {
+                this.data = null;
+                this.offHeapData = ByteBuffer.allocateDirect(data.length);
+                this.offHeapData.put(data);
+            } else {
+                this.data = data;
+                this.offHeapData = null;
+            }
+        }
+
+        byte[] getData() {
+            if (data != null)
+                return data;
+            byte[] copy = new byte[size];
+            ByteBuffer buffer = offHeapData.duplicate();
+            buffer.clear();
+            buffer.get(copy);
+            return copy;
+        }
+    }
+
+    final private boolean offHeap;
+    final private Map<HashValue, Entry> map = new HashMap<>();
+    final private DoubleLinkedList<Entry> window = new DoubleLinkedList<>();
+    final private DoubleLinkedList<Entry> probation = new DoubleLinkedList<>();
+    final private DoubleLinkedList<Entry> protectedSegment = new DoubleLinkedList<>();
+    final private FrequencySketch sketch;
+    private long budget;
+    private long windowBytes = 0;
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public DecodedChunkCache(long budget, boolean offHeap) {
+        this.budget = budget;
+        this.offHeap = offHeap;
+        this.sketch = new FrequencySketch(budget);
+    }
+
+    static synchronized public DecodedChunkCache getDefault() {
+        if (defaultCache == null)
+            defaultCache = new DecodedChunkCache(DEFAULT_BUDGET, false);
+        return defaultCache;
+    }
+
+    /**
+     * Replaces the process wide cache, e.g. to change its budget or to move it off-heap.
+     */
+    static synchronized public void setDefault(DecodedChunkCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Returns the decoded chunk or null if it is not cached.
+     *
+     * The returned data must not be modified.
+     */
+    synchronized public byte[] get(HashValue boxHash, String keyId) {
+        sketch.increment(boxHash.hashCode());
+        Entry entry = map.get(boxHash);
+        if (entry == null || !entry.keyId.equals(keyId)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        switch (entry.segment) {
+            case WINDOW:
+                window.remove(entry);
+                window.addFirst(entry);
+                break;
+            case PROBATION:
+                unlink(entry);
+                link(entry, PROTECTED);
+                demoteProtected();
+                break;
+            case PROTECTED:
+                protectedSegment.remove(entry);
+                protectedSegment.addFirst(entry);
+                break;
+        }
+        return entry.getData();
+    }
+
+    /**
+     * Adds a decoded chunk.
+     *
+     * @param priority true for chunks that are read often, e.g. directory and commit chunks
+     */
+    synchronized public void put(HashValue boxHash, String keyId, byte[] data, boolean priority) {
+        Entry existing = map.remove(boxHash);
+        if (existing != null)
+            unlink(existing);
+        if (data.length > budget)
+            return;
+
+        Entry entry = new Entry(boxHash, keyId, data, offHeap);
+        map.put(boxHash, entry);
+        if (priority) {
+            link(entry, PROTECTED);
+            demoteProtected();
+            evict(null);
+            return;
+        }
+
+        link(entry, WINDOW);
+        long windowMax = budget * WINDOW_PERCENT / 100;
+        while (windowBytes > windowMax && window.getTail() != entry) {
+            Entry candidate = window.getTail();
+            unlink(candidate);
+            link(candidate, PROBATION);
+            evict(candidate);
+        }
+        evict(null);
+    }
+
+    synchronized public void invalidate(HashValue boxHash) {
+        Entry entry = map.remove(boxHash);
+        if (entry != null)
+            unlink(entry);
+    }
+
+    /**
+     * Drops chunks that are not in the chunk store anymore, e.g. after a garbage collection.
+     */
+    synchronized public void invalidate(Collection<HashValue> boxHashes) {
+        for (HashValue boxHash : boxHashes)
+            invalidate(boxHash);
+    }
+
+    synchronized public void invalidateAll() {
+        for (Entry entry : map.values())
+            unlink(entry);
+        map.clear();
+    }
+
+    synchronized public long getBudget() {
+        return budget;
+    }
+
+    synchronized public void setBudget(long budget) {
+        this.budget = budget;
+        demoteProtected();
+        evict(null);
+    }
+
+    synchronized public long getUsedBytes() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    synchronized public long getHits() {
+        return hits;
+    }
+
+    synchronized public long getMisses() {
+        return misses;
+    }
+
+    synchronized public long getEvictions() {
+        return evictions;
+    }
+
+    synchronized public void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    @Override
+    synchronized public String toString() {
+        return "used: " + getUsedBytes() + "/" + budget + ", hits: " + hits + ", misses: " + misses + ", evictions: "
+                + evictions;
+    }
+
+    private void link(Entry entry, int segment) {
+        entry.segment = segment;
+        switch (segment) {
+            case WINDOW:
+                window.addFirst(entry);
+                windowBytes += entry.size;
+                break;
+            case PROBATION:
+                probation.addFirst(entry);
+                probationBytes += entry.size;
+                break;
+            case PROTECTED:
+                protectedSegment.addFirst(entry);
+                protectedBytes += entry.size;
+                break;
+        }
+    }
+
+    private void unlink(Entry entry) {
+        switch (entry.segment) {
+            case WINDOW:
+                window.remove(entry);
+                windowBytes -= entry.size;
+                break;
+            case PROBATION:
+                probation.remove(entry);
+                probationBytes -= entry.size;
+                break;
+            case PROTECTED:
+                protectedSegment.remove(entry);
+                protectedBytes -= entry.size;
+                break;
+        }
+    }
+
+    private void demoteProtected() {
+        long protectedMax = (budget - budget * WINDOW_PERCENT / 100) * PROTECTED_PERCENT / 100;
+        while (protectedBytes > protectedMax && protectedSegment.size() > 1) {
+            Entry entry = protectedSegment.getTail();
+            unlink(entry);
+            link(entry, PROBATION);
+        }
+    }
+
+    private void remove(Entry entry) {
+        unlink(entry);
+        map.remove(entry.boxHash);
+        evictions++;
+    }
+
+    /**
+     * Evicts till the cache is within its budget.
+     *
+     * The victim is the LRU entry of the probation segment, or of the protected segment if there is no other probation
+     * entry. The window is only evicted when the main area is empty.
+     *
+     * @param candidate the entry that just dropped out of the window or null
+     */
+    private void evict(Entry candidate) {
+        while (getUsedBytes() > budget) {
+            Entry victim = probation.getTail();
+            if (victim == null || victim == candidate)
+                victim = protectedSegment.getTail();
+            if (victim == null)
+                victim = window.getTail();
+            if (victim == null)
+                victim = candidate;
+            if (victim == null)
+                return;
+
+            if (candidate != null && victim != candidate) {
+                // admission: the more frequently requested entry stays
+                if (sketch.frequency(candidate.boxHash.hashCode()) <= sketch.frequency(victim.boxHash.hashCode())) {
+                    remove(candidate);
+                    candidate = null;
+                    continue;
+                }
+            }
+            remove(victim);
+            if (victim == candidate)
+                candidate = null;
+        }
+    }
+}
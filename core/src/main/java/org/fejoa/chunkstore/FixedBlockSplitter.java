@@ -29,6 +29,17 @@ public class FixedBlockSplitter extends ChunkSplitter {
         return false;
     }
 
+    @Override
+    protected int findBoundaryInternal(byte[] buffer, int offset, int length) {
+        int remaining = Math.max(1, blockSize - nBytesInBlock);
+        if (length < remaining) {
+            nBytesInBlock += length;
+            return -1;
+        }
+        nBytesInBlock += remaining;
+        return offset + remaining;
+    }
+
     @Override
     public void resetInternal() {
         nBytesInBlock = 0;
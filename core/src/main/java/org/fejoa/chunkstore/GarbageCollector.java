@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoException;
+import org.fejoa.library.support.StorageLib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+
+/**
+ * Mark and sweep garbage collection of a chunk store.
+ *
+ * All chunks that are reachable from the entries of the given branch logs, i.e. commits, their parents, the directory
+ * trees and the file containers, are marked. The chunk store then copies the marked chunks into new files and swaps
+ * them in.
+ *
+ * The collection can run while the store is in use (online). Chunks that are committed during the collection are
+ * kept. Branch log entries that are added during the mark phase are marked before the sweep starts.
+ */
+public class GarbageCollector {
+    static public class Result {
+        final public long reachableChunks;
+        final public long removedChunks;
+        final public long reclaimedBytes;
+        // run time in milliseconds
+        final public long markTime;
+        final public long sweepTime;
+
+        public Result(long reachableChunks, ChunkStore.SweepResult sweepResult, long markTime, long sweepTime) {
+            this.reachableChunks = reachableChunks;
+            this.removedChunks = sweepResult.removedChunks;
+            this.reclaimedBytes = sweepResult.reclaimedBytes;
+            this.markTime = markTime;
+            this.sweepTime = sweepTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Reachable chunks: " + reachableChunks + ", removed chunks: " + removedChunks
+                    + ", reclaimed bytes: " + reclaimedBytes + ", mark: " + markTime + "ms, sweep: " + sweepTime + "ms";
+        }
+    }
+
+    static private class Root {
+        final ChunkStoreBranchLog branchLog;
+        final IRepoChunkAccessors accessors;
+        final ICommitCallback commitCallback;
+        // number of branch log entries that have been marked
+        int markedEntries = 0;
+
+        Root(ChunkStoreBranchLog branchLog, IRepoChunkAccessors accessors, ICommitCallback commitCallback) {
+            this.branchLog = branchLog;
+            this.accessors = accessors;
+            this.commitCallback = commitCallback;
+        }
+    }
+
+    final private ChunkStore chunkStore;
+    final private List<Root> roots = new ArrayList<>();
+    final private Set<HashValue> marked = new HashSet<>();
+
+    public GarbageCollector(ChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+    }
+
+    /**
+     * Collects the garbage of the store of a repository while the repository is in use.
+     */
+    static public Result collect(Repository repository) throws IOException, CryptoException {
+        GarbageCollector collector = new GarbageCollector(
+                repository.getAccessors().startTransaction().getRawAccessor().getChunkStore());
+        collector.addRoots(repository);
+        return collector.run();
+    }
+
+    /**
+     * Collects the garbage of the store of a branch, e.g. from a maintenance task, while no repository is open.
+     */
+    static public Result collect(File dir, String branch, IRepoChunkAccessors accessors, ICommitCallback commitCallback)
+            throws IOException, CryptoException {
+        GarbageCollector collector = new GarbageCollector(
+                accessors.startTransaction().getRawAccessor().getChunkStore());
+        collector.addRoots(SyncRepository.getLog(dir, branch), accessors, commitCallback);
+        return collector.run();
+    }
+
+    /**
+     * Keeps everything that is reachable from the entries of the branch log. Must be called for all branches that use
+     * the store.
+     */
+    public void addRoots(ChunkStoreBranchLog branchLog, IRepoChunkAccessors accessors, ICommitCallback commitCallback) {
+        roots.add(new Root(branchLog, accessors, commitCallback));
+    }
+
+    public void addRoots(Repository repository) throws IOException {
+        addRoots(repository.getBranchLog(), repository.getAccessors(), repository.getCommitCallback());
+    }
+
+    public Result run() throws IOException, CryptoException {
+        long start = System.currentTimeMillis();
+        chunkStore.startGarbageCollection();
+        ChunkStore.SweepResult sweepResult;
+        long markTime;
+        try {
+            markRoots();
+            markTime = System.currentTimeMillis() - start;
+            sweepResult = chunkStore.finishGarbageCollection(marked);
+        } catch (IOException | CryptoException | RuntimeException e) {
+            chunkStore.cancelGarbageCollection();
+            throw e;
+        }
+        return new Result(marked.size(), sweepResult, markTime, System.currentTimeMillis() - start - markTime);
+    }
+
+    /**
+     * Marks the branch log entries until no new entries have been added in the meantime.
+     */
+    private void markRoots() throws IOException, CryptoException {
+        boolean newEntries = true;
+        while (newEntries) {
+            newEntries = false;
+            for (Root root : roots) {
+                List<ChunkStoreBranchLog.Entry> entries = root.branchLog.getEntries();
+                if (root.markedEntries == entries.size())
+                    continue;
+                newEntries = true;
+                IRepoChunkAccessors.ITransaction transaction = root.accessors.startTransaction();
+                for (; root.markedEntries < entries.size(); root.markedEntries++) {
+                    ChunkContainerRef commit = root.commitCallback.commitPointerFromLog(
+                            entries.get(root.markedEntries).getMessage());
+                    if (commit == null)
+                        throw new IOException("Invalid branch log entry");
+                    markCommits(transaction, commit);
+                }
+            }
+        }
+    }
+
+    private void markCommits(IRepoChunkAccessors.ITransaction transaction, ChunkContainerRef head)
+            throws IOException, CryptoException {
+        // long histories don't fit on the stack
+        Deque<ChunkContainerRef> commits = new ArrayDeque<>();
+        commits.push(head);
+        while (!commits.isEmpty()) {
+            ChunkContainerRef ref = commits.pop();
+            if (!marked.add(ref.getBoxHash()))
+                continue;
+            IChunkAccessor accessor = transaction.getCommitAccessor(ref);
+            ChunkContainer chunkContainer = ChunkContainer.read(accessor, ref);
+            markNodes(chunkContainer, accessor);
+            CommitBox commitBox = CommitBox.read(chunkContainer);
+            markDir(transaction, commitBox.getTree(), "");
+            for (ChunkContainerRef parent : commitBox.getParents())
+                commits.push(parent);
+        }
+    }
+
+    private void markDir(IRepoChunkAccessors.ITransaction transaction, ChunkContainerRef ref, String path)
+            throws IOException, CryptoException {
+        // equal box hashes mean equal content, i.e. the whole sub tree has been marked before
+        if (!marked.add(ref.getBoxHash()))
+            return;
+        IChunkAccessor accessor = transaction.getTreeAccessor(ref);
+        ChunkContainer chunkContainer = ChunkContainer.read(accessor, ref);
+        markNodes(chunkContainer, accessor);
+        FlatDirectoryBox directoryBox = FlatDirectoryBox.read(chunkContainer);
+        for (FlatDirectoryBox.Entry entry : directoryBox.getEntries()) {
+            String childPath = StorageLib.appendDir(path, entry.getName());
+            if (entry.isFile())
+                markFile(transaction, entry.getDataPointer(), childPath);
+            else
+                markDir(transaction, entry.getDataPointer(), childPath);
+        }
+    }
+
+    private void markFile(IRepoChunkAccessors.ITransaction transaction, ChunkContainerRef ref, String path)
+            throws IOException, CryptoException {
+        if (!marked.add(ref.getBoxHash()))
+            return;
+        IChunkAccessor accessor = transaction.getFileAccessor(ref, path);
+        markNodes(ChunkContainer.read(accessor, ref), accessor);
+    }
+
+    private void markNodes(ChunkContainerNode node, IChunkAccessor accessor) throws IOException, CryptoException {
+        for (IChunkPointer pointer : node.getChunkPointers()) {
+            if (!marked.add(pointer.getChunkPointer().getBoxHash()))
+                continue;
+            if (!ChunkContainerNode.isDataPointer(pointer))
+                markNodes(ChunkContainerNode.read(accessor, node, pointer), accessor);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+
+/**
+ * Content defined chunking using a gear hash (FastCDC).
+ *
+ * The gear hash only needs a shift, an add and a table lookup per byte and is thus much cheaper than a Rabin
+ * fingerprint. The hash of the first minSize bytes of a chunk is skipped. The chunk size distribution is normalized:
+ * till avgSize is reached a boundary requires more zero bits than after it.
+ */
+public class GearSplitter extends ChunkSplitter {
+    // number of mask bits that are added or removed before/after the average chunk size
+    final static private int NORMALIZATION_LEVEL = 2;
+    final static private long[] GEAR = createGearTable();
+
+    final private int minSize;
+    final private int avgSize;
+    final private int maxSize;
+    final private long smallMask;
+    final private long largeMask;
+    private long chunkSize;
+    private long fingerprint;
+
+    public GearSplitter(int minSize, int avgSize, int maxSize) {
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+
+        int bits = 63 - Long.numberOfLeadingZeros(Math.max(1, avgSize));
+        this.smallMask = mask(bits + NORMALIZATION_LEVEL);
+        this.largeMask = mask(bits - NORMALIZATION_LEVEL);
+    }
+
+    /**
+     * The gear table must never change, otherwise existing data is chunked differently.
+     */
+    static private long[] createGearTable() {
+        long[] table = new long[256];
+        // splitmix64
+        long state = 0x66656A6F61676561L;
+        for (int i = 0; i < table.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+
+    /**
+     * Uses the highest bits since they depend on the most recent 64 bytes.
+     */
+    static private long mask(int bits) {
+        bits = Math.max(1, Math.min(63, bits));
+        return -1L << (64 - bits);
+    }
+
+    public int getMinChunkSize() {
+        return minSize;
+    }
+
+    public int getAvgChunkSize() {
+        return avgSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxSize;
+    }
+
+    @Override
+    protected boolean updateInternal(byte i) {
+        chunkSize++;
+        if (chunkSize <= minSize)
+            return false;
+        fingerprint = (fingerprint << 1) + GEAR[i & 0xFF];
+        if (chunkSize >= maxSize)
+            return true;
+        long mask = chunkSize < avgSize ? smallMask : largeMask;
+        return (fingerprint & mask) == 0;
+    }
+
+    @Override
+    protected int findBoundaryInternal(byte[] buffer, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        if (chunkSize < minSize) {
+            int skip = (int)Math.min(end - i, minSize - chunkSize);
+            chunkSize += skip;
+            i += skip;
+        }
+
+        final long[] gear = GEAR;
+        final int start = i;
+        long fingerprint = this.fingerprint;
+        // strict mask till the average size is reached
+        int stop = i + (int)Math.min(end - i, Math.max(0, Math.min(avgSize, maxSize) - 1 - chunkSize));
+        final long smallMask = this.smallMask;
+        while (i < stop) {
+            fingerprint = (fingerprint << 1) + gear[buffer[i++] & 0xFF];
+            if ((fingerprint & smallMask) == 0)
+                return cut(fingerprint, start, i);
+        }
+        stop = i + (int)Math.min(end - i, Math.max(0, maxSize - 1 - (chunkSize + i - start)));
+        final long largeMask = this.largeMask;
+        while (i < stop) {
+            fingerprint = (fingerprint << 1) + gear[buffer[i++] & 0xFF];
+            if ((fingerprint & largeMask) == 0)
+                return cut(fingerprint, start, i);
+        }
+        if (i < end) {
+            // max size reached
+            fingerprint = (fingerprint << 1) + gear[buffer[i++] & 0xFF];
+            return cut(fingerprint, start, i);
+        }
+        this.fingerprint = fingerprint;
+        chunkSize += i - start;
+        return -1;
+    }
+
+    private int cut(long fingerprint, int start, int end) {
+        this.fingerprint = fingerprint;
+        chunkSize += end - start;
+        return end;
+    }
+
+    @Override
+    protected void resetInternal() {
+        chunkSize = 0;
+        fingerprint = 0;
+    }
+
+    @Override
+    public ChunkSplitter newInstance() {
+        return new GearSplitter(minSize, avgSize, maxSize);
+    }
+}
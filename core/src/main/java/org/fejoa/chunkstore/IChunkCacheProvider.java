@@ -0,0 +1,18 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+
+/**
+ * Implemented by chunk accessors whose containers share a ChunkContainerCache, e.g. all accessors of a repository.
+ *
+ * Containers with other accessors use the default cache.
+ */
+public interface IChunkCacheProvider {
+    ChunkContainerCache getContainerCache();
+}
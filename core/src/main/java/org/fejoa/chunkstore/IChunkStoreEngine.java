@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+
+interface IChunkStoreEngine {
+    void create(File dir, String name) throws IOException;
+    void open(File dir, String name) throws IOException;
+
+    long size();
+    /**
+     * Returns a copy of a filter over the hashes of all chunks.
+     */
+    BloomFilter getChunkFilter() throws IOException;
+    ChunkStore.IChunkStoreIterator iterator() throws IOException;
+    /**
+     * @param readData if false the data of the entries is null, i.e. only the index is read
+     */
+    ChunkStore.IChunkStoreIterator iterator(boolean readData) throws IOException;
+    byte[] getChunk(byte[] hash) throws IOException;
+    Map<HashValue, byte[]> getChunks(Collection<HashValue> hashes) throws IOException;
+    boolean contains(byte[] hash) throws IOException;
+    Set<HashValue> contains(Collection<HashValue> hashes) throws IOException;
+    IChunkStoreTransaction startNewTransaction();
+    TileCache<?> getIndexCache();
+    void setWriteBatchSize(int writeBatchSize);
+
+    void startGarbageCollection() throws IOException;
+    ChunkStore.SweepResult finishGarbageCollection(Set<HashValue> reachable) throws IOException;
+    void cancelGarbageCollection();
+}
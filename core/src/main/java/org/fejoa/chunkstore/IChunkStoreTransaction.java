@@ -0,0 +1,23 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.IOException;
+
+
+/**
+ * A commit either makes all chunks of the transaction persistent or none of them. Cancel discards the chunks that have
+ * been put since the last commit.
+ *
+ * After commit or cancel the transaction can be used for a new set of chunks.
+ */
+interface IChunkStoreTransaction {
+    PutResult<HashValue> put(byte[] data) throws IOException;
+    void commit() throws IOException;
+    void cancel();
+}
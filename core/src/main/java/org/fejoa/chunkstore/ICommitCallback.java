@@ -16,4 +16,9 @@ public interface ICommitCallback {
     String commitPointerToLog(ChunkContainerRef commitPointer) throws CryptoException;
 
     ChunkContainerRef commitPointerFromLog(String logEntry) throws CryptoException;
+
+    /**
+     * @return true if the commit pointers are encrypted, i.e. commit hashes must not be stored in plain text
+     */
+    boolean isEncrypted();
 }
@@ -0,0 +1,19 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+
+/**
+ * Chunk accessor whose putChunk and getChunk are thread safe and expensive, e.g. because they compress and encrypt
+ * the data.
+ *
+ * The data chunks of a ChunkContainer that uses such an accessor are stored in parallel by the ChunkWritePipeline and
+ * are read ahead by the ChunkContainerInputStream.
+ */
+public interface IParallelChunkAccessor extends IChunkAccessor {
+}
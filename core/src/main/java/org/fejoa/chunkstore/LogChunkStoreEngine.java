@@ -0,0 +1,1027 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+
+/**
+ * Log-structured chunk store engine.
+ *
+ * Chunks are appended to a log of segment files. A commit appends a commit record, listing the committed chunks and
+ * their locations, to the log and syncs it once. Committed entries are kept in a sorted in-memory memtable that is
+ * written to an immutable sorted index file when it is full. Index files of similar size are merged in the background
+ * (size-tiered compaction), i.e. an entry is rewritten about log4(n) times.
+ *
+ * All disk writes are sequential. A manifest, replaced atomically, lists the segments and index files and the log
+ * position from which commit records have to be replayed into the memtable on open.
+ *
+ * Files: name.manifest, name.[id].log (segments) and name.[id].sst (index files).
+ */
+class LogChunkStoreEngine extends BaseChunkStoreEngine {
+    final static public long DEFAULT_MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+    final static public int DEFAULT_MEMTABLE_SIZE = 64 * 1024;
+    // number of index files of the same size tier that are merged into one
+    final static public int COMPACTION_FAN_IN = 4;
+
+    final static private int MANIFEST_MAGIC = 0x464A4C4D;
+    final static private int INDEX_MAGIC = 0x464A4C49;
+    final static private short VERSION = 1;
+    final static private int OFFSET_BITS = 40;
+    final static private byte[] COMMIT_MARKER = new byte[ChunkStore.hashSize()];
+    static {
+        Arrays.fill(COMMIT_MARKER, (byte)0xFF);
+    }
+
+    final static private BackgroundExecutor compactionExecutor = new BackgroundExecutor("Chunk store compaction", 1);
+    final static private Logger LOG = Logger.getLogger(LogChunkStoreEngine.class.getName());
+
+    /**
+     * Read only iterator over sorted index entries.
+     */
+    interface IEntryIterator {
+        boolean hasNext();
+        BaseBPlusTree.Entry<Long> next();
+    }
+
+    static private IEntryIterator iterate(final List<BaseBPlusTree.Entry<Long>> entries) {
+        return new IEntryIterator() {
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < entries.size();
+            }
+
+            @Override
+            public BaseBPlusTree.Entry<Long> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return entries.get(index++);
+            }
+        };
+    }
+
+    static long toLocation(int segment, long offset) {
+        return ((long)segment << OFFSET_BITS) | offset;
+    }
+
+    static int getSegment(long location) {
+        return (int)(location >>> OFFSET_BITS);
+    }
+
+    static long getOffset(long location) {
+        return location & ((1L << OFFSET_BITS) - 1);
+    }
+
+    static private class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final PackFile packFile;
+
+        Segment(int id, File file) throws FileNotFoundException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.packFile = new PackFile(randomAccessFile);
+        }
+    }
+
+    /**
+     * Immutable file of (hash, location) entries sorted in index order.
+     */
+    static class IndexFile {
+        // magic + version + hash size + number of entries
+        final static private int HEADER_SIZE = 4 + 2 + 2 + 4;
+        // the file is mapped into a single buffer
+        final static long MAX_ENTRIES = (Integer.MAX_VALUE - HEADER_SIZE) / (ChunkStore.hashSize() + 8);
+
+        final int id;
+        final File file;
+        final int hashSize;
+        final int count;
+        final private MappedByteBuffer buffer;
+
+        private IndexFile(int id, File file, int hashSize, int count, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.hashSize = hashSize;
+            this.count = count;
+            this.buffer = buffer;
+        }
+
+        static IndexFile write(int id, File file, int hashSize, int count, IEntryIterator entries)
+                throws IOException {
+            FileOutputStream fileOutputStream = new FileOutputStream(file);
+            try {
+                DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream,
+                        64 * 1024));
+                outputStream.writeInt(INDEX_MAGIC);
+                outputStream.writeShort(VERSION);
+                outputStream.writeShort(hashSize);
+                outputStream.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    BaseBPlusTree.Entry<Long> entry = entries.next();
+                    outputStream.write(entry.key);
+                    outputStream.writeLong(entry.data);
+                }
+                outputStream.flush();
+                fileOutputStream.getFD().sync();
+            } finally {
+                fileOutputStream.close();
+            }
+            return open(id, file);
+        }
+
+        static IndexFile open(int id, File file) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                if (randomAccessFile.readInt() != INDEX_MAGIC)
+                    throw new IOException("Invalid index file: " + file.getPath());
+                randomAccessFile.readShort();
+                int hashSize = randomAccessFile.readShort();
+                int count = randomAccessFile.readInt();
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        randomAccessFile.length());
+                if (buffer.capacity() < HEADER_SIZE + (long)count * (hashSize + 8))
+                    throw new IOException("Truncated index file: " + file.getPath());
+                return new IndexFile(id, file, hashSize, count, buffer);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        private int entryPosition(int index) {
+            return HEADER_SIZE + index * (hashSize + 8);
+        }
+
+        byte[] getKey(int index) {
+            byte[] key = new byte[hashSize];
+            readKey(index, key);
+            return key;
+        }
+
+        private void readKey(int index, byte[] key) {
+            int position = entryPosition(index);
+            // absolute reads, the buffer is shared by concurrent readers
+            for (int i = 0; i < hashSize; i++)
+                key[i] = buffer.get(position + i);
+        }
+
+        long getLocation(int index) {
+            return buffer.getLong(entryPosition(index) + hashSize);
+        }
+
+        Long get(byte[] key) {
+            byte[] probe = new byte[hashSize];
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                readKey(middle, probe);
+                int comparison = BaseBPlusTree.compareKeys(probe, key);
+                if (comparison < 0)
+                    low = middle + 1;
+                else if (comparison > 0)
+                    high = middle - 1;
+                else
+                    return getLocation(middle);
+            }
+            return null;
+        }
+
+        IEntryIterator iterator() {
+            return new IEntryIterator() {
+                int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < count;
+                }
+
+                @Override
+                public BaseBPlusTree.Entry<Long> next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    BaseBPlusTree.Entry<Long> entry = new BaseBPlusTree.Entry<>(getKey(index), getLocation(index));
+                    index++;
+                    return entry;
+                }
+            };
+        }
+    }
+
+    /**
+     * Merges sorted iterators with disjoint keys.
+     */
+    static private class MergeIterator implements IEntryIterator {
+        final private List<IEntryIterator> iterators;
+        final private List<BaseBPlusTree.Entry<Long>> heads = new ArrayList<>();
+
+        MergeIterator(List<IEntryIterator> iterators) {
+            this.iterators = iterators;
+            for (IEntryIterator iterator : iterators)
+                heads.add(iterator.hasNext() ? iterator.next() : null);
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (BaseBPlusTree.Entry<Long> head : heads) {
+                if (head != null)
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public BaseBPlusTree.Entry<Long> next() {
+            int smallest = -1;
+            for (int i = 0; i < heads.size(); i++) {
+                BaseBPlusTree.Entry<Long> head = heads.get(i);
+                if (head == null)
+                    continue;
+                if (smallest < 0 || BaseBPlusTree.compareKeys(head.key, heads.get(smallest).key) < 0)
+                    smallest = i;
+            }
+            if (smallest < 0)
+                throw new NoSuchElementException();
+            BaseBPlusTree.Entry<Long> entry = heads.get(smallest);
+            IEntryIterator iterator = iterators.get(smallest);
+            heads.set(smallest, iterator.hasNext() ? iterator.next() : null);
+            return entry;
+        }
+    }
+
+    public class ChunkStoreIterator extends ReadLockedIterator {
+        final private IEntryIterator iterator;
+        final private boolean readData;
+
+        ChunkStoreIterator(boolean readData) {
+            // the read lock is held from here on
+            this.readData = readData;
+            this.iterator = entryIterator();
+        }
+
+        @Override
+        protected boolean hasNextEntry() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        protected ChunkStore.Entry nextEntry() {
+            BaseBPlusTree.Entry<Long> next = iterator.next();
+            if (!readData)
+                return new ChunkStore.Entry(new HashValue(next.key), null);
+            byte[] chunk;
+            try {
+                chunk = readChunk(next.data, next.key);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            return new ChunkStore.Entry(new HashValue(next.key), chunk);
+        }
+    }
+
+    final private File dir;
+    final private String name;
+    private boolean isOpen = false;
+    private long maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+    private int memtableSize = DEFAULT_MEMTABLE_SIZE;
+
+    /**
+     * Protects the segment list, the current segment, the index file list and the manifest. Modifications of the
+     * memtable and the index file list additionally need the write lock.
+     */
+    final private Object segmentLock = new Object();
+    final private Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private Segment currentSegment;
+    private int nextFileId = 0;
+    private int replaySegment;
+    private long replayOffset;
+    private List<IndexFile> indexFiles = new ArrayList<>();
+    final private TreeMap<byte[], Long> memtable = new TreeMap<>(BaseBPlusTree.KEY_COMPARATOR);
+    private boolean isCompacting = false;
+    // error of the last background compaction, null if it succeeded
+    private IOException compactionError;
+
+    public LogChunkStoreEngine(File dir, String name) {
+        super(LockBucket.getInstance().getReadWriteLock(new File(dir, name).getPath()));
+        this.dir = dir;
+        this.name = name;
+    }
+
+    static public boolean exists(File dir, String name) {
+        return getManifestFile(dir, name).exists();
+    }
+
+    static private File getManifestFile(File dir, String name) {
+        return new File(dir, name + ".manifest");
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(dir, name + "." + id + ".log");
+    }
+
+    private File getIndexFile(int id) {
+        return new File(dir, name + "." + id + ".sst");
+    }
+
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        synchronized (segmentLock) {
+            this.maxSegmentSize = maxSegmentSize;
+        }
+    }
+
+    /**
+     * @param memtableSize number of committed entries that are kept in memory before they are written to an index file
+     */
+    public void setMemtableSize(int memtableSize) {
+        try {
+            lockWrite();
+            this.memtableSize = memtableSize;
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    public int getIndexFileCount() {
+        try {
+            lockRead();
+            return indexFiles.size();
+        } finally {
+            unlockRead();
+        }
+    }
+
+    @Override
+    public void create(File dir, String name) throws IOException {
+        // keep the compaction out, it needs the write lock to finish
+        synchronized (segmentLock) {
+            waitForCompaction();
+            isCompacting = true;
+        }
+        try {
+            lockWrite();
+            clearStagedChunks();
+            synchronized (segmentLock) {
+                for (Segment segment : segments.values())
+                    segment.randomAccessFile.close();
+                segments.clear();
+                indexFiles = new ArrayList<>();
+                memtable.clear();
+                deleteFiles();
+                nextFileId = 0;
+
+                currentSegment = createSegment();
+                replaySegment = currentSegment.id;
+                replayOffset = currentSegment.packFile.length();
+                writeManifest();
+            }
+            isOpen = true;
+        } finally {
+            unlockWrite();
+            synchronized (segmentLock) {
+                isCompacting = false;
+                segmentLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void open(File dir, String name) throws IOException {
+        try {
+            lockWrite();
+            // the engine is shared, only recover on the first open to not discard data of open transactions
+            if (isOpen)
+                return;
+            synchronized (segmentLock) {
+                readManifest();
+                recover();
+            }
+            isOpen = true;
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * Deletes all files of the store, including files that are not referenced by the manifest.
+     */
+    private void deleteFiles() {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.startsWith(name + "."))
+                continue;
+            String suffix = fileName.substring(name.length() + 1);
+            if (suffix.equals("manifest") || suffix.equals("manifest.tmp") || suffix.matches("[0-9]+\\.(log|sst)"))
+                file.delete();
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        int id = nextFileId++;
+        Segment segment = new Segment(id, getSegmentFile(id));
+        segment.packFile.create(ChunkStore.hashSize());
+        segment.packFile.sync();
+        segments.put(segment.id, segment);
+        return segment;
+    }
+
+    private List<Integer> getSegmentIds() {
+        List<Integer> ids = new ArrayList<>(segments.keySet());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private void writeManifest() throws IOException {
+        File tmpFile = new File(dir, name + ".manifest.tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            outputStream.writeInt(MANIFEST_MAGIC);
+            outputStream.writeShort(VERSION);
+            outputStream.writeInt(nextFileId);
+            outputStream.writeInt(replaySegment);
+            outputStream.writeLong(replayOffset);
+            List<Integer> segmentIds = getSegmentIds();
+            outputStream.writeInt(segmentIds.size());
+            for (Integer id : segmentIds)
+                outputStream.writeInt(id);
+            outputStream.writeInt(indexFiles.size());
+            for (IndexFile indexFile : indexFiles)
+                outputStream.writeInt(indexFile.id);
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        Files.move(tmpFile.toPath(), getManifestFile(dir, name).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void readManifest() throws IOException {
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(getManifestFile(dir, name))));
+        try {
+            if (inputStream.readInt() != MANIFEST_MAGIC)
+                throw new IOException("Invalid chunk store manifest");
+            inputStream.readShort();
+            nextFileId = inputStream.readInt();
+            replaySegment = inputStream.readInt();
+            replayOffset = inputStream.readLong();
+            int nSegments = inputStream.readInt();
+            for (int i = 0; i < nSegments; i++) {
+                int id = inputStream.readInt();
+                Segment segment = new Segment(id, getSegmentFile(id));
+                segment.packFile.open();
+                segments.put(id, segment);
+                currentSegment = segment;
+            }
+            int nIndexFiles = inputStream.readInt();
+            indexFiles = new ArrayList<>();
+            for (int i = 0; i < nIndexFiles; i++) {
+                int id = inputStream.readInt();
+                indexFiles.add(IndexFile.open(id, getIndexFile(id)));
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Replays the commit records into the memtable and discards everything after the last commit record, i.e. the
+     * data of transactions that have not been committed before a crash.
+     */
+    private void recover() throws IOException {
+        int endSegment = replaySegment;
+        long endOffset = replayOffset;
+        scan:
+        for (Integer id : getSegmentIds()) {
+            if (id < replaySegment)
+                continue;
+            PackFile packFile = segments.get(id).packFile;
+            long position = id == replaySegment ? replayOffset : packFile.headerSize();
+            long length = packFile.length();
+            while (position < length) {
+                byte[] hash;
+                byte[] data;
+                try {
+                    hash = packFile.getHash(position);
+                    data = packFile.get(position, null);
+                } catch (IOException e) {
+                    // torn write
+                    break scan;
+                }
+                position += packFile.entrySize(data.length);
+                if (!Arrays.equals(hash, COMMIT_MARKER))
+                    continue;
+                List<BaseBPlusTree.Entry<Long>> entries = readCommitRecord(data);
+                if (entries == null)
+                    break scan;
+                for (BaseBPlusTree.Entry<Long> entry : entries)
+                    memtable.put(entry.key, entry.data);
+                endSegment = id;
+                endOffset = position;
+            }
+        }
+
+        Segment lastCommitSegment = segments.get(endSegment);
+        lastCommitSegment.packFile.truncate(endOffset);
+        boolean segmentsChanged = false;
+        for (Integer id : getSegmentIds()) {
+            if (id <= endSegment)
+                continue;
+            Segment segment = segments.remove(id);
+            segment.randomAccessFile.close();
+            segment.file.delete();
+            segmentsChanged = true;
+        }
+        currentSegment = lastCommitSegment;
+        if (segmentsChanged)
+            writeManifest();
+    }
+
+    private byte[] writeCommitRecord(List<BaseBPlusTree.Entry<Long>> entries) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeInt(entries.size());
+        for (BaseBPlusTree.Entry<Long> entry : entries) {
+            dataOutputStream.write(entry.key);
+            dataOutputStream.writeLong(entry.data);
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(outputStream.toByteArray());
+        dataOutputStream.writeLong(crc32.getValue());
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @return the entries or null if the record is corrupted
+     */
+    private List<BaseBPlusTree.Entry<Long>> readCommitRecord(byte[] data) throws IOException {
+        if (data.length < 4 + 8)
+            return null;
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length - 8);
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
+        int count = inputStream.readInt();
+        if (count < 0 || data.length != 4 + (long)count * (ChunkStore.hashSize() + 8) + 8)
+            return null;
+        List<BaseBPlusTree.Entry<Long>> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[ChunkStore.hashSize()];
+            inputStream.readFully(key);
+            entries.add(new BaseBPlusTree.Entry<>(key, inputStream.readLong()));
+        }
+        if (inputStream.readLong() != crc32.getValue())
+            return null;
+        return entries;
+    }
+
+    @Override
+    public long size() {
+        try {
+            lockRead();
+            long size = memtable.size();
+            for (IndexFile indexFile : indexFiles)
+                size += indexFile.count;
+            return size;
+        } finally {
+            unlockRead();
+        }
+    }
+
+    private List<BaseBPlusTree.Entry<Long>> memtableEntries() {
+        List<BaseBPlusTree.Entry<Long>> entries = new ArrayList<>(memtable.size());
+        for (Map.Entry<byte[], Long> entry : memtable.entrySet())
+            entries.add(new BaseBPlusTree.Entry<>(entry.getKey(), entry.getValue()));
+        return entries;
+    }
+
+    @Override
+    public ChunkStore.IChunkStoreIterator iterator() throws IOException {
+        return iterator(true);
+    }
+
+    @Override
+    public ChunkStore.IChunkStoreIterator iterator(boolean readData) throws IOException {
+        return new ChunkStoreIterator(readData);
+    }
+
+    /**
+     * Iterates all committed entries in key order. Called with the read lock held.
+     */
+    private IEntryIterator entryIterator() {
+        List<IEntryIterator> iterators = new ArrayList<>();
+        for (IndexFile indexFile : indexFiles)
+            iterators.add(indexFile.iterator());
+        iterators.add(iterate(memtableEntries()));
+        return new MergeIterator(iterators);
+    }
+
+    @Override
+    protected Long getLocation(byte[] hash) throws IOException {
+        Long location = memtable.get(hash);
+        if (location != null)
+            return location;
+        // newest first
+        for (int i = indexFiles.size() - 1; i >= 0; i--) {
+            location = indexFiles.get(i).get(hash);
+            if (location != null)
+                return location;
+        }
+        return null;
+    }
+
+    @Override
+    protected List<Long> getLocations(List<byte[]> sortedKeys) throws IOException {
+        List<Long> locations = new ArrayList<>(sortedKeys.size());
+        for (byte[] key : sortedKeys)
+            locations.add(getLocation(key));
+        return locations;
+    }
+
+    @Override
+    protected byte[] readChunk(long location, byte[] hash) throws IOException {
+        Segment segment = segments.get(getSegment(location));
+        if (segment == null)
+            throw new IOException("Missing log segment " + getSegment(location));
+        return segment.packFile.get(getOffset(location), hash);
+    }
+
+    @Override
+    protected long[] writeChunks(List<HashValue> hashes, List<byte[]> data) throws IOException {
+        synchronized (segmentLock) {
+            if (currentSegment.packFile.length() >= maxSegmentSize)
+                rollSegment();
+            PackFile packFile = currentSegment.packFile;
+            long end = packFile.length();
+            long[] positions;
+            try {
+                positions = packFile.put(hashes, data);
+            } catch (IOException e) {
+                // don't leave a partial entry in the middle of the log
+                packFile.truncate(end);
+                throw e;
+            }
+            long[] locations = new long[positions.length];
+            for (int i = 0; i < positions.length; i++)
+                locations[i] = toLocation(currentSegment.id, positions[i]);
+            return locations;
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        currentSegment.packFile.sync();
+        currentSegment = createSegment();
+        writeManifest();
+    }
+
+    /**
+     * A failed background compaction leaves the index files as they were, i.e. the store is still consistent and the
+     * compaction is retried after the next memtable flush.
+     *
+     * @return the error of the last background compaction or null if it succeeded
+     */
+    public IOException getCompactionError() {
+        synchronized (segmentLock) {
+            return compactionError;
+        }
+    }
+
+    @Override
+    protected void writeCommit(List<Map.Entry<HashValue, Long>> entries) throws IOException {
+        List<BaseBPlusTree.Entry<Long>> newEntries = new ArrayList<>();
+        byte[] previous = null;
+        for (Map.Entry<HashValue, Long> entry : entries) {
+            byte[] key = entry.getKey().getBytes();
+            // the same chunk might be committed by multiple transactions of the group
+            if (previous != null && Arrays.equals(previous, key))
+                continue;
+            previous = key;
+            if (getLocation(key) != null)
+                continue;
+            newEntries.add(new BaseBPlusTree.Entry<>(key, entry.getValue()));
+        }
+        if (newEntries.size() == 0)
+            return;
+
+        byte[] record = writeCommitRecord(newEntries);
+        synchronized (segmentLock) {
+            // chunks in older segments have been synced when the segment was rolled
+            PackFile packFile = currentSegment.packFile;
+            long end = packFile.length();
+            try {
+                packFile.put(new HashValue(COMMIT_MARKER), record);
+                packFile.sync();
+            } catch (IOException e) {
+                packFile.truncate(end);
+                throw e;
+            }
+        }
+
+        for (BaseBPlusTree.Entry<Long> entry : newEntries)
+            memtable.put(entry.key, entry.data);
+        if (memtable.size() >= memtableSize)
+            flushMemtable();
+    }
+
+    /**
+     * Writes the memtable to a new index file. Called with the write lock held.
+     */
+    private void flushMemtable() throws IOException {
+        int id;
+        synchronized (segmentLock) {
+            id = nextFileId++;
+        }
+        IndexFile indexFile = IndexFile.write(id, getIndexFile(id), ChunkStore.hashSize(), memtable.size(),
+                iterate(memtableEntries()));
+        synchronized (segmentLock) {
+            List<IndexFile> newIndexFiles = new ArrayList<>(indexFiles);
+            newIndexFiles.add(indexFile);
+            indexFiles = newIndexFiles;
+            // all commit records up to here are in index files now
+            replaySegment = currentSegment.id;
+            replayOffset = currentSegment.packFile.length();
+            writeManifest();
+        }
+        memtable.clear();
+        scheduleCompaction();
+    }
+
+    static private int getSizeTier(IndexFile indexFile) {
+        int tier = 0;
+        for (long count = indexFile.count; count >= COMPACTION_FAN_IN; count /= COMPACTION_FAN_IN)
+            tier++;
+        return tier;
+    }
+
+    /**
+     * @return the index files of the lowest size tier that has enough files to be merged or null
+     */
+    private List<IndexFile> getCompactionGroup() {
+        Map<Integer, List<IndexFile>> tiers = new TreeMap<>();
+        for (IndexFile indexFile : indexFiles) {
+            int tier = getSizeTier(indexFile);
+            List<IndexFile> tierFiles = tiers.get(tier);
+            if (tierFiles == null) {
+                tierFiles = new ArrayList<>();
+                tiers.put(tier, tierFiles);
+            }
+            tierFiles.add(indexFile);
+        }
+        for (List<IndexFile> tierFiles : tiers.values()) {
+            if (tierFiles.size() < COMPACTION_FAN_IN)
+                continue;
+            long count = 0;
+            for (IndexFile indexFile : tierFiles)
+                count += indexFile.count;
+            if (count <= IndexFile.MAX_ENTRIES)
+                return tierFiles;
+        }
+        return null;
+    }
+
+    private void scheduleCompaction() {
+        synchronized (segmentLock) {
+            if (isCompacting || getCompactionGroup() == null)
+                return;
+        }
+        compactionExecutor.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                IOException error = null;
+                try {
+                    compact();
+                } catch (IOException e) {
+                    error = e;
+                    LOG.log(Level.WARNING, "Background compaction failed", e);
+                }
+                synchronized (segmentLock) {
+                    compactionError = error;
+                }
+            }
+        });
+    }
+
+    private void waitForCompaction() throws InterruptedIOException {
+        while (isCompacting) {
+            try {
+                segmentLock.wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for the compaction");
+            }
+        }
+    }
+
+    /**
+     * Merges index files until no size tier has enough files left.
+     */
+    public void compact() throws IOException {
+        while (true) {
+            List<IndexFile> group;
+            int id;
+            synchronized (segmentLock) {
+                waitForCompaction();
+                group = getCompactionGroup();
+                if (group == null)
+                    return;
+                isCompacting = true;
+                id = nextFileId++;
+            }
+            try {
+                mergeIndexFiles(group, id);
+            } finally {
+                synchronized (segmentLock) {
+                    isCompacting = false;
+                    segmentLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void mergeIndexFiles(List<IndexFile> group, int id) throws IOException {
+        // the index files are immutable, i.e. no lock is needed for merging
+        int count = 0;
+        List<IEntryIterator> iterators = new ArrayList<>();
+        for (IndexFile indexFile : group) {
+            count += indexFile.count;
+            iterators.add(indexFile.iterator());
+        }
+        IndexFile merged;
+        try {
+            merged = IndexFile.write(id, getIndexFile(id), ChunkStore.hashSize(), count, new MergeIterator(iterators));
+        } catch (IOException e) {
+            getIndexFile(id).delete();
+            throw e;
+        }
+
+        try {
+            lockWrite();
+            synchronized (segmentLock) {
+                List<IndexFile> newIndexFiles = new ArrayList<>(indexFiles);
+                newIndexFiles.removeAll(group);
+                // merged entries are older than the ones in the remaining files
+                newIndexFiles.add(0, merged);
+                indexFiles = newIndexFiles;
+                writeManifest();
+            }
+        } finally {
+            unlockWrite();
+        }
+        for (IndexFile indexFile : group)
+            indexFile.file.delete();
+    }
+
+    @Override
+    public ChunkStore.SweepResult finishGarbageCollection(Set<HashValue> reachable) throws IOException {
+        // keep the compaction out, it needs the write lock to finish
+        synchronized (segmentLock) {
+            waitForCompaction();
+            isCompacting = true;
+        }
+        try {
+            return super.finishGarbageCollection(reachable);
+        } finally {
+            synchronized (segmentLock) {
+                isCompacting = false;
+                segmentLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    protected long getDataSize() throws IOException {
+        long size = 0;
+        for (Segment segment : segments.values())
+            size += segment.packFile.length();
+        return size;
+    }
+
+    /**
+     * Copies the retained chunks into new segments and writes a new set of index files. The new files are swapped in
+     * by writing the manifest. Segments that are created during the rewrite don't contain commit records, i.e. they
+     * are discarded on open if the rewrite is interrupted.
+     */
+    @Override
+    protected void rewrite(IChunkFilter filter, Map<HashValue, Long> staged) throws IOException {
+        Map<Integer, Segment> oldSegments = new HashMap<>(segments);
+        Segment oldCurrentSegment = currentSegment;
+        List<IndexFile> oldIndexFiles = indexFiles;
+        List<IndexFile> newIndexFiles = new ArrayList<>();
+        try {
+            synchronized (segmentLock) {
+                currentSegment = createSegment();
+            }
+
+            List<BaseBPlusTree.Entry<Long>> retained = new ArrayList<>();
+            List<byte[]> keys = new ArrayList<>();
+            List<HashValue> hashes = new ArrayList<>();
+            List<byte[]> data = new ArrayList<>();
+            long batchSize = 0;
+            IEntryIterator iterator = entryIterator();
+            while (iterator.hasNext()) {
+                BaseBPlusTree.Entry<Long> entry = iterator.next();
+                HashValue hash = new HashValue(entry.key);
+                if (!filter.retain(hash))
+                    continue;
+                byte[] chunk = readChunk(entry.data, entry.key);
+                keys.add(entry.key);
+                hashes.add(hash);
+                data.add(chunk);
+                batchSize += chunk.length;
+                if (batchSize >= DEFAULT_WRITE_BATCH_SIZE) {
+                    copyChunks(keys, hashes, data, retained);
+                    batchSize = 0;
+                }
+            }
+            copyChunks(keys, hashes, data, retained);
+
+            for (Map.Entry<HashValue, Long> entry : staged.entrySet()) {
+                byte[] chunk = readChunk(entry.getValue(), entry.getKey().getBytes());
+                entry.setValue(writeChunks(Collections.singletonList(entry.getKey()),
+                        Collections.singletonList(chunk))[0]);
+            }
+            currentSegment.packFile.sync();
+
+            // the retained entries are in key order
+            for (int start = 0; start < retained.size(); start += IndexFile.MAX_ENTRIES) {
+                int end = (int)Math.min(retained.size(), start + IndexFile.MAX_ENTRIES);
+                int id;
+                synchronized (segmentLock) {
+                    id = nextFileId++;
+                }
+                newIndexFiles.add(IndexFile.write(id, getIndexFile(id), ChunkStore.hashSize(), end - start,
+                        iterate(retained.subList(start, end))));
+            }
+
+            synchronized (segmentLock) {
+                indexFiles = newIndexFiles;
+                segments.keySet().removeAll(oldSegments.keySet());
+                replaySegment = currentSegment.id;
+                replayOffset = currentSegment.packFile.length();
+                writeManifest();
+            }
+        } catch (IOException e) {
+            synchronized (segmentLock) {
+                indexFiles = oldIndexFiles;
+                for (Segment segment : segments.values()) {
+                    if (oldSegments.containsKey(segment.id))
+                        continue;
+                    segment.randomAccessFile.close();
+                    segment.file.delete();
+                }
+                segments.clear();
+                segments.putAll(oldSegments);
+                currentSegment = oldCurrentSegment;
+            }
+            for (IndexFile indexFile : newIndexFiles)
+                indexFile.file.delete();
+            throw e;
+        }
+        memtable.clear();
+
+        for (Segment segment : oldSegments.values()) {
+            segment.randomAccessFile.close();
+            segment.file.delete();
+        }
+        for (IndexFile indexFile : oldIndexFiles)
+            indexFile.file.delete();
+    }
+
+    private void copyChunks(List<byte[]> keys, List<HashValue> hashes, List<byte[]> data,
+                            List<BaseBPlusTree.Entry<Long>> retained) throws IOException {
+        if (hashes.size() == 0)
+            return;
+        long[] locations = writeChunks(hashes, data);
+        for (int i = 0; i < locations.length; i++)
+            retained.add(new BaseBPlusTree.Entry<>(keys.get(i), locations[i]));
+        keys.clear();
+        hashes.clear();
+        data.clear();
+    }
+
+    @Override
+    public TileCache<?> getIndexCache() {
+        return null;
+    }
+}
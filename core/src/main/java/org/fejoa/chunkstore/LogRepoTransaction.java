@@ -54,24 +54,39 @@ public class LogRepoTransaction implements IRepoChunkAccessors.ITransaction {
         childTransaction.cancel();
     }
 
-    private IChunkAccessor createWrapper(final IChunkAccessor chunkAccessor) {
-        return new IChunkAccessor() {
-            @Override
-            public DataInputStream getChunk(ChunkPointer hash) throws IOException, CryptoException {
-                return chunkAccessor.getChunk(hash);
-            }
-
-            @Override
-            public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException, CryptoException {
-                PutResult<HashValue> result = chunkAccessor.putChunk(data, ivHash);
-                if (!result.wasInDatabase)
+    /**
+     * Keeps track of the written objects.
+     *
+     * The wrapper is a cache provider and, if the wrapped accessor is, a parallel accessor, so that containers still
+     * find their shared cache and store their chunks in parallel.
+     */
+    private class Wrapper implements IChunkAccessor, IChunkCacheProvider {
+        final private IChunkAccessor chunkAccessor;
+
+        Wrapper(IChunkAccessor chunkAccessor) {
+            this.chunkAccessor = chunkAccessor;
+        }
+
+        @Override
+        public DataInputStream getChunk(ChunkPointer hash) throws IOException, CryptoException {
+            return chunkAccessor.getChunk(hash);
+        }
+
+        @Override
+        public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException, CryptoException {
+            PutResult<HashValue> result = chunkAccessor.putChunk(data, ivHash);
+            if (!result.wasInDatabase) {
+                synchronized (objectsWritten) {
                     objectsWritten.add(result.key);
-
-                return result;
+                }
             }
 
-            @Override
-            public void releaseChunk(HashValue data) {
+            return result;
+        }
+
+        @Override
+        public void releaseChunk(HashValue data) {
+            synchronized (objectsWritten) {
                 for (HashValue written : objectsWritten) {
                     if (!written.equals(data))
                         continue;
@@ -79,7 +94,26 @@ public class LogRepoTransaction implements IRepoChunkAccessors.ITransaction {
                     break;
                 }
             }
-        };
+        }
+
+        @Override
+        public ChunkContainerCache getContainerCache() {
+            if (chunkAccessor instanceof IChunkCacheProvider)
+                return ((IChunkCacheProvider)chunkAccessor).getContainerCache();
+            return null;
+        }
+    }
+
+    private class ParallelWrapper extends Wrapper implements IParallelChunkAccessor {
+        ParallelWrapper(IChunkAccessor chunkAccessor) {
+            super(chunkAccessor);
+        }
+    }
+
+    private IChunkAccessor createWrapper(final IChunkAccessor chunkAccessor) {
+        if (chunkAccessor instanceof IParallelChunkAccessor)
+            return new ParallelWrapper(chunkAccessor);
+        return new Wrapper(chunkAccessor);
     }
 
     public List<HashValue> getObjectsWritten() {
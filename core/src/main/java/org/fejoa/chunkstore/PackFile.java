@@ -9,17 +9,68 @@ package org.fejoa.chunkstore;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
+/**
+ * Append only file of (hash, length, data) entries.
+ *
+ * Writes go through the RandomAccessFile while reads use read only memory mappings of the file. The file is mapped in
+ * segments so that offsets beyond 2GB are supported. Reads don't touch the shared file pointer and can thus be done
+ * concurrently to other reads and to appending writes.
+ *
+ * Data that has been appended after the last mapping is read with positional reads. The file is only remapped once the
+ * unmapped tail is as large as the mapped part, i.e. the mapping grows geometrically and interleaved puts and gets
+ * don't create a new mapping per read. Truncating waits for all running reads so that no reader accesses a mapping
+ * beyond the end of the file.
+ */
 public class PackFile {
+    final static private int DEFAULT_SEGMENT_SIZE = 1 << 30;
+    // don't remap for small tails
+    final static private long DEFAULT_MIN_REMAP_SIZE = 1 << 20;
+
+    /**
+     * Immutable snapshot of the mapped file region.
+     */
+    static private class MappedRegion {
+        final MappedByteBuffer[] segments;
+        final long length;
+
+        MappedRegion(MappedByteBuffer[] segments, long length) {
+            this.segments = segments;
+            this.length = length;
+        }
+    }
+
     private boolean isOpen;
     private short version;
     private short hashSize;
     final private RandomAccessFile file;
+    final private int segmentSize;
+    final private long minRemapSize;
+    private volatile MappedRegion mappedRegion = new MappedRegion(new MappedByteBuffer[0], 0);
+    // readers hold the read lock, truncate holds the write lock
+    final private ReadWriteLock readLock = new ReentrantReadWriteLock();
 
     public PackFile(RandomAccessFile file) {
+        this(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public PackFile(RandomAccessFile file, int segmentSize) {
+        this(file, segmentSize, DEFAULT_MIN_REMAP_SIZE);
+    }
+
+    PackFile(RandomAccessFile file, int segmentSize, long minRemapSize) {
         this.file = file;
+        this.segmentSize = segmentSize;
+        this.minRemapSize = minRemapSize;
         reset();
     }
 
@@ -34,6 +85,9 @@ public class PackFile {
         this.hashSize = (short)hashSize;
         this.isOpen = true;
 
+        synchronized (this) {
+            mappedRegion = new MappedRegion(new MappedByteBuffer[0], 0);
+        }
         file.setLength(0);
         writeHeader();
     }
@@ -42,6 +96,7 @@ public class PackFile {
         if (isOpen)
             return;
         readHeader();
+        isOpen = true;
     }
 
     private void readHeader() throws IOException {
@@ -56,29 +111,189 @@ public class PackFile {
         file.writeShort(hashSize);
     }
 
-    private long headerSize() {
-        return 2 * 4;
+    /**
+     * The size of the file header, i.e. the position of the first entry.
+     */
+    public long headerSize() {
+        // version + hash size
+        return 2 + 2;
+    }
+
+    synchronized public long length() throws IOException {
+        return file.length();
+    }
+
+    public void sync() throws IOException {
+        file.getFD().sync();
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Discards all data beyond length, e.g. data of uncommitted transactions.
+     */
+    synchronized public void truncate(long length) throws IOException {
+        if (length >= file.length())
+            return;
+        readLock.writeLock().lock();
+        try {
+            mappedRegion = new MappedRegion(new MappedByteBuffer[0], 0);
+            file.setLength(length);
+        } finally {
+            readLock.writeLock().unlock();
+        }
     }
 
     public long put(HashValue hash, byte[] data) throws IOException {
-        long position = file.length();
-        file.seek(position);
-        file.write(hash.getBytes());
-        file.writeInt(data.length);
-        file.write(data);
-        return position;
-    }
-
-    public byte[] get(int position, byte[] expectedHash) throws IOException {
-        file.seek(position);
-        byte[] hash = new byte[hashSize];
-        file.readFully(hash);
-        if (expectedHash != null && !Arrays.equals(expectedHash, hash))
-            throw new IOException("Unexpected chunk at position " + position);
-
-        int length = file.readInt();
-        byte[] data = new byte[length];
-        file.readFully(data);
-        return data;
+        return put(Collections.singletonList(hash), Collections.singletonList(data))[0];
+    }
+
+    /**
+     * Appends many entries using a single gathering write.
+     *
+     * @return the positions of the entries
+     */
+    synchronized public long[] put(List<HashValue> hashes, List<byte[]> data) throws IOException {
+        long[] positions = new long[hashes.size()];
+        ByteBuffer[] buffers = new ByteBuffer[2 * hashes.size()];
+        long start = file.length();
+        long position = start;
+        for (int i = 0; i < hashes.size(); i++) {
+            byte[] hash = hashes.get(i).getBytes();
+            byte[] chunk = data.get(i);
+            ByteBuffer header = ByteBuffer.allocate(hash.length + 4);
+            header.put(hash);
+            header.putInt(chunk.length);
+            header.flip();
+            buffers[2 * i] = header;
+            buffers[2 * i + 1] = ByteBuffer.wrap(chunk);
+            positions[i] = position;
+            position += hash.length + 4 + chunk.length;
+        }
+
+        FileChannel channel = file.getChannel();
+        channel.position(start);
+        int offset = 0;
+        long remaining = position - start;
+        while (remaining > 0) {
+            while (!buffers[offset].hasRemaining())
+                offset++;
+            remaining -= channel.write(buffers, offset, buffers.length - offset);
+        }
+        return positions;
+    }
+
+    /**
+     * Reads the hash of the entry at position.
+     */
+    public byte[] getHash(long position) throws IOException {
+        readLock.readLock().lock();
+        try {
+            byte[] hash = new byte[hashSize];
+            read(getMappedRegion(position + hashSize), position, hash, 0, hashSize);
+            return hash;
+        } finally {
+            readLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the size of an entry with the given data length
+     */
+    public long entrySize(int dataLength) {
+        return hashSize + 4 + dataLength;
+    }
+
+    public byte[] get(long position, byte[] expectedHash) throws IOException {
+        readLock.readLock().lock();
+        try {
+            long lengthPosition = position + hashSize;
+            MappedRegion region = getMappedRegion(lengthPosition + 4);
+            byte[] header = new byte[hashSize + 4];
+            read(region, position, header, 0, header.length);
+            if (expectedHash != null && !Arrays.equals(Arrays.copyOf(header, hashSize), expectedHash))
+                throw new IOException("Unexpected chunk at position " + position);
+
+            int length = ByteBuffer.wrap(header, hashSize, 4).getInt();
+            if (length < 0)
+                throw new IOException("Invalid chunk length at position " + position);
+
+            long dataPosition = lengthPosition + 4;
+            if (dataPosition + length > region.length)
+                region = getMappedRegion(dataPosition + length);
+            byte[] data = new byte[length];
+            read(region, dataPosition, data, 0, length);
+            return data;
+        } finally {
+            readLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the mapped region to read the range [0, end) from. The region may not cover the whole range; the rest is
+     * read from the file.
+     */
+    private MappedRegion getMappedRegion(long end) throws IOException {
+        MappedRegion region = mappedRegion;
+        if (end <= region.length)
+            return region;
+        long fileLength = file.getChannel().size();
+        if (end > fileLength)
+            throw new IOException("Position " + end + " is beyond the end of the pack file");
+        if (fileLength - region.length < Math.max(region.length, minRemapSize))
+            return region;
+        return remap();
+    }
+
+    synchronized private MappedRegion remap() throws IOException {
+        MappedRegion region = mappedRegion;
+        FileChannel channel = file.getChannel();
+        long fileLength = channel.size();
+        if (fileLength - region.length < Math.max(region.length, minRemapSize))
+            return region;
+
+        int nSegments = (int)((fileLength + segmentSize - 1) / segmentSize);
+        MappedByteBuffer[] segments = new MappedByteBuffer[nSegments];
+        // full segments never change and can be reused
+        int nReused = (int)(region.length / segmentSize);
+        System.arraycopy(region.segments, 0, segments, 0, nReused);
+        for (int i = nReused; i < nSegments; i++) {
+            long segmentStart = (long)i * segmentSize;
+            long size = Math.min(segmentSize, fileLength - segmentStart);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, size);
+        }
+        region = new MappedRegion(segments, fileLength);
+        mappedRegion = region;
+        return region;
+    }
+
+    long getMappedLength() {
+        return mappedRegion.length;
+    }
+
+    private void read(MappedRegion region, long position, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0 && position < region.length) {
+            int segmentIndex = (int)(position / segmentSize);
+            int inSegmentPosition = (int)(position % segmentSize);
+            // duplicate to not share the buffer position with concurrent readers
+            ByteBuffer segment = region.segments[segmentIndex].duplicate();
+            segment.position(inSegmentPosition);
+            int chunk = Math.min(length, segment.remaining());
+            segment.get(buffer, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+        // the unmapped tail; positional reads don't touch the file pointer
+        ByteBuffer tail = ByteBuffer.wrap(buffer, offset, length);
+        FileChannel channel = file.getChannel();
+        while (tail.hasRemaining()) {
+            int bytesRead = channel.read(tail, position);
+            if (bytesRead < 0)
+                throw new IOException("Unexpected end of the pack file");
+            position += bytesRead;
+        }
     }
 }
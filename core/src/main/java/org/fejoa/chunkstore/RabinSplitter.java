@@ -15,22 +15,99 @@ import java.util.Map;
 
 
 public class RabinSplitter extends ChunkSplitter {
+    /**
+     * Window that keeps its byte history in a plain array so that a whole buffer can be scanned with the state in local
+     * variables.
+     */
+    static private class Window extends RabinFingerprintLongWindowed {
+        final private byte[] history;
+        private int historyPosition;
+        private int historyLength;
+
+        public Window(Polynomial poly, int windowSize) {
+            super(poly, windowSize);
+            this.history = new byte[windowSize];
+        }
+
+        public Window(Window that) {
+            super(that);
+            this.history = new byte[that.history.length];
+        }
+
+        @Override
+        public void pushByte(byte b) {
+            int j = (int) ((fingerprint >> shift) & 0x1FF);
+            fingerprint = ((fingerprint << 8) | (b & 0xFF)) ^ pushTable[j];
+            if (historyLength == history.length)
+                fingerprint ^= popTable[history[historyPosition] & 0xFF];
+            else
+                historyLength++;
+            history[historyPosition] = b;
+            historyPosition++;
+            if (historyPosition == history.length)
+                historyPosition = 0;
+        }
+
+        /**
+         * Pushes bytes till the masked fingerprint is smaller than the threshold.
+         *
+         * @return the offset after the last pushed byte
+         */
+        public int pushUntil(byte[] buffer, int offset, int end, long threshold) {
+            final long[] pushTable = this.pushTable;
+            final long[] popTable = this.popTable;
+            final int shift = this.shift;
+            final byte[] history = this.history;
+            long fingerprint = this.fingerprint;
+            int position = historyPosition;
+            int length = historyLength;
+
+            int i = offset;
+            while (i < end) {
+                byte b = buffer[i++];
+                fingerprint = ((fingerprint << 8) | (b & 0xFF)) ^ pushTable[(int) ((fingerprint >> shift) & 0x1FF)];
+                if (length == history.length)
+                    fingerprint ^= popTable[history[position] & 0xFF];
+                else
+                    length++;
+                history[position] = b;
+                position++;
+                if (position == history.length)
+                    position = 0;
+                if ((fingerprint & MASK) < threshold)
+                    break;
+            }
+
+            this.fingerprint = fingerprint;
+            this.historyPosition = position;
+            this.historyLength = length;
+            return i;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            historyPosition = 0;
+            historyLength = 0;
+        }
+    }
+
     // Init the window is expensive so cache it this bucket and reuse it to create a new window.
     static private class WindowBucket {
-        final private Map<Integer, RabinFingerprintLongWindowed> bucket = new HashMap<>();
+        final private Map<Integer, Window> bucket = new HashMap<>();
 
-        public RabinFingerprintLongWindowed get(int windowSize) {
-            RabinFingerprintLongWindowed window = bucket.get(windowSize);
+        public Window get(int windowSize) {
+            Window window = bucket.get(windowSize);
             if (window != null)
-                return new RabinFingerprintLongWindowed(window);
-            window = new RabinFingerprintLongWindowed(Polynomial.createFromLong(9256118209264353l), windowSize);
+                return new Window(window);
+            window = new Window(Polynomial.createFromLong(9256118209264353l), windowSize);
             bucket.put(windowSize, window);
             return window;
         }
     }
 
     final static private WindowBucket bucket = new WindowBucket();
-    final private RabinFingerprintLongWindowed window;
+    final private Window window;
 
     final static public int CHUNK_1KB = 1024;
     final static public int CHUNK_8KB = 8 * CHUNK_1KB;
@@ -95,6 +172,34 @@ public class RabinSplitter extends ChunkSplitter {
         return false;
     }
 
+    @Override
+    protected int findBoundaryInternal(byte[] buffer, int offset, int length) {
+        final long threshold = MASK / targetChunkSize;
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (chunkSize < minChunkSize - windowSize - 1) {
+                // bytes in front of the window of the smallest chunk don't influence the fingerprint
+                int skip = (int)Math.min(end - i, minChunkSize - windowSize - 1 - chunkSize);
+                chunkSize += skip;
+                i += skip;
+            } else if (chunkSize < minChunkSize - 1) {
+                // the chunk would be too small, push the bytes without checking for a boundary
+                int n = (int)Math.min(end - i, minChunkSize - 1 - chunkSize);
+                i = window.pushUntil(buffer, i, i + n, 0);
+                chunkSize += n;
+            } else {
+                int n = (int)Math.min(end - i, Math.max(1, maxChunkSize - chunkSize));
+                int stop = window.pushUntil(buffer, i, i + n, threshold);
+                chunkSize += stop - i;
+                i = stop;
+                if (chunkSize >= maxChunkSize || (window.getFingerprintLong() & MASK) < threshold)
+                    return i;
+            }
+        }
+        return -1;
+    }
+
     @Override
     protected void resetInternal() {
         chunkSize = 0;
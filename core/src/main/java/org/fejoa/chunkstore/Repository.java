@@ -17,18 +17,39 @@ import java.util.Collection;
 
 
 public class Repository extends AsyncDatabase {
+    final private ChunkContainerCache containerCache;
+
     public Repository(File dir, String branch, HashValue commit, IRepoChunkAccessors chunkAccessors,
                       ICommitCallback commitCallback) throws IOException, CryptoException {
+        this(dir, branch, commit, chunkAccessors, commitCallback, null);
+    }
+
+    /**
+     * @param containerCache the cache that is shared by the containers of the chunk accessors, only used for stats
+     */
+    public Repository(File dir, String branch, HashValue commit, IRepoChunkAccessors chunkAccessors,
+                      ICommitCallback commitCallback, ChunkContainerCache containerCache)
+            throws IOException, CryptoException {
         super(new SyncRepository(dir, branch, commit, chunkAccessors, commitCallback));
+        this.containerCache = containerCache;
     }
 
     public Repository(File dir, String branch, IRepoChunkAccessors chunkAccessors,
                       ICommitCallback commitCallback) throws IOException, CryptoException {
         super(new SyncRepository(dir, branch, chunkAccessors, commitCallback));
+        this.containerCache = null;
     }
 
     public Repository(Repository parent, CommitBox headCommit) throws IOException, CryptoException {
         super(parent, new SyncRepository(parent.getSyncRepo(), headCommit));
+        this.containerCache = parent.containerCache;
+    }
+
+    /**
+     * Returns the cache of the containers of this repository or null if they use the default cache.
+     */
+    public ChunkContainerCache getContainerCache() {
+        return containerCache;
     }
 
     private SyncRepository getSyncRepo() {
@@ -74,6 +95,10 @@ public class Repository extends AsyncDatabase {
         return getSyncRepo().getCommitCache();
     }
 
+    public CommitGraph getCommitGraph() {
+        return getSyncRepo().getCommitGraph();
+    }
+
     public File getDir() {
         return getSyncRepo().getDir();
     }
@@ -32,6 +32,7 @@ class SyncRepository implements ISyncDatabase {
     private LogRepoTransaction transaction;
     private TreeAccessor treeAccessor;
     final private CommitCache commitCache;
+    final private CommitGraph commitGraph;
     final private ChunkSplitter chunkSplitter = new RabinSplitter();
 
     public SyncRepository(File dir, String branch, HashValue commit, IRepoChunkAccessors chunkAccessors,
@@ -42,6 +43,7 @@ class SyncRepository implements ISyncDatabase {
         this.transaction = new LogRepoTransaction(accessors.startTransaction());
         this.log = getLog(dir, branch);
         this.commitCallback = commitCallback;
+        this.commitGraph = getCommitGraph(dir, branch, commitCallback);
 
         ChunkContainerRef headCommitPointer = null;
         if (log.getLatest() != null)
@@ -54,7 +56,9 @@ class SyncRepository implements ISyncDatabase {
             root = FlatDirectoryBox.read(transaction.getTreeAccessor(headCommit.getTree()), headCommit.getTree());
         }
         this.treeAccessor = new TreeAccessor(root, transaction);
-        commitCache = new CommitCache(this);
+        commitCache = getCommitCache(dir, branch, commitGraph, commitCallback);
+        if (headCommit != null)
+            commitCache.add(headCommit);
 
         if (commit != null && !commit.isZero())
             setHeadCommit(commit);
@@ -76,7 +80,10 @@ class SyncRepository implements ISyncDatabase {
     }
 
     private void setHeadCommit(HashValue headCommit) throws IOException, CryptoException {
-        setHeadCommit(commitCache.getCommit(headCommit));
+        CommitBox commitBox = commitCache.getCommit(transaction, this.headCommit, headCommit);
+        if (commitBox == null)
+            throw new IOException("Commit not found: " + headCommit);
+        setHeadCommit(commitBox);
     }
 
     private void setHeadCommit(CommitBox headCommit) throws IOException, CryptoException {
@@ -94,6 +101,17 @@ class SyncRepository implements ISyncDatabase {
         return new ChunkStoreBranchLog(new File(getBranchDir(baseDir), branch));
     }
 
+    static public CommitGraph getCommitGraph(File baseDir, String branch, ICommitCallback commitCallback)
+            throws IOException {
+        // the graph file holds the plain commit hashes
+        return CommitGraph.open(new File(new File(baseDir, "commit-graphs"), branch), !commitCallback.isEncrypted());
+    }
+
+    static private CommitCache getCommitCache(File baseDir, String branch, CommitGraph commitGraph,
+                                              ICommitCallback commitCallback) throws IOException {
+        return CommitCache.open(new File(new File(baseDir, "commit-caches"), branch), commitGraph, commitCallback);
+    }
+
     public IRepoChunkAccessors.ITransaction getCurrentTransaction() {
         return transaction;
     }
@@ -124,6 +142,10 @@ class SyncRepository implements ISyncDatabase {
         return commitCache;
     }
 
+    public CommitGraph getCommitGraph() {
+        return commitGraph;
+    }
+
     @Override
     public HashValue getHash(String path) throws IOException, CryptoException {
         synchronized (this) {
@@ -131,10 +153,9 @@ class SyncRepository implements ISyncDatabase {
             if (!entry.isFile())
                 throw new IOException("Not a file path.");
             FileBox fileBox = (FileBox)entry.getObject();
-            if (fileBox == null) {
-                fileBox = FileBox.read(transaction.getFileAccessor(entry.getDataPointer(), path),
-                        entry.getDataPointer());
-            }
+            // the data hash of a stored container is kept in its ref, no need to read the container
+            if (fileBox == null)
+                return entry.getDataPointer().getDataHash();
             return fileBox.getDataContainer().hash();
         }
     }
@@ -221,10 +242,11 @@ class SyncRepository implements ISyncDatabase {
         List<String> paths = new ArrayList<>(openHandles.keySet());
         for (String path : paths) {
             for (ChunkContainerRandomDataAccess randomDataAccess : getOpenHandles(path)) {
-                if (!randomDataAccess.getMode().has(WRITE))
+                if (!randomDataAccess.isWritten())
                     continue;
                 randomDataAccess.flush();
                 treeAccessor.put(path, FileBox.create(randomDataAccess.getChunkContainer()));
+                randomDataAccess.setWritten(false);
             }
         }
         return treeAccessor.build();
@@ -309,8 +331,12 @@ class SyncRepository implements ISyncDatabase {
 
             @Override
             public void onClosed(ChunkContainerRandomDataAccess caller) throws IOException, CryptoException {
-                FileBox file = FileBox.create(caller.getChunkContainer());
-                treeAccessor.put(path, file);
+                // a handle that only read the data must not touch the tree
+                if (caller.isWritten()) {
+                    FileBox file = FileBox.create(caller.getChunkContainer());
+                    treeAccessor.put(path, file);
+                    caller.setWritten(false);
+                }
                 unregisterHandel(path, caller);
             }
         };
@@ -321,35 +347,35 @@ class SyncRepository implements ISyncDatabase {
         ChunkContainer chunkContainer = new ChunkContainer(transaction.getFileAccessor(ref, path), ref);
         ChunkContainerRandomDataAccess randomDataAccess = new ChunkContainerRandomDataAccess(chunkContainer,
                 openFlags, createIOCallback(path));
+        // the new (empty) file is stored even if nothing is written
+        randomDataAccess.setWritten(true);
         registerHandle(path, randomDataAccess);
         return randomDataAccess;
     }
 
-    // TODO: remove when ChunkContainer supports truncate
-    private void swapChunkContainer(String path, ChunkContainer chunkContainer) {
-        for (ChunkContainerRandomDataAccess randomDataAccess : getOpenHandles(path))
-            randomDataAccess.setChunkContainer(chunkContainer);
-    }
-
     @Override
     public ISyncRandomDataAccess open(String path, Mode openFlags) throws IOException, CryptoException {
         synchronized (this) {
-            // hacky way to do truncate, when ChunkContainer supports truncate this should be done on the chunk
-            // container
-            if (openFlags.has(TRUNCATE)) {
-                ChunkContainerRandomDataAccess randomDataAccess = createNewHandle(path, openFlags);
-                swapChunkContainer(path, randomDataAccess.getChunkContainer());
-                return randomDataAccess;
-            }
-
             ChunkContainer chunkContainer = findOpenChunkContainer(path);
             if (chunkContainer != null) {
                 ChunkContainerRandomDataAccess randomDataAccess = new ChunkContainerRandomDataAccess(chunkContainer,
                         openFlags, createIOCallback(path));
                 registerHandle(path, randomDataAccess);
+                // the other handles keep working on the truncated container
+                if (openFlags.has(TRUNCATE)) {
+                    randomDataAccess.truncate(0);
+                    for (ChunkContainerRandomDataAccess handle : getOpenHandles(path)) {
+                        if (handle != randomDataAccess)
+                            handle.onTruncated();
+                    }
+                }
                 return randomDataAccess;
             }
 
+            // nothing of the old file is kept, just start a new container
+            if (openFlags.has(TRUNCATE))
+                return createNewHandle(path, openFlags);
+
             try {
                 FileBox fileBox = treeAccessor.getFileBox(path);
                 chunkContainer = fileBox.getDataContainer();
@@ -458,11 +484,12 @@ class SyncRepository implements ISyncDatabase {
             }
             if (headCommit.getPlainHash().equals(otherBranch.getPlainHash()))
                 return MergeResult.FAST_FORWARD;
-            if (commitCache.isParent(headCommit.getPlainHash(), otherBranch.getPlainHash()))
+            if (commitCache.isAncestor(transaction, headCommit, otherBranch.getPlainHash(),
+                    headCommit.getPlainHash()))
                 return MergeResult.FAST_FORWARD;
 
-            CommonAncestorsFinder.Chains chains = CommonAncestorsFinder.find(transaction, headCommit, otherTransaction,
-                    otherBranch);
+            CommonAncestorsFinder.Chains chains = CommonAncestorsFinder.find(commitGraph, transaction, headCommit,
+                    otherTransaction, otherBranch);
             copyMissingCommits(headCommit, transaction, otherTransaction);
 
             CommonAncestorsFinder.SingleCommitChain shortestChain = chains.getShortestChain();
@@ -533,6 +560,8 @@ class SyncRepository implements ISyncDatabase {
             commitBox.setCommitMessage(message.getBytes());
             ChunkContainerRef ref = new ChunkContainerRef();
             ChunkContainerRef commitPointer = put(commitBox, transaction.getCommitAccessor(ref), ref);
+            commitGraph.index(transaction, commitBox);
+            commitCache.add(commitBox);
             headCommit = commitBox;
 
             transaction.finishTransaction();
@@ -554,8 +583,8 @@ class SyncRepository implements ISyncDatabase {
     @Override
     public DatabaseDiff getDiff(HashValue baseCommitHash, HashValue endCommitHash) throws IOException, CryptoException {
         synchronized (this) {
-            CommitBox baseCommit = commitCache.getCommit(baseCommitHash);
-            CommitBox endCommit = commitCache.getCommit(endCommitHash);
+            CommitBox baseCommit = commitCache.getCommit(transaction, headCommit, baseCommitHash);
+            CommitBox endCommit = commitCache.getCommit(transaction, headCommit, endCommitHash);
 
             DatabaseDiff databaseDiff = new DatabaseDiff(baseCommitHash, endCommitHash);
 
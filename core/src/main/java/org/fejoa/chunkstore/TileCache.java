@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded LRU cache for decoded tiles, keyed by the tile index.
+ *
+ * The cache is thread safe so that it can be used by concurrent readers.
+ *
+ * @param <Value> the decoded tile type
+ */
+public class TileCache<Value> {
+    final private LinkedHashMap<Long, Value> map = new LinkedHashMap<>(16, 0.75f, true);
+    private int capacity;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity max number of cached tiles, 0 disables the cache
+     */
+    public TileCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized public Value get(long index) {
+        Value value = map.get(index);
+        if (value == null)
+            misses++;
+        else
+            hits++;
+        return value;
+    }
+
+    synchronized public void put(long index, Value value) {
+        if (capacity <= 0)
+            return;
+        map.put(index, value);
+        evict();
+    }
+
+    synchronized public void invalidate(long index) {
+        map.remove(index);
+    }
+
+    synchronized public void clear() {
+        map.clear();
+    }
+
+    synchronized public int getCapacity() {
+        return capacity;
+    }
+
+    synchronized public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Long, Value>> iterator = map.entrySet().iterator();
+        while (map.size() > capacity && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    synchronized public int size() {
+        return map.size();
+    }
+
+    synchronized public long getHits() {
+        return hits;
+    }
+
+    synchronized public long getMisses() {
+        return misses;
+    }
+
+    synchronized public long getEvictions() {
+        return evictions;
+    }
+
+    synchronized public void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+
+/**
+ * Commit records of a chunk store.
+ *
+ * A record contains the committed length of the pack and index file and a copy of the index header. Records are
+ * written alternately into two fixed size slots and are protected by a checksum. Thus, a torn write never destroys the
+ * last valid record.
+ */
+public class TransactionJournal {
+    final static private int MAGIC = 0x464A4A4E;
+    final static private short VERSION = 1;
+    final static private int SLOT_SIZE = 256;
+
+    static public class Record {
+        final public long sequence;
+        final public long packLength;
+        final public long indexLength;
+        final public byte[] indexHeader;
+
+        public Record(long sequence, long packLength, long indexLength, byte[] indexHeader) {
+            this.sequence = sequence;
+            this.packLength = packLength;
+            this.indexLength = indexLength;
+            this.indexHeader = indexHeader;
+        }
+    }
+
+    final private RandomAccessFile file;
+    private long sequence = 0;
+
+    public TransactionJournal(RandomAccessFile file) {
+        this.file = file;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public void create() throws IOException {
+        sequence = 0;
+        file.setLength(0);
+    }
+
+    /**
+     * Reads the latest valid record.
+     *
+     * @return the latest record or null if there is no valid record
+     */
+    public Record read() throws IOException {
+        Record latest = null;
+        for (int slot = 0; slot < 2; slot++) {
+            Record record = readSlot(slot);
+            if (record == null)
+                continue;
+            if (latest == null || record.sequence > latest.sequence)
+                latest = record;
+        }
+        if (latest != null)
+            sequence = latest.sequence;
+        return latest;
+    }
+
+    /**
+     * Writes and syncs a new record.
+     *
+     * The data the record refers to must have been synced before.
+     */
+    public Record write(long packLength, long indexLength, byte[] indexHeader) throws IOException {
+        Record record = new Record(sequence + 1, packLength, indexLength, indexHeader);
+        byte[] data = serialize(record);
+        file.seek((record.sequence % 2) * SLOT_SIZE);
+        file.write(data);
+        file.getFD().sync();
+        sequence = record.sequence;
+        return record;
+    }
+
+    private byte[] serialize(Record record) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(SLOT_SIZE);
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeInt(MAGIC);
+        dataOutputStream.writeShort(VERSION);
+        dataOutputStream.writeLong(record.sequence);
+        dataOutputStream.writeLong(record.packLength);
+        dataOutputStream.writeLong(record.indexLength);
+        dataOutputStream.writeShort(record.indexHeader.length);
+        dataOutputStream.write(record.indexHeader);
+        CRC32 crc32 = new CRC32();
+        crc32.update(outputStream.toByteArray());
+        dataOutputStream.writeLong(crc32.getValue());
+        if (outputStream.size() > SLOT_SIZE)
+            throw new IOException("Journal record too large");
+        return outputStream.toByteArray();
+    }
+
+    private Record readSlot(int slot) throws IOException {
+        long slotStart = (long)slot * SLOT_SIZE;
+        if (file.length() <= slotStart)
+            return null;
+        byte[] data = new byte[(int)Math.min(SLOT_SIZE, file.length() - slotStart)];
+        file.seek(slotStart);
+        file.readFully(data);
+
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (inputStream.readInt() != MAGIC)
+                return null;
+            if (inputStream.readShort() != VERSION)
+                return null;
+            long sequence = inputStream.readLong();
+            long packLength = inputStream.readLong();
+            long indexLength = inputStream.readLong();
+            int headerLength = inputStream.readShort();
+            if (headerLength < 0 || headerLength > SLOT_SIZE)
+                return null;
+            byte[] indexHeader = new byte[headerLength];
+            inputStream.readFully(indexHeader);
+            int recordLength = data.length - inputStream.available();
+            long crc = inputStream.readLong();
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, 0, recordLength);
+            if (crc32.getValue() != crc)
+                return null;
+            return new Record(sequence, packLength, indexLength, indexHeader);
+        } catch (EOFException e) {
+            // torn record
+            return null;
+        }
+    }
+}
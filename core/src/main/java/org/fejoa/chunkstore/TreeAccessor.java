@@ -118,6 +118,9 @@ public class TreeAccessor {
     }
 
     public void put(String path, FileBox file) throws IOException, CryptoException {
+        // build() only writes new containers; an existing container that has been changed in place is written now
+        if (!file.getRef().getDataHash().isZero())
+            file.flush();
         FlatDirectoryBox.Entry entry = new FlatDirectoryBox.Entry(true);
         entry.setObject(file);
         entry.setDataPointer(file.getRef());
@@ -162,9 +165,10 @@ public class TreeAccessor {
 
         FlatDirectoryBox.Entry existingEntry = currentDir.getEntry(fileName);
         if (existingEntry != null) {
-            // check if something has changed
-            if (entry.getDataPointer() != null
-                    && currentDir.getEntry(fileName).getDataPointer().equals(entry.getDataPointer())) {
+            // check if something has changed; the same ref instance may have been changed in place, e.g. by writing
+            // to an opened file container
+            if (entry.getDataPointer() != null && existingEntry.getDataPointer() != entry.getDataPointer()
+                    && existingEntry.getDataPointer().equals(entry.getDataPointer())) {
                 return;
             }
         }
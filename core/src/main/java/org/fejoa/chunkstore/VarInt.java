@@ -75,12 +75,14 @@ public class VarInt {
                 continue;
             }
 
-            if (nextByte != 0)
+            // middle bytes can be zero, continue as long as higher bits are set
+            boolean hasMore = (number >>> i) != 0;
+            if (hasMore)
                 byteToWrite |= (0x1 << prevStepSize);
             outputStream.write(byteToWrite);
 
             byteToWrite = nextByte;
-            if (nextByte == 0)
+            if (!hasMore)
                 break;
         }
         if (byteToWrite != 0)
@@ -11,10 +11,9 @@ import org.fejoa.chunkstore.*;
 import org.fejoa.library.crypto.CryptoException;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
 
 
 abstract class Job {
@@ -138,8 +137,12 @@ class GetCommitJob extends GetChunkContainerJob {
         commitBox = CommitBox.read(chunkContainer);
 
         ChunkStore.Transaction rawTransaction = transaction.getRawAccessor();
+        List<HashValue> parentHashes = new ArrayList<>();
+        for (ChunkContainerRef parent : commitBox.getParents())
+            parentHashes.add(parent.getBox().getBoxHash());
+        Set<HashValue> existingParents = rawTransaction.contains(parentHashes);
         for (ChunkContainerRef parent : commitBox.getParents()) {
-            if (rawTransaction.contains(parent.getBox().getBoxHash()))
+            if (existingParents.contains(parent.getBox().getBoxHash()))
                 continue;
             chunkFetcher.enqueueJob(new GetCommitJob(this, transaction, parent));
         }
@@ -167,8 +170,12 @@ class GetDirJob extends GetChunkContainerJob {
         FlatDirectoryBox directoryBox = FlatDirectoryBox.read(chunkContainer);
 
         ChunkStore.Transaction rawTransaction = transaction.getRawAccessor();
+        List<HashValue> entryHashes = new ArrayList<>();
+        for (FlatDirectoryBox.Entry entry : directoryBox.getEntries())
+            entryHashes.add(entry.getDataPointer().getBox().getBoxHash());
+        Set<HashValue> existingEntries = rawTransaction.contains(entryHashes);
         for (FlatDirectoryBox.Entry entry : directoryBox.getEntries()) {
-            if (rawTransaction.contains(entry.getDataPointer().getBox().getBoxHash()))
+            if (existingEntries.contains(entry.getDataPointer().getBox().getBoxHash()))
                 continue;
             if (entry.isFile()) {
                 chunkFetcher.enqueueJob(new GetChunkContainerJob(this,
@@ -183,31 +190,49 @@ class GetDirJob extends GetChunkContainerJob {
 }
 
 
+/**
+ * Fetches the chunks requested by a set of jobs.
+ *
+ * The requested chunks are fetched in batches. Up to a window of batch requests are in flight while the chunks of the
+ * already arrived batches are decoded and the resulting jobs are queued. The batch size is adapted to the measured
+ * throughput of the backend.
+ */
 public class ChunkFetcher {
     interface IFetcherBackend {
         void fetch(ChunkStore.Transaction transaction, List<HashValue> requestedChunks) throws IOException;
     }
 
-    class ChunkRequest {
-        final private List<HashValue> requestedChunks = new ArrayList<>();
+    /**
+     * Fetches chunks from a local source. A latency can be added to each request, e.g. to simulate a remote source.
+     */
+    static class LocalFetcherBackend implements IFetcherBackend {
+        // number of chunks that are read from the source at once
+        final static private int LOCAL_FETCH_BATCH_SIZE = 256;
 
-        public ChunkRequest(List<Job> jobs) {
-            for (Job job : jobs)
-                requestedChunks.addAll(job.getRequestedChunks());
-        }
-    }
+        final private ChunkStore.Transaction source;
+        // in ms
+        final private long latency;
 
-    final private ChunkStore.Transaction transaction;
-    final private IFetcherBackend fetcherBackend;
-    private List<Job> ongoingJobs = new ArrayList<>();
+        public LocalFetcherBackend(ChunkStore.Transaction source, long latency) {
+            this.source = source;
+            this.latency = latency;
+        }
 
-    static public ChunkFetcher createLocalFetcher(final ChunkStore.Transaction target,
-                                                  final ChunkStore.Transaction source) {
-        return new ChunkFetcher(target, new IFetcherBackend() {
-            @Override
-            public void fetch(ChunkStore.Transaction target, List<HashValue> requestedChunks) throws IOException {
-                for (HashValue requestedChunk : requestedChunks) {
-                    byte[] buffer = source.getChunk(requestedChunk);
+        @Override
+        public void fetch(ChunkStore.Transaction target, List<HashValue> requestedChunks) throws IOException {
+            if (latency > 0) {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            for (int i = 0; i < requestedChunks.size(); i += LOCAL_FETCH_BATCH_SIZE) {
+                List<HashValue> batch = requestedChunks.subList(i,
+                        Math.min(i + LOCAL_FETCH_BATCH_SIZE, requestedChunks.size()));
+                Map<HashValue, byte[]> chunks = source.getChunks(batch);
+                for (HashValue requestedChunk : batch) {
+                    byte[] buffer = chunks.get(requestedChunk);
                     if (buffer == null)
                         throw new IOException("Requested chunk not found.");
                     PutResult<HashValue> result = target.put(buffer);
@@ -215,12 +240,78 @@ public class ChunkFetcher {
                         throw new IOException("Hash miss match.");
                 }
             }
-        });
+        }
+    }
+
+    /**
+     * The chunks of some jobs that are fetched in one backend request.
+     */
+    private class Batch implements Callable<Batch> {
+        final private List<Job> jobs = new ArrayList<>();
+        final private List<HashValue> requestedChunks = new ArrayList<>();
+        // in ns
+        private long duration;
+
+        void add(Job job) {
+            jobs.add(job);
+            requestedChunks.addAll(job.getRequestedChunks());
+        }
+
+        @Override
+        public Batch call() throws IOException {
+            long start = System.nanoTime();
+            fetcherBackend.fetch(transaction, requestedChunks);
+            duration = System.nanoTime() - start;
+            return this;
+        }
+    }
+
+    final static public int DEFAULT_WINDOW = 4;
+    final static public int MIN_BATCH_SIZE = 16;
+    final static public int MAX_BATCH_SIZE = 4096;
+    final static private int INITIAL_BATCH_SIZE = 64;
+    // the batch size is chosen so that a batch request takes about this long (in ns)
+    final static private long TARGET_BATCH_DURATION = 200L * 1000 * 1000;
+
+    final static private BackgroundExecutor fetchExecutor = new BackgroundExecutor("ChunkFetcher", 0);
+
+    final private ChunkStore.Transaction transaction;
+    final private IFetcherBackend fetcherBackend;
+    // max number of batch requests in flight
+    final private int window;
+    private int batchSize = INITIAL_BATCH_SIZE;
+    final private Deque<Job> pendingJobs = new ArrayDeque<>();
+
+    static public ChunkFetcher createLocalFetcher(final ChunkStore.Transaction target,
+                                                  final ChunkStore.Transaction source) {
+        return new ChunkFetcher(target, new LocalFetcherBackend(source, 0));
     }
 
     public ChunkFetcher(ChunkStore.Transaction transaction, IFetcherBackend fetcherBackend) {
+        this(transaction, fetcherBackend, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window max number of batch requests that are in flight, the backend must be able to handle that many
+     *               concurrent requests
+     */
+    public ChunkFetcher(ChunkStore.Transaction transaction, IFetcherBackend fetcherBackend, int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("Invalid window: " + window);
         this.transaction = transaction;
         this.fetcherBackend = fetcherBackend;
+        this.window = window;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the current number of chunks that are requested in one batch
+     */
+    public int getBatchSize() {
+        return batchSize;
     }
 
     public void enqueueGetCommitJob(IRepoChunkAccessors.ITransaction transaction, ChunkContainerRef commitPointer) {
@@ -228,19 +319,64 @@ public class ChunkFetcher {
     }
 
     public void enqueueJob(Job job) {
-        ongoingJobs.add(job);
+        pendingJobs.addLast(job);
     }
 
     public void fetch() throws IOException, CryptoException {
-        while (ongoingJobs.size() > 0) {
-            List<Job> currentJobs = ongoingJobs;
-            ongoingJobs = new ArrayList<>();
-
-            ChunkRequest chunkRequest = new ChunkRequest(currentJobs);
-            fetcherBackend.fetch(transaction, chunkRequest.requestedChunks);
-            for (Job job : currentJobs)
-                job.onChunksFetched(this);
+        CompletionService<Batch> completionService = new ExecutorCompletionService<>(fetchExecutor.get());
+        List<Future<Batch>> inFlight = new ArrayList<>();
+        try {
+            while (pendingJobs.size() > 0 || inFlight.size() > 0) {
+                while (inFlight.size() < window && pendingJobs.size() > 0)
+                    inFlight.add(completionService.submit(nextBatch()));
+
+                Future<Batch> arrived = take(completionService);
+                inFlight.remove(arrived);
+                Batch batch = BackgroundExecutor.waitFor(arrived);
+                updateBatchSize(batch);
+                // the other batches are in flight while the arrived chunks are decoded
+                for (Job job : batch.jobs)
+                    job.onChunksFetched(this);
+            }
+        } finally {
+            for (Future<Batch> future : inFlight)
+                future.cancel(true);
         }
         transaction.commit();
     }
+
+    private Batch nextBatch() {
+        Batch batch = new Batch();
+        // a job is never split, i.e. a batch may be larger than the batch size
+        while (pendingJobs.size() > 0 && batch.requestedChunks.size() < batchSize)
+            batch.add(pendingJobs.removeFirst());
+        return batch;
+    }
+
+    private void updateBatchSize(Batch batch) {
+        updateBatchSize(batch.requestedChunks.size(), batch.duration);
+    }
+
+    /**
+     * @param duration the time it took to fetch the chunks (in ns)
+     */
+    void updateBatchSize(int chunkCount, long duration) {
+        // a partial batch says little about the throughput
+        if (chunkCount < batchSize)
+            return;
+        // chunks per ns
+        double throughput = (double)chunkCount / Math.max(1, duration);
+        long size = (long)(throughput * TARGET_BATCH_DURATION);
+        // adapt gradually
+        size = Math.max(batchSize / 2, Math.min(2L * batchSize, size));
+        batchSize = (int)Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, size));
+    }
+
+    static private Future<Batch> take(CompletionService<Batch> completionService) throws IOException {
+        try {
+            return completionService.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
 }
@@ -11,9 +11,7 @@ import org.fejoa.chunkstore.*;
 import org.fejoa.library.crypto.CryptoException;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
 
 
 public class CommonAncestorsFinder {
@@ -106,13 +104,10 @@ public class CommonAncestorsFinder {
         }
     }
 
-    static private CommitBox findCommonAncestorInOthers(SingleCommitChain localChain, SingleCommitChain otherChain) {
-        //TODO: can be optimized by remembering which combinations we already checked, i.e. maintain a marker per chain
+    static private CommitBox findCommonAncestorInOthers(Set<HashValue> localCommits, SingleCommitChain otherChain) {
         for (CommitBox other : otherChain.commits) {
-            for (CommitBox local : localChain.commits) {
-                if (local.getPlainHash().equals(other.getPlainHash()))
-                    return other;
-            }
+            if (localCommits.contains(other.getPlainHash()))
+                return other;
         }
         return null;
     }
@@ -147,20 +142,72 @@ public class CommonAncestorsFinder {
             localChains.loadCommits(local, loadCommitsNumber);
             ongoingOthersChains.loadCommits(others, loadCommitsNumber);
 
+            Set<HashValue> localCommits = new HashSet<>();
             for (SingleCommitChain localChain : localChains.chains) {
-                Iterator<SingleCommitChain> iter = ongoingOthersChains.chains.iterator();
-                while (iter.hasNext()) {
-                    SingleCommitChain otherChain = iter.next();
-                    CommitBox commonAncestor = findCommonAncestorInOthers(localChain, otherChain);
-                    if (commonAncestor != null) {
-                        iter.remove();
-                        otherChain.truncate(commonAncestor);
-                        results.chains.add(otherChain);
-                    }
+                for (CommitBox commit : localChain.commits)
+                    localCommits.add(commit.getPlainHash());
+            }
+            Iterator<SingleCommitChain> iter = ongoingOthersChains.chains.iterator();
+            while (iter.hasNext()) {
+                SingleCommitChain otherChain = iter.next();
+                CommitBox commonAncestor = findCommonAncestorInOthers(localCommits, otherChain);
+                if (commonAncestor != null) {
+                    iter.remove();
+                    otherChain.truncate(commonAncestor);
+                    results.chains.add(otherChain);
                 }
             }
         }
 
         return results;
     }
+
+    /**
+     * Like find but the common ancestors are looked up in the commit graph. Only the commits of the returned chains
+     * (and commits that are not in the graph yet) are read.
+     */
+    static public Chains find(CommitGraph graph, IRepoChunkAccessors.ITransaction local, CommitBox localCommit,
+                              IRepoChunkAccessors.ITransaction others, CommitBox othersCommit)
+            throws IOException, CryptoException {
+        assert localCommit != null;
+        assert othersCommit != null;
+        int localIndex = graph.index(local, localCommit);
+        int othersIndex = graph.index(others, othersCommit);
+        CommitGraph.Difference difference = graph.getDifference(localIndex, othersIndex);
+
+        // follow all paths from the others commit till they reach a common commit
+        Map<HashValue, CommitBox> loaded = new HashMap<>();
+        Chains results = new Chains();
+        Deque<SingleCommitChain> ongoingChains = new ArrayDeque<>();
+        ongoingChains.add(new SingleCommitChain(othersCommit));
+        while (ongoingChains.size() > 0) {
+            SingleCommitChain chain = ongoingChains.removeFirst();
+            CommitBox oldest = chain.getOldest();
+            if (difference.boundary.contains(graph.getIndex(oldest.getPlainHash()))) {
+                results.chains.add(chain);
+                continue;
+            }
+            List<ChunkContainerRef> parents = oldest.getParents();
+            if (parents.size() == 0)
+                throw new IOException("No common ancestors.");
+            for (int p = 1; p < parents.size(); p++) {
+                SingleCommitChain clone = chain.clone();
+                clone.commits.add(loadCommit(others, parents.get(p), loaded));
+                ongoingChains.add(clone);
+            }
+            chain.commits.add(loadCommit(others, parents.get(0), loaded));
+            ongoingChains.addFirst(chain);
+        }
+        return results;
+    }
+
+    static private CommitBox loadCommit(IRepoChunkAccessors.ITransaction transaction, ChunkContainerRef ref,
+                                        Map<HashValue, CommitBox> loaded) throws IOException, CryptoException {
+        CommitBox commitBox = loaded.get(ref.getDataHash());
+        if (commitBox == null) {
+            commitBox = CommitBox.read(transaction.getCommitAccessor(ref), ref);
+            loaded.put(ref.getDataHash(), commitBox);
+        }
+        return commitBox;
+    }
 }
@@ -7,6 +7,7 @@
  */
 package org.fejoa.chunkstore.sync;
 
+import org.fejoa.chunkstore.BloomFilter;
 import org.fejoa.chunkstore.ChunkStore;
 import org.fejoa.chunkstore.Config;
 import org.fejoa.chunkstore.HashValue;
@@ -17,8 +18,10 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import static org.fejoa.chunkstore.sync.Request.HAS_CHUNKS;
+import static org.fejoa.chunkstore.sync.Request.HAS_CHUNKS_FILTER;
 import static org.fejoa.chunkstore.sync.Request.OK;
 
 
@@ -26,12 +29,18 @@ public class HasChunksHandler {
     public static void handleHasChunks(ChunkStore.Transaction transaction, IRemotePipe pipe,
                                        DataInputStream inputStream)
             throws IOException {
-        final List<HashValue> haveChunks = new ArrayList<>();
+        final List<HashValue> requestedChunks = new ArrayList<>();
         final int nChunks = inputStream.readInt();
         for (int i = 0; i < nChunks; i++) {
             HashValue hashValue = Config.newBoxHash();
             inputStream.readFully(hashValue.getBytes());
-            if (transaction.contains(hashValue))
+            requestedChunks.add(hashValue);
+        }
+
+        final Set<HashValue> containedChunks = transaction.contains(requestedChunks);
+        final List<HashValue> haveChunks = new ArrayList<>();
+        for (HashValue hashValue : requestedChunks) {
+            if (containedChunks.contains(hashValue))
                 haveChunks.add(hashValue);
         }
 
@@ -41,4 +50,29 @@ public class HasChunksHandler {
         for (HashValue hashValue : haveChunks)
             outputStream.write(hashValue.getBytes());
     }
+
+    /**
+     * Sends a filter over all chunks in the store if the filter is smaller than the hashes the client would send
+     * otherwise. If no filter is sent the client sends the hashes.
+     */
+    public static void handleHasChunksFilter(ChunkStore.Transaction transaction, IRemotePipe pipe,
+                                             DataInputStream inputStream) throws IOException {
+        final long candidateCount = inputStream.readLong();
+
+        long maxSize = candidateCount * ChunkStore.hashSize();
+        BloomFilter filter = null;
+        // the filter is at least sized for the current chunks, don't build it if it is too large anyway
+        long minFilterSize = BloomFilter.getSerializedSize(transaction.size(), BloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+        if (minFilterSize < maxSize) {
+            filter = transaction.getChunkStore().getChunkFilter();
+            if (filter.getSerializedSize() >= maxSize)
+                filter = null;
+        }
+
+        DataOutputStream outputStream = new DataOutputStream(pipe.getOutputStream());
+        Request.writeResponseHeader(outputStream, HAS_CHUNKS_FILTER, OK);
+        outputStream.writeBoolean(filter != null);
+        if (filter != null)
+            filter.write(outputStream);
+    }
 }
@@ -7,6 +7,8 @@
  */
 package org.fejoa.chunkstore.sync;
 
+import org.fejoa.chunkstore.BloomFilter;
+import org.fejoa.chunkstore.ChunkStore;
 import org.fejoa.chunkstore.Config;
 import org.fejoa.chunkstore.HashValue;
 import org.fejoa.library.remote.IRemotePipe;
@@ -18,9 +20,13 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static org.fejoa.chunkstore.sync.Request.HAS_CHUNKS;
+import static org.fejoa.chunkstore.sync.Request.HAS_CHUNKS_FILTER;
 
 
 public class HasChunksRequest {
+    // for fewer chunks the extra round trip of the filter negotiation doesn't pay off
+    final static public int FILTER_MIN_CHUNKS = 256;
+
     static public List<HashValue> hasChunks(IRemotePipe remotePipe, List<HashValue> chunks) throws IOException {
         DataOutputStream outputStream = new DataOutputStream(remotePipe.getOutputStream());
         Request.writeRequestHeader(outputStream, HAS_CHUNKS);
@@ -42,4 +48,44 @@ public class HasChunksRequest {
         }
         return hasChunks;
     }
+
+    /**
+     * Like hasChunks but for many chunks the remote is first asked for a filter over its chunks. Only the chunks that
+     * might be in the filter, i.e. that are possibly false positives, are then checked explicitly.
+     */
+    static public List<HashValue> hasChunksUsingFilter(IRemotePipe remotePipe, List<HashValue> chunks)
+            throws IOException {
+        if (chunks.size() < FILTER_MIN_CHUNKS)
+            return hasChunks(remotePipe, chunks);
+        BloomFilter filter = getFilter(remotePipe, chunks.size());
+        if (filter == null)
+            return hasChunks(remotePipe, chunks);
+
+        List<HashValue> candidates = new ArrayList<>();
+        for (HashValue chunk : chunks) {
+            if (filter.mightContain(chunk))
+                candidates.add(chunk);
+        }
+        if (candidates.size() == 0)
+            return candidates;
+        return hasChunks(remotePipe, candidates);
+    }
+
+    /**
+     * @return the filter or null if the remote prefers to check the hashes directly or if its filter is not smaller
+     * than the hashes
+     */
+    static private BloomFilter getFilter(IRemotePipe remotePipe, int candidateCount) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(remotePipe.getOutputStream());
+        Request.writeRequestHeader(outputStream, HAS_CHUNKS_FILTER);
+        outputStream.writeLong(candidateCount);
+
+        // reply
+        DataInputStream inputStream = new DataInputStream(remotePipe.getInputStream());
+        Request.receiveHeader(inputStream, HAS_CHUNKS_FILTER);
+        if (!inputStream.readBoolean())
+            return null;
+        // the filter is only sent if it is smaller than the hashes
+        return BloomFilter.read(inputStream, (long)candidateCount * ChunkStore.hashSize());
+    }
 }
@@ -17,9 +17,13 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 
 public class PullHandler {
+    // number of chunks that are read from the chunk store at once
+    final static private int GET_CHUNKS_BATCH_SIZE = 256;
+
     static public void handleGetChunks(ChunkStore.Transaction chunkStore, IRemotePipe pipe, DataInputStream inputStream)
             throws IOException {
         long nRequestedChunks = inputStream.readLong();
@@ -35,14 +39,19 @@ public class PullHandler {
 
         outputStream.writeLong(requestedChunks.size());
 
-        for (HashValue hashValue : requestedChunks) {
-            byte[] chunk = chunkStore.getChunk(hashValue);
-            //TODO: Return error if chunk is not found
-            if (chunk == null)
-                throw new IOException("Missing Chunk: " + hashValue.toHex());
-            outputStream.write(hashValue.getBytes());
-            outputStream.writeInt(chunk.length);
-            outputStream.write(chunk);
+        for (int i = 0; i < requestedChunks.size(); i += GET_CHUNKS_BATCH_SIZE) {
+            List<HashValue> batch = requestedChunks.subList(i,
+                    Math.min(i + GET_CHUNKS_BATCH_SIZE, requestedChunks.size()));
+            Map<HashValue, byte[]> chunks = chunkStore.getChunks(batch);
+            for (HashValue hashValue : batch) {
+                byte[] chunk = chunks.get(hashValue);
+                //TODO: Return error if chunk is not found
+                if (chunk == null)
+                    throw new IOException("Missing Chunk: " + hashValue.toHex());
+                outputStream.write(hashValue.getBytes());
+                outputStream.writeInt(chunk.length);
+                outputStream.write(chunk);
+            }
         }
     }
 
@@ -53,12 +62,15 @@ public class PullHandler {
 
         outputStream.writeLong(chunkStore.size());
         ChunkStore.IChunkStoreIterator iterator = chunkStore.iterator();
-        while (iterator.hasNext()) {
-            ChunkStore.Entry entry = iterator.next();
-            outputStream.write(entry.key.getBytes());
-            outputStream.writeInt(entry.data.length);
-            outputStream.write(entry.data);
+        try {
+            while (iterator.hasNext()) {
+                ChunkStore.Entry entry = iterator.next();
+                outputStream.write(entry.key.getBytes());
+                outputStream.writeInt(entry.data.length);
+                outputStream.write(entry.data);
+            }
+        } finally {
+            iterator.close();
         }
-        iterator.unlock();
     }
 }
@@ -61,7 +61,7 @@ public class PullRequest {
                         throw new IOException("Hash miss match. Expected:" + hashValue + ", Got: " + result.key);
                 }
             }
-        });
+        }, 1); // the pipe handles one request at a time
     }
 
     /**
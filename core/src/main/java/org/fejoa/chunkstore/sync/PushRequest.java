@@ -16,8 +16,7 @@ import org.fejoa.library.crypto.CryptoException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 
 public class PushRequest {
@@ -27,101 +26,147 @@ public class PushRequest {
         this.repository = repository;
     }
 
-    private void getChunkContainerNodeChildChunks(ChunkContainerNode node, IChunkAccessor accessor,
-                                                  List<HashValue> chunks) throws IOException, CryptoException {
-        for (IChunkPointer chunkPointer : node.getChunkPointers()) {
-            chunks.add(chunkPointer.getChunkPointer().getBoxHash());
-            if (!ChunkContainerNode.isDataPointer(chunkPointer)) {
-                ChunkContainerNode child = ChunkContainerNode.read(accessor, node, chunkPointer);
-                getChunkContainerNodeChildChunks(child, accessor, chunks);
-            }
-        }
-    }
-
-    private List<HashValue> collectDiffs(IRepoChunkAccessors.ITransaction transaction,
-                                         CommonAncestorsFinder.Chains chains)
+    private Set<HashValue> collectDiffs(IRepoChunkAccessors.ITransaction transaction,
+                                        CommonAncestorsFinder.Chains chains)
             throws IOException, CryptoException {
-        final List<HashValue> list = new ArrayList<>();
+        // keep the insertion order, i.e. commits first and parents before children
+        final Set<HashValue> chunks = new LinkedHashSet<>();
         for (CommonAncestorsFinder.SingleCommitChain chain : chains.chains)
-            collectDiffs(transaction, chain, list);
-        return list;
+            collectDiffs(transaction, chain, chunks);
+        return chunks;
     }
 
     private void collectDiffs(IRepoChunkAccessors.ITransaction transaction, CommitBox parent, CommitBox child,
-                              final List<HashValue> list) throws IOException, CryptoException {
+                              final Set<HashValue> chunks) throws IOException, CryptoException {
         // add the child commit
-        collectChunkContainer(child.getRef(), transaction.getCommitAccessor(child.getRef()), list);
+        collectChunkContainer(parent != null ? parent.getRef() : null,
+                parent != null ? transaction.getCommitAccessor(parent.getRef()) : null, child.getRef(),
+                transaction.getCommitAccessor(child.getRef()), chunks);
 
         // diff of the commit trees
-        FlatDirectoryBox parentDir = null;
-        if (parent != null)
-            parentDir = FlatDirectoryBox.read(transaction.getTreeAccessor(parent.getTree()), parent.getTree());
-        FlatDirectoryBox nextDir = FlatDirectoryBox.read(transaction.getTreeAccessor(child.getTree()), child.getTree());
+        collectDir("", parent != null ? parent.getTree() : null, child.getTree(), transaction, chunks);
+    }
 
-        // add root dir
-        collectChunkContainer(child.getTree(), transaction.getTreeAccessor(child.getTree()), list);
+    /**
+     * Collects the chunks of a directory and its content that are not in the parent directory.
+     *
+     * @param parentDirPointer the directory in the parent commit or null
+     */
+    private void collectDir(String path, ChunkContainerRef parentDirPointer, ChunkContainerRef dirPointer,
+                            IRepoChunkAccessors.ITransaction transaction, final Set<HashValue> chunks)
+            throws IOException, CryptoException {
+        IChunkAccessor parentDirAccessor = null;
+        FlatDirectoryBox parentDir = null;
+        if (parentDirPointer != null) {
+            parentDirAccessor = transaction.getTreeAccessor(parentDirPointer);
+            parentDir = FlatDirectoryBox.read(parentDirAccessor, parentDirPointer);
+        }
+        IChunkAccessor dirAccessor = transaction.getTreeAccessor(dirPointer);
+        collectChunkContainer(parentDirPointer, parentDirAccessor, dirPointer, dirAccessor, chunks);
+        FlatDirectoryBox dir = FlatDirectoryBox.read(dirAccessor, dirPointer);
 
-        DirBoxDiffIterator diffIterator = new DirBoxDiffIterator("", parentDir, nextDir);
+        DirBoxDiffIterator diffIterator = new DirBoxDiffIterator(path, parentDir, dir);
         while (diffIterator.hasNext()) {
             DirBoxDiffIterator.Change<FlatDirectoryBox.Entry> change = diffIterator.next();
             // we are only interesting in modified and added changes
             if (change.type == DiffIterator.Type.REMOVED)
                 continue;
 
-            if (change.theirs.isFile())
-                collectFile(transaction, change.theirs.getDataPointer(), change.path, list);
-            else
-                collectWholeDir(change.path, change.theirs.getDataPointer(), transaction, list);
+            ChunkContainerRef parentPointer = null;
+            if (change.type == DiffIterator.Type.MODIFIED && change.ours.isFile() == change.theirs.isFile())
+                parentPointer = change.ours.getDataPointer();
+            if (change.theirs.isFile()) {
+                IChunkAccessor parentAccessor = parentPointer != null
+                        ? transaction.getFileAccessor(parentPointer, change.path) : null;
+                collectChunkContainer(parentPointer, parentAccessor, change.theirs.getDataPointer(),
+                        transaction.getFileAccessor(change.theirs.getDataPointer(), change.path), chunks);
+            } else
+                collectDir(change.path, parentPointer, change.theirs.getDataPointer(), transaction, chunks);
         }
     }
 
-    private void add(final List<HashValue> list, HashValue pointer) {
-        if (!list.contains(pointer))
-            list.add(pointer);
-    }
-
-    private void collectFile(IRepoChunkAccessors.ITransaction transaction, ChunkContainerRef pointer, String path,
-                             final List<HashValue> list) throws IOException, CryptoException {
-        IChunkAccessor changeAccessor = transaction.getFileAccessor(pointer, path);
-        collectChunkContainer(pointer, changeAccessor, list);
-    }
+    /**
+     * Collects the chunks of a container that are not in the parent container.
+     *
+     * The containers are compared level by level. A pointer that is also in the parent container on the same level
+     * points to an identical subtree that doesn't need to be pushed. Only parent subtrees that differ from the child
+     * are loaded. Subtrees that have been collected for another container are not visited again.
+     *
+     * @param parentPointer the container in the parent commit or null to collect the whole container
+     */
+    private void collectChunkContainer(ChunkContainerRef parentPointer, IChunkAccessor parentAccessor,
+                                       ChunkContainerRef pointer, IChunkAccessor accessor,
+                                       final Set<HashValue> chunks) throws IOException, CryptoException {
+        if (parentPointer != null && parentPointer.getBoxHash().equals(pointer.getBoxHash()))
+            return;
+        if (!chunks.add(pointer.getBoxHash()))
+            return;
+
+        List<ChunkContainerNode> nodes = new ArrayList<>();
+        nodes.add(ChunkContainer.read(accessor, pointer));
+        List<ChunkContainerNode> parentNodes = new ArrayList<>();
+        if (parentPointer != null)
+            parentNodes.add(ChunkContainer.read(parentAccessor, parentPointer));
+
+        while (nodes.size() > 0) {
+            int level = nodes.get(0).getLevel();
+            while (parentNodes.size() > 0 && parentNodes.get(0).getLevel() > level)
+                parentNodes = readChildNodes(parentAccessor, parentNodes, Collections.<HashValue>emptySet());
+            boolean sameLevel = parentNodes.size() > 0 && parentNodes.get(0).getLevel() == level;
+            Set<HashValue> parentHashes = new HashSet<>();
+            if (sameLevel) {
+                for (ChunkContainerNode parentNode : parentNodes) {
+                    for (IChunkPointer chunkPointer : parentNode.getChunkPointers())
+                        parentHashes.add(chunkPointer.getChunkPointer().getBoxHash());
+                }
+            }
 
-    private void collectChunkContainer(ChunkContainerRef pointer, IChunkAccessor accessor,
-                                       final List<HashValue> list) throws IOException, CryptoException {
-        add(list, pointer.getBoxHash());
-        // TODO: be more efficient and calculate the container diff
-        ChunkContainer chunkContainer = ChunkContainer.read(accessor, pointer);
-        getChunkContainerNodeChildChunks(chunkContainer, accessor, list);
+            Set<HashValue> levelHashes = new HashSet<>();
+            List<ChunkContainerNode> childNodes = new ArrayList<>();
+            for (ChunkContainerNode node : nodes) {
+                for (IChunkPointer chunkPointer : node.getChunkPointers()) {
+                    HashValue boxHash = chunkPointer.getChunkPointer().getBoxHash();
+                    levelHashes.add(boxHash);
+                    if (parentHashes.contains(boxHash) || !chunks.add(boxHash))
+                        continue;
+                    if (!ChunkContainerNode.isDataPointer(chunkPointer))
+                        childNodes.add(ChunkContainerNode.read(accessor, node, chunkPointer));
+                }
+            }
+            nodes = childNodes;
+            if (sameLevel)
+                parentNodes = readChildNodes(parentAccessor, parentNodes, levelHashes);
+        }
     }
 
-    private void collectWholeDir(String path, ChunkContainerRef dirPointer,
-                                 IRepoChunkAccessors.ITransaction transaction, final List<HashValue> list)
-            throws IOException, CryptoException {
-        IChunkAccessor dirAccessor = transaction.getTreeAccessor(dirPointer);
-        collectChunkContainer(dirPointer, dirAccessor, list);
-
-        FlatDirectoryBox dir = FlatDirectoryBox.read(dirAccessor, dirPointer);
-        for (FlatDirectoryBox.Entry entry : dir.getEntries()) {
-            String childPath = StorageLib.appendDir(path, entry.getName());
-            if (entry.isFile())
-                collectFile(transaction, entry.getDataPointer(), childPath, list);
-            else {
-                collectWholeDir(childPath, entry.getDataPointer(), transaction, list);
+    /**
+     * @param skip hashes of child nodes that are not needed
+     */
+    private List<ChunkContainerNode> readChildNodes(IChunkAccessor accessor, List<ChunkContainerNode> nodes,
+                                                    Set<HashValue> skip) throws IOException, CryptoException {
+        List<ChunkContainerNode> childNodes = new ArrayList<>();
+        for (ChunkContainerNode node : nodes) {
+            for (IChunkPointer chunkPointer : node.getChunkPointers()) {
+                if (ChunkContainerNode.isDataPointer(chunkPointer)
+                        || skip.contains(chunkPointer.getChunkPointer().getBoxHash()))
+                    continue;
+                childNodes.add(ChunkContainerNode.read(accessor, node, chunkPointer));
             }
         }
+        return childNodes;
     }
 
     private void collectDiffs(IRepoChunkAccessors.ITransaction transaction,
                               CommonAncestorsFinder.SingleCommitChain chain,
-                              final List<HashValue> list)
+                              final Set<HashValue> chunks)
             throws IOException, CryptoException {
         for (int i = 0; i < chain.commits.size() - 1; i++) {
             CommitBox parent = chain.commits.get(i + 1);
             CommitBox child = chain.commits.get(i);
-            if (list.contains(child.getRef().getBoxHash()))
+            if (chunks.contains(child.getRef().getBoxHash()))
                 continue;
 
-            collectDiffs(transaction, parent, child, list);
+            collectDiffs(transaction, parent, child, chunks);
         }
     }
 
@@ -153,8 +198,8 @@ public class PushRequest {
             }
 
             assert headCommit != null;
-            chainsToPush = CommonAncestorsFinder.find(transaction, remoteCommit, transaction,
-                    headCommit);
+            chainsToPush = CommonAncestorsFinder.find(repository.getCommitGraph(), transaction, remoteCommit,
+                    transaction, headCommit);
 
             boolean remoteCommitIsCommonAncestor = false;
             for (CommonAncestorsFinder.SingleCommitChain chain : chainsToPush.chains) {
@@ -172,8 +217,8 @@ public class PushRequest {
                 chain.commits.add(chain.commits.size(), null);
         }
 
-        List<HashValue> chunks = collectDiffs(transaction, chainsToPush);
-        List<HashValue> remoteChunks = HasChunksRequest.hasChunks(remotePipe, chunks);
+        Set<HashValue> chunks = collectDiffs(transaction, chainsToPush);
+        List<HashValue> remoteChunks = HasChunksRequest.hasChunksUsingFilter(remotePipe, new ArrayList<>(chunks));
         for (HashValue chunk : remoteChunks)
             chunks.remove(chunk);
 
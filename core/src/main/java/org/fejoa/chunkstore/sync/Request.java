@@ -25,6 +25,7 @@ public class Request {
     static final public int PUT_CHUNKS = 4;
     static final public int HAS_CHUNKS = 5;
     static final public int GET_ALL_CHUNKS = 6;
+    static final public int HAS_CHUNKS_FILTER = 7;
 
     // errors
     static final public int ERROR = -1;
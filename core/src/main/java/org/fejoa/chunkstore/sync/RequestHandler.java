@@ -64,6 +64,7 @@ public class RequestHandler {
                 break;
             case Request.PUT_CHUNKS:
             case Request.HAS_CHUNKS:
+            case Request.HAS_CHUNKS_FILTER:
                 if ((accessRights & BranchAccessRight.PUSH) == 0)
                     return false;
                 break;
@@ -94,6 +95,9 @@ public class RequestHandler {
                 case Request.HAS_CHUNKS:
                     HasChunksHandler.handleHasChunks(chunkStore, pipe, inputStream);
                     break;
+                case Request.HAS_CHUNKS_FILTER:
+                    HasChunksHandler.handleHasChunksFilter(chunkStore, pipe, inputStream);
+                    break;
                 case Request.GET_ALL_CHUNKS:
                     PullHandler.handleGetAllChunks(chunkStore, pipe);
                     break;
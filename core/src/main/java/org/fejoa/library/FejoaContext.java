@@ -7,6 +7,7 @@
  */
 package org.fejoa.library;
 
+import org.fejoa.chunkstore.ChunkContainerCache;
 import org.fejoa.chunkstore.ChunkStoreBranchLog;
 import org.fejoa.chunkstore.Config;
 import org.fejoa.chunkstore.HashValue;
@@ -68,6 +69,8 @@ public class FejoaContext {
 
     // executes a task in the context thread
     private Executor contextExecutor;
+    // byte budget of the chunk container cache of each repository
+    private long containerCacheBudget = ChunkContainerCache.DEFAULT_BUDGET;
 
     public FejoaContext(String homeDir, Executor contextExecutor) {
         this(new File(homeDir), contextExecutor);
@@ -100,6 +103,24 @@ public class FejoaContext {
         return cryptoSettings;
     }
 
+    public long getContainerCacheBudget() {
+        return containerCacheBudget;
+    }
+
+    /**
+     * Sets the memory budget for the loaded chunks of each repository.
+     *
+     * Applies to repositories that are opened afterwards and to the already opened storage dirs of this context.
+     */
+    public void setContainerCacheBudget(long bytes) {
+        this.containerCacheBudget = bytes;
+        for (StorageDir storageDir : secureStorageDirs.values()) {
+            ChunkContainerCache cache = ((Repository)storageDir.getDatabase()).getContainerCache();
+            if (cache != null)
+                cache.setBudget(bytes);
+        }
+    }
+
 
     public StorageDir getPlainStorage(String branch) throws IOException, CryptoException {
         return getStorage(branch, null, null);
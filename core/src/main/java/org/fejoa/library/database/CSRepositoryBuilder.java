@@ -10,9 +10,11 @@ package org.fejoa.library.database;
 import org.fejoa.library.FejoaContext;
 import org.fejoa.library.SymmetricKeyData;
 import org.fejoa.library.crypto.CryptoException;
+import org.fejoa.library.crypto.CryptoHelper;
 import org.fejoa.library.crypto.ICryptoInterface;
 import org.apache.commons.codec.binary.Base64;
 import org.fejoa.chunkstore.*;
+import org.fejoa.library.support.StreamHelper;
 
 import java.io.*;
 import java.security.MessageDigest;
@@ -29,10 +31,12 @@ public class CSRepositoryBuilder {
             chunkStore = ChunkStore.open(dir, branch);
         else
             chunkStore = ChunkStore.create(dir, branch);
-        IRepoChunkAccessors accessors = getRepoChunkAccessors(context, chunkStore, keyData);
+        // shared by all containers of the repository
+        ChunkContainerCache containerCache = new ChunkContainerCache(context.getContainerCacheBudget());
+        IRepoChunkAccessors accessors = getRepoChunkAccessors(context, chunkStore, keyData, containerCache);
         ICommitCallback commitCallback = getCommitCallback(context, keyData);
 
-        return new Repository(dir, branch, commit, accessors, commitCallback);
+        return new Repository(dir, branch, commit, accessors, commitCallback, containerCache);
     }
 
     static public Repository openOrCreate(final FejoaContext context, File dir, String branch, SymmetricKeyData keyData)
@@ -125,6 +129,11 @@ public class CSRepositoryBuilder {
                 }
             }
 
+            @Override
+            public boolean isEncrypted() {
+                return true;
+            }
+
             @Override
             public ChunkContainerRef commitPointerFromLog(String logEntry) throws CryptoException {
                 try {
@@ -159,6 +168,11 @@ public class CSRepositoryBuilder {
                 return null;
             }
 
+            @Override
+            public boolean isEncrypted() {
+                return false;
+            }
+
             @Override
             public ChunkContainerRef commitPointerFromLog(String logEntry) {
                 byte[] logEntryBytes = Base64.decodeBase64(logEntry);
@@ -174,20 +188,48 @@ public class CSRepositoryBuilder {
     }
 
     static private IRepoChunkAccessors getRepoChunkAccessors(final FejoaContext context, final ChunkStore chunkStore,
-                                                             SymmetricKeyData keyData) throws IOException {
+                                                             SymmetricKeyData keyData,
+                                                             ChunkContainerCache containerCache) throws IOException {
         if (keyData == null)
-            return getPlainRepoChunkAccessors(chunkStore);
+            return getPlainRepoChunkAccessors(chunkStore, containerCache);
+
+        return getEncryptionAccessors(context, chunkStore, keyData, containerCache);
+    }
+
+    static private abstract class RepoChunkAccessor implements IChunkAccessor, IChunkCacheProvider {
+        final private ChunkContainerCache containerCache;
 
-        return getEncryptionAccessors(context, chunkStore, keyData);
+        RepoChunkAccessor(ChunkContainerCache containerCache) {
+            this.containerCache = containerCache;
+        }
+
+        @Override
+        public ChunkContainerCache getContainerCache() {
+            return containerCache;
+        }
+    }
+
+    static private abstract class ParallelRepoChunkAccessor extends RepoChunkAccessor
+            implements IParallelChunkAccessor {
+        ParallelRepoChunkAccessor(ChunkContainerCache containerCache) {
+            super(containerCache);
+        }
     }
 
     static private IChunkAccessor getEncryptionChunkAccessor(final FejoaContext context,
                                                              final ChunkStore.Transaction transaction,
                                                              final SymmetricKeyData keyData,
-                                                             final ChunkContainerRef ref) {
-        return new IChunkAccessor() {
+                                                             final ChunkContainerRef ref,
+                                                             ChunkContainerCache containerCache,
+                                                             final String keyId, final boolean priority) {
+        // encrypting and compressing is expensive, let the ChunkContainer store the data chunks in parallel
+        return new ParallelRepoChunkAccessor(containerCache) {
             final ICryptoInterface cryptoInterface = context.getCrypto();
 
+            private boolean isCompressed() {
+                return ref.getBoxHeader().getCompressionType() == BoxHeader.CompressionType.ZLIB_COMPRESSION;
+            }
+
             private byte[] getIv(byte[] hashValue) {
                 final int ivSizeBytes = keyData.settings.ivSize / 8;
                 byte[] iv = Arrays.copyOfRange(hashValue, 0, ivSizeBytes);
@@ -199,15 +241,24 @@ public class CSRepositoryBuilder {
 
             @Override
             public DataInputStream getChunk(ChunkPointer hash) throws IOException, CryptoException {
-                byte[] iv = getIv(hash.getIV());
-                byte[] chunkData = transaction.getChunk(hash.getBoxHash());
-                if (chunkData == null)
-                    throw new IOException("Chunk not found: " + hash.getBoxHash());
-                InputStream inputStream = new ByteArrayInputStream(chunkData);
-                inputStream = cryptoInterface.decryptSymmetric(inputStream, keyData.key, iv, keyData.settings);
-                if (ref.getBoxHeader().getCompressionType() == BoxHeader.CompressionType.ZLIB_COMPRESSION)
-                    inputStream = new InflaterInputStream(inputStream);
-                return new DataInputStream(inputStream);
+                boolean compressed = isCompressed();
+                // the decoded data also depends on the compression
+                String decodedKeyId = compressed ? keyId + ":zlib" : keyId;
+                DecodedChunkCache decodedCache = DecodedChunkCache.getDefault();
+                byte[] decoded = decodedCache.get(hash.getBoxHash(), decodedKeyId);
+                if (decoded == null) {
+                    byte[] iv = getIv(hash.getIV());
+                    byte[] chunkData = transaction.getChunk(hash.getBoxHash());
+                    if (chunkData == null)
+                        throw new IOException("Chunk not found: " + hash.getBoxHash());
+                    InputStream inputStream = new ByteArrayInputStream(chunkData);
+                    inputStream = cryptoInterface.decryptSymmetric(inputStream, keyData.key, iv, keyData.settings);
+                    if (compressed)
+                        inputStream = new InflaterInputStream(inputStream);
+                    decoded = StreamHelper.readAll(inputStream);
+                    decodedCache.put(hash.getBoxHash(), decodedKeyId, decoded, priority);
+                }
+                return new DataInputStream(new ByteArrayInputStream(decoded));
             }
 
             @Override
@@ -216,7 +267,7 @@ public class CSRepositoryBuilder {
                 OutputStream outputStream = byteOutputStream;
                 outputStream = cryptoInterface.encryptSymmetric(outputStream, keyData.key,
                         getIv(ivHash.getBytes()), keyData.settings);
-                if (ref.getBoxHeader().getCompressionType() == BoxHeader.CompressionType.ZLIB_COMPRESSION)
+                if (isCompressed())
                     outputStream = new DeflaterOutputStream(outputStream);
                 outputStream.write(data);
                 outputStream.close();
@@ -230,8 +281,25 @@ public class CSRepositoryBuilder {
         };
     }
 
+    /**
+     * Identifies the key in the DecodedChunkCache.
+     */
+    static private String getKeyId(SymmetricKeyData keyData) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            outputStream.write(keyData.key.getEncoded());
+            outputStream.write(keyData.iv);
+            outputStream.write(keyData.settings.algorithm.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return CryptoHelper.sha256HashHex(outputStream.toByteArray());
+    }
+
     static private IRepoChunkAccessors getEncryptionAccessors(final FejoaContext context, final ChunkStore chunkStore,
-                                                              final SymmetricKeyData keyData) {
+                                                              final SymmetricKeyData keyData,
+                                                              final ChunkContainerCache containerCache) {
+        final String keyId = getKeyId(keyData);
         return new IRepoChunkAccessors() {
             @Override
             public ITransaction startTransaction() throws IOException {
@@ -243,29 +311,33 @@ public class CSRepositoryBuilder {
 
                     @Override
                     public IChunkAccessor getCommitAccessor(ChunkContainerRef ref) {
-                        return getEncryptionChunkAccessor(context, transaction, keyData, ref);
+                        return getEncryptionChunkAccessor(context, transaction, keyData, ref, containerCache, keyId,
+                                true);
                     }
 
                     @Override
                     public IChunkAccessor getTreeAccessor(ChunkContainerRef ref) {
-                        return getEncryptionChunkAccessor(context, transaction, keyData, ref);
+                        return getEncryptionChunkAccessor(context, transaction, keyData, ref, containerCache, keyId,
+                                true);
                     }
 
                     @Override
                     public IChunkAccessor getFileAccessor(ChunkContainerRef ref, String filePath) {
-                        return getEncryptionChunkAccessor(context, transaction, keyData, ref);
+                        return getEncryptionChunkAccessor(context, transaction, keyData, ref, containerCache, keyId,
+                                false);
                     }
                 };
             }
         };
     }
 
-    static private IRepoChunkAccessors getPlainRepoChunkAccessors(final ChunkStore chunkStore) {
+    static private IRepoChunkAccessors getPlainRepoChunkAccessors(final ChunkStore chunkStore,
+                                                                  final ChunkContainerCache containerCache) {
         return new IRepoChunkAccessors() {
             @Override
             public ITransaction startTransaction() throws IOException {
                 return new RepoAccessorsTransactionBase(chunkStore) {
-                    final IChunkAccessor accessor = new IChunkAccessor() {
+                    final IChunkAccessor accessor = new RepoChunkAccessor(containerCache) {
                         @Override
                         public DataInputStream getChunk(ChunkPointer hash) throws IOException {
                             byte[] chunkData = transaction.getChunk(hash.getBoxHash());
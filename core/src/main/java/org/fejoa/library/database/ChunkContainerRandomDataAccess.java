@@ -30,6 +30,8 @@ public class ChunkContainerRandomDataAccess implements ISyncRandomDataAccess {
     final private IIOCallback callback;
 
     private long position = 0;
+    // if the data has been changed since the container has been put into the tree
+    private boolean written = false;
     private ChunkContainerInputStream inputStream = null;
     private ChunkContainerOutputStream outputStream = null;
 
@@ -44,12 +46,47 @@ public class ChunkContainerRandomDataAccess implements ISyncRandomDataAccess {
         return chunkContainer;
     }
 
-    // Discard all ongoing write action and set a new chunk container.
-    // TODO: This is temporary as long ChunkContainer does not support truncate.
-    public void setChunkContainer(ChunkContainer chunkContainer) {
+    /**
+     * @return true if the data has been changed through this handle and the container needs to be stored
+     */
+    public boolean isWritten() {
+        return written;
+    }
+
+    public void setWritten(boolean written) {
+        this.written = written;
+    }
+
+    /**
+     * Cuts the data at the given length.
+     *
+     * Ongoing writes of all handles are flushed first.
+     */
+    public void truncate(long length) throws IOException, CryptoException {
+        checkNotCanceled();
+        if (!mode.has(WRITE))
+            throw new IOException("Can't truncate in read only mode.");
+        callback.requestWrite(this);
+        if (inputStream != null) {
+            inputStream.close();
+            inputStream = null;
+        }
+        if (outputStream != null) {
+            outputStream.close();
+            outputStream = null;
+        }
+        chunkContainer.truncate(length);
+        written = true;
+        if (position > length)
+            position = length;
+    }
+
+    /**
+     * Called when another handle truncated the chunk container. Streams that may hold removed data are discarded.
+     */
+    public void onTruncated() {
         inputStream = null;
         outputStream = null;
-        this.chunkContainer = chunkContainer;
     }
 
     public void cancel() {
@@ -131,6 +168,7 @@ public class ChunkContainerRandomDataAccess implements ISyncRandomDataAccess {
     public void write(byte[] data, int offset, int length) throws IOException {
         prepareForWrite();
         outputStream.write(data, offset, length);
+        written = true;
         position += length;
     }
 
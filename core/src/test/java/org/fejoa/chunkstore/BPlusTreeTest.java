@@ -17,6 +17,7 @@ import org.fejoa.library.support.StorageLib;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.math.BigInteger;
 import java.util.*;
 
 
@@ -96,6 +97,31 @@ public class BPlusTreeTest extends TestCase {
         tree.validate();
     }
 
+    public void testPutIfAbsent() throws Exception {
+        String fileName = "putIfAbsent.idx";
+        cleanUpFiles.add(fileName);
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree bTree = new BPlusTree(file);
+        bTree.create((short)2, tileSize(2, 2, bTree));
+        TestTree tree = new TestTree(bTree);
+        for (int i = 1; i < 20; i++)
+            tree.put(String.format("%04x", i * 3), (long)i);
+
+        assertEquals((Long)4l, bTree.putIfAbsent(HashValue.fromHex("000c"), 100l));
+        assertEquals((Long)4l, bTree.putIfAbsent(HashValue.fromHex("000c"),
+                new BaseBPlusTree.IAddressSupplier<Long>() {
+                    @Override
+                    public Long get() throws IOException {
+                        throw new IOException("Address requested for an existing key");
+                    }
+                }));
+        assertNull(bTree.putIfAbsent(HashValue.fromHex("000d"), 13l));
+        tree.entries.put("000d", 13l);
+
+        tree.validate();
+    }
+
     public void testRemove() throws Exception {
         String fileName = "remove.idx";
         cleanUpFiles.add(fileName);
@@ -363,4 +389,79 @@ public class BPlusTreeTest extends TestCase {
         add(tree, generator, 50, added);
         validateIterator(bTree, added);
     }
+
+    public void testTileCache() throws IOException {
+        String fileName = "testTileCache.idx";
+        cleanUpFiles.add(fileName);
+
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        BPlusTree bTree = new BPlusTree(file);
+        bTree.create(32, 1024);
+        TileCache<?> cache = bTree.getTileCache();
+
+        TestTree tree = new TestTree(bTree);
+        Random generator = new Random(1);
+        add(tree, generator, 500, null);
+        assertTrue(bTree.getDepth() > 1);
+
+        cache.resetStatistics();
+        tree.validate();
+        assertTrue(cache.getHits() > 0);
+
+        // inserts rewrite and reuse tiles, the cache must not return stale tiles
+        add(tree, generator, 500, null);
+        tree.validate();
+
+        cache.setCapacity(2);
+        assertTrue(cache.size() <= 2);
+        assertTrue(cache.getEvictions() > 0);
+        add(tree, generator, 100, null);
+        tree.validate();
+
+        // reopen with a disabled cache
+        bTree = new BPlusTree(new RandomAccessFile(fileName, "rw"));
+        bTree.getTileCache().setCapacity(0);
+        bTree.open();
+        TestTree reopened = new TestTree(bTree);
+        reopened.entries.putAll(tree.entries);
+        reopened.validate();
+        assertEquals(0, bTree.getTileCache().size());
+    }
+
+    public void testKeyOrder() throws IOException {
+        // the key order must stay the BigInteger order of existing index files
+        Random generator = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            byte[] key1 = new byte[3];
+            byte[] key2 = new byte[3];
+            generator.nextBytes(key1);
+            generator.nextBytes(key2);
+            if (i % 3 == 0)
+                key2[0] = key1[0];
+            int expected = Integer.signum(new BigInteger(key1).compareTo(new BigInteger(key2)));
+            assertEquals(expected, Integer.signum(BaseBPlusTree.compareKeys(key1, key2)));
+        }
+
+        String fileName = "testKeyOrder.idx";
+        cleanUpFiles.add(fileName);
+
+        BPlusTree bTree = new BPlusTree(new RandomAccessFile(fileName, "rw"));
+        bTree.create((short)2, tileSize(2, 2, bTree));
+        TestTree tree = new TestTree(bTree);
+        String[] keys = {"8000", "7fff", "ff00", "0001", "80ff", "0100", "ffff", "0000", "7f00"};
+        for (int i = 0; i < keys.length; i++)
+            tree.put(keys[i], (long)i + 1);
+        tree.validate();
+        assertNull(bTree.get("8001"));
+        assertNull(bTree.get("00ff"));
+
+        BigInteger previous = null;
+        Iterator<BPlusTree.Entry<Long>> iterator = bTree.iterator();
+        while (iterator.hasNext()) {
+            BigInteger current = new BigInteger(iterator.next().key);
+            if (previous != null)
+                assertTrue(previous.compareTo(current) < 0);
+            previous = current;
+        }
+    }
 }
@@ -17,8 +17,10 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 
 public class BenchmarkTest extends TestCase {
@@ -376,4 +378,163 @@ public class BenchmarkTest extends TestCase {
         for (TestRun run : results)
             System.out.println(run);
     }
+
+    private double megaBytesPerSecond(long bytes, long nanoTime) {
+        return (bytes / (1024d * 1024d)) / (nanoTime / 1000000000d);
+    }
+
+    private long splitBytewise(ChunkSplitter splitter, byte[] data) {
+        long nChunks = 0;
+        splitter.reset();
+        for (int i = 0; i < data.length; i++) {
+            if (splitter.update(data[i])) {
+                nChunks++;
+                splitter.reset();
+            }
+        }
+        return nChunks;
+    }
+
+    private long split(ChunkSplitter splitter, byte[] data) {
+        long nChunks = 0;
+        splitter.reset();
+        int offset = 0;
+        while (offset < data.length) {
+            int boundary = splitter.findBoundary(data, offset, data.length - offset);
+            if (boundary < 0)
+                break;
+            nChunks++;
+            splitter.reset();
+            offset = boundary;
+        }
+        return nChunks;
+    }
+
+    public void testSplitterThroughput() {
+        byte[] data = new byte[1024 * 1024 * 32];
+        fillRandom(data, 1);
+        int[] chunkSizes = {
+                RabinSplitter.CHUNK_8KB,
+                RabinSplitter.CHUNK_16KB,
+                RabinSplitter.CHUNK_32KB,
+                RabinSplitter.CHUNK_64KB,
+                RabinSplitter.CHUNK_128KB
+        };
+        int nIterations = 3;
+
+        System.out.println("TargetSize, Bytewise [MB/s], FindBoundary [MB/s]");
+        for (int chunkSize : chunkSizes) {
+            ChunkSplitter splitter = new RabinSplitter(chunkSize, chunkSize / 4, chunkSize * 4);
+            // warm up
+            assertEquals(splitBytewise(splitter, data), split(splitter, data));
+
+            long bytewiseTime = 0;
+            long bulkTime = 0;
+            for (int i = 0; i < nIterations; i++) {
+                long start = System.nanoTime();
+                splitBytewise(splitter, data);
+                bytewiseTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                split(splitter, data);
+                bulkTime += System.nanoTime() - start;
+            }
+            long bytes = (long)nIterations * data.length;
+            System.out.println(chunkSize + ", " + megaBytesPerSecond(bytes, bytewiseTime) + ", "
+                    + megaBytesPerSecond(bytes, bulkTime));
+        }
+    }
+
+    /**
+     * Versions of a file where each version has some random insertions, deletions and overwrites.
+     */
+    private List<byte[]> createVersionCorpus(int size, int nVersions, int nEdits, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> versions = new ArrayList<>();
+        byte[] current = new byte[size];
+        fillRandom(current, seed);
+        versions.add(current);
+        for (int v = 1; v < nVersions; v++) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            int position = 0;
+            for (int e = 0; e < nEdits; e++) {
+                int next = position + random.nextInt(current.length / nEdits);
+                outputStream.write(current, position, next - position);
+                byte[] edit = new byte[1 + random.nextInt(256)];
+                random.nextBytes(edit);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        // insert
+                        outputStream.write(edit, 0, edit.length);
+                        position = next;
+                        break;
+                    case 1:
+                        // delete
+                        position = Math.min(current.length, next + edit.length);
+                        break;
+                    default:
+                        // overwrite
+                        outputStream.write(edit, 0, edit.length);
+                        position = Math.min(current.length, next + edit.length);
+                }
+            }
+            outputStream.write(current, position, current.length - position);
+            current = outputStream.toByteArray();
+            versions.add(current);
+        }
+        return versions;
+    }
+
+    public void testGearVsRabin() throws NoSuchAlgorithmException {
+        List<byte[]> corpus = createVersionCorpus(1024 * 1024 * 8, 8, 50, 1);
+        long totalSize = 0;
+        for (byte[] version : corpus)
+            totalSize += version.length;
+
+        ChunkSplitter[] splitters = {
+                new RabinSplitter(RabinSplitter.CHUNK_8KB, 2 * 1024, 64 * 1024),
+                new GearSplitter(2 * 1024, RabinSplitter.CHUNK_8KB, 64 * 1024)
+        };
+        MessageDigest messageDigest = CryptoHelper.sha256Hash();
+        System.out.println("Splitter, Throughput [MB/s], Chunks, Unique chunks, Deduplication ratio");
+        for (ChunkSplitter splitter : splitters) {
+            // warm up
+            split(splitter, corpus.get(0));
+
+            List<List<Integer>> boundaries = new ArrayList<>();
+            long start = System.nanoTime();
+            for (byte[] version : corpus) {
+                List<Integer> versionBoundaries = new ArrayList<>();
+                splitter.reset();
+                int offset = 0;
+                while (offset < version.length) {
+                    int boundary = splitter.findBoundary(version, offset, version.length - offset);
+                    if (boundary < 0)
+                        boundary = version.length;
+                    versionBoundaries.add(boundary);
+                    splitter.reset();
+                    offset = boundary;
+                }
+                boundaries.add(versionBoundaries);
+            }
+            long time = System.nanoTime() - start;
+
+            long nChunks = 0;
+            long uniqueSize = 0;
+            Set<HashValue> uniqueChunks = new HashSet<>();
+            for (int v = 0; v < corpus.size(); v++) {
+                int offset = 0;
+                for (int boundary : boundaries.get(v)) {
+                    messageDigest.reset();
+                    messageDigest.update(corpus.get(v), offset, boundary - offset);
+                    if (uniqueChunks.add(new HashValue(messageDigest.digest())))
+                        uniqueSize += boundary - offset;
+                    nChunks++;
+                    offset = boundary;
+                }
+            }
+            System.out.println(splitter.getClass().getSimpleName() + ", " + megaBytesPerSecond(totalSize, time)
+                    + ", " + nChunks + ", " + uniqueChunks.size() + ", " + (double)totalSize / uniqueSize);
+            assertTrue(uniqueSize < totalSize / 2);
+        }
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import junit.framework.TestCase;
+import org.fejoa.library.crypto.CryptoHelper;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class BloomFilterTest extends TestCase {
+    private List<HashValue> createHashes(String prefix, int count) {
+        List<HashValue> hashes = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            hashes.add(new HashValue(CryptoHelper.sha256Hash((prefix + i).getBytes())));
+        return hashes;
+    }
+
+    public void testFilter() throws Exception {
+        int count = 10000;
+        BloomFilter filter = BloomFilter.create(count, 0.01);
+        List<HashValue> added = createHashes("added", count);
+        for (HashValue hashValue : added)
+            filter.add(hashValue);
+
+        // no false negatives
+        for (HashValue hashValue : added)
+            assertTrue(filter.mightContain(hashValue));
+
+        int falsePositives = 0;
+        List<HashValue> others = createHashes("other", count);
+        for (HashValue hashValue : others) {
+            if (filter.mightContain(hashValue))
+                falsePositives++;
+        }
+        assertTrue(falsePositives < count * 0.02);
+
+        // write and read
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        filter.write(new DataOutputStream(outputStream));
+        assertEquals(BloomFilter.getSerializedSize(count, 0.01), outputStream.size());
+        byte[] serialized = outputStream.toByteArray();
+        BloomFilter read = BloomFilter.read(new DataInputStream(new ByteArrayInputStream(serialized)),
+                serialized.length);
+        assertEquals(filter.getBitCount(), read.getBitCount());
+        assertEquals(filter.getHashCount(), read.getHashCount());
+        for (int i = 0; i < count; i++) {
+            assertTrue(read.mightContain(added.get(i)));
+            assertEquals(filter.mightContain(others.get(i)), read.mightContain(others.get(i)));
+        }
+
+        // a too large filter is skipped
+        ByteArrayOutputStream twoFilters = new ByteArrayOutputStream();
+        filter.write(new DataOutputStream(twoFilters));
+        filter.write(new DataOutputStream(twoFilters));
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(twoFilters.toByteArray()));
+        assertNull(BloomFilter.read(inputStream, serialized.length - 1));
+        assertNotNull(BloomFilter.read(inputStream, serialized.length));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import junit.framework.TestCase;
+import org.fejoa.library.crypto.CryptoException;
+import org.fejoa.library.support.StorageLib;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+public class ChunkContainerCacheTest extends TestCase {
+    final List<String> cleanUpFiles = new ArrayList<String>();
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        for (String dir : cleanUpFiles)
+            StorageLib.recursiveDeleteFile(new File(dir));
+    }
+
+    private IChunkAccessor getAccessor(final ChunkStore chunkStore, final ChunkContainerCache cache)
+            throws IOException {
+        abstract class CachedAccessor implements IChunkAccessor, IChunkCacheProvider {
+        }
+
+        return new CachedAccessor() {
+            ChunkStore.Transaction transaction = chunkStore.openTransaction();
+
+            @Override
+            public DataInputStream getChunk(ChunkPointer hash) throws IOException {
+                return new DataInputStream(new ByteArrayInputStream(chunkStore.getChunk(hash.getBoxHash().getBytes())));
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException {
+                return transaction.put(data);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+
+            }
+
+            @Override
+            public ChunkContainerCache getContainerCache() {
+                return cache;
+            }
+        };
+    }
+
+    private ChunkContainerRef write(IChunkAccessor accessor, byte[] data) throws IOException, CryptoException {
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainer chunkContainer = new ChunkContainer(accessor, ref);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer);
+        outputStream.write(data);
+        outputStream.close();
+        chunkContainer.flush(false);
+        return ref;
+    }
+
+    private void read(ChunkContainer container, byte[] expected) throws IOException, CryptoException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ChunkContainerInputStream inputStream = new ChunkContainerInputStream(container, 0);
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = inputStream.read(buffer, 0, buffer.length)) > 0)
+            outputStream.write(buffer, 0, read);
+        assertTrue(Arrays.equals(expected, outputStream.toByteArray()));
+    }
+
+    public void testBudgetAndFairness() throws Exception {
+        String dirName = "testContainerCache";
+        cleanUpFiles.add(dirName);
+        File dir = new File(dirName);
+        dir.mkdirs();
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+
+        final long budget = 200 * 1024;
+        ChunkContainerCache cache = new ChunkContainerCache(budget);
+        IChunkAccessor accessor = getAccessor(chunkStore, cache);
+        byte[] largeData = new byte[1024 * 1000];
+        new Random(1).nextBytes(largeData);
+        byte[] smallData = new byte[1024 * 30];
+        new Random(2).nextBytes(smallData);
+        ChunkContainerRef largeRef = write(accessor, largeData);
+        ChunkContainerRef smallRef = write(accessor, smallData);
+        assertTrue(cache.getUsedBytes() <= budget);
+
+        ChunkContainer large = ChunkContainer.read(accessor, largeRef);
+        ChunkContainer small = ChunkContainer.read(accessor, smallRef);
+        assertSame(cache, large.getCache());
+
+        cache.resetStats();
+        read(small, smallData);
+        read(large, largeData);
+        assertTrue(cache.getUsedBytes() <= budget);
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(0, cache.getHits());
+
+        // the small container is below its fair share, the large container can't push its chunks out
+        long misses = cache.getMisses();
+        read(small, smallData);
+        assertEquals(misses, cache.getMisses());
+        assertTrue(cache.getHits() > 0);
+
+        // shrinking the budget evicts chunks right away
+        cache.setBudget(budget / 4);
+        assertTrue(cache.getUsedBytes() <= budget / 4);
+        read(large, largeData);
+        read(small, smallData);
+        assertTrue(cache.getUsedBytes() <= budget / 4);
+    }
+
+    public void testEvictionKeepsNodesTillNextAccess() throws Exception {
+        String dirName = "testContainerCacheNodes";
+        cleanUpFiles.add(dirName);
+        File dir = new File(dirName);
+        dir.mkdirs();
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+
+        ChunkContainerCache cache = new ChunkContainerCache(ChunkContainerCache.DEFAULT_BUDGET);
+        IChunkAccessor accessor = getAccessor(chunkStore, cache);
+        byte[] data = new byte[1024 * 1000];
+        new Random(1).nextBytes(data);
+        ChunkContainer container = ChunkContainer.read(accessor, write(accessor, data));
+        read(container, data);
+        ChunkContainerNode root = container;
+        IChunkPointer firstChild = root.get(0);
+        IChunk firstNode = firstChild.getCachedChunk();
+        assertNotNull(firstNode);
+
+        // evicting, e.g. for a container of another thread, only drops the data chunks
+        cache.setBudget(0);
+        assertEquals(0, cache.getUsedBytes());
+        assertSame(firstNode, firstChild.getCachedChunk());
+        assertNull(container.getCursor().seek(0).getLoadedDataChunk());
+        // the owner cleans its nodes on the next access
+        read(container, data);
+    }
+
+    public void testTruncate() throws Exception {
+        String dirName = "testContainerCacheTruncate";
+        cleanUpFiles.add(dirName);
+        File dir = new File(dirName);
+        dir.mkdirs();
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+
+        byte[] data = new byte[1024 * 1000];
+        new Random(1).nextBytes(data);
+        ChunkContainerRef ref = write(getAccessor(chunkStore, new ChunkContainerCache(0)), data);
+        ChunkContainerCache cache = new ChunkContainerCache(ChunkContainerCache.DEFAULT_BUDGET);
+        ChunkContainer container = ChunkContainer.read(getAccessor(chunkStore, cache), ref);
+        read(container, data);
+        assertTrue(container.getNLevels() > 1);
+
+        // the chunks below the removed nodes are dropped from the cache
+        container.truncate(10);
+        assertEquals(10, cache.getUsedBytes());
+    }
+}
@@ -21,6 +21,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class ChunkContainerTest extends TestCase {
@@ -416,6 +418,289 @@ public class ChunkContainerTest extends TestCase {
         assertEquals("1|2i2|3|", toString(new ChunkContainerInputStream(chunkContainer)));
     }
 
+    private void writeBytewise(OutputStream outputStream, byte[] data, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++)
+            outputStream.write(data[i]);
+    }
+
+    public void testBulkWrite() throws Exception {
+        byte[] data = new byte[1024 * 1000 * 2];
+        new Random(1).nextBytes(data);
+        byte[] overwrite = new byte[1024 * 20];
+        new Random(2).nextBytes(overwrite);
+        final int overwritePosition = 1024 * 500 + 3;
+
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainer bytewiseContainer = prepareContainer("testBulkWriteBytewise", "test", ref);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(bytewiseContainer);
+        writeBytewise(outputStream, data, 0, data.length);
+        outputStream.seek(overwritePosition);
+        writeBytewise(outputStream, overwrite, 0, overwrite.length);
+        outputStream.close();
+
+        ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainer bulkContainer = prepareContainer("testBulkWrite", "test", ref);
+        outputStream = new ChunkContainerOutputStream(bulkContainer);
+        // buffers that are smaller and larger than the chunks
+        int position = 0;
+        for (int i = 0; position < data.length; i++) {
+            int length = Math.min(data.length - position, (i % 2 == 0) ? 100 : 30000);
+            outputStream.write(data, position, length);
+            position += length;
+        }
+        outputStream.seek(overwritePosition);
+        outputStream.write(overwrite);
+        outputStream.close();
+
+        System.arraycopy(overwrite, 0, data, overwritePosition, overwrite.length);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        StreamHelper.copy(new ChunkContainerInputStream(bulkContainer), content);
+        assertTrue(Arrays.equals(data, content.toByteArray()));
+        assertEquals(bytewiseContainer.hash(), bulkContainer.hash());
+    }
+
+    private IChunkAccessor getParallelAccessor(final IChunkAccessor accessor, final int maxPuts) {
+        final AtomicInteger nPuts = new AtomicInteger();
+        return new IParallelChunkAccessor() {
+            @Override
+            public DataInputStream getChunk(ChunkPointer hash) throws IOException, CryptoException {
+                return accessor.getChunk(hash);
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException, CryptoException {
+                if (nPuts.incrementAndGet() > maxPuts)
+                    throw new IOException("Disk full");
+                return accessor.putChunk(data, ivHash);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+
+            }
+        };
+    }
+
+    private ChunkContainer writeContainer(IChunkAccessor accessor, byte[] data) throws Exception {
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(ChunkContainerHeader.ChunkingType.RABIN_SPLITTER_2K_8K);
+        ChunkContainer chunkContainer = new ChunkContainer(accessor, ref);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer);
+        outputStream.write(data);
+        outputStream.close();
+        chunkContainer.flush(false);
+        return chunkContainer;
+    }
+
+    public void testParallelWrite() throws Exception {
+        byte[] data = new byte[1024 * 1000 * 4];
+        new Random(1).nextBytes(data);
+
+        cleanUpFiles.add("testParallelWrite");
+        File dir = new File("testParallelWrite");
+        dir.mkdirs();
+        ChunkContainer sequential = writeContainer(getSimpleAccessor(ChunkStore.create(dir, "sequential")), data);
+        ChunkStore chunkStore = ChunkStore.create(dir, "parallel");
+        ChunkContainer parallel = writeContainer(getParallelAccessor(getSimpleAccessor(chunkStore),
+                Integer.MAX_VALUE), data);
+
+        // same chunks in the same order
+        assertEquals(sequential.hash(), parallel.hash());
+        assertEquals(sequential.getRef().getBoxHash(), parallel.getRef().getBoxHash());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        StreamHelper.copy(new ChunkContainerInputStream(ChunkContainer.read(getSimpleAccessor(chunkStore),
+                parallel.getRef())), content);
+        assertTrue(Arrays.equals(data, content.toByteArray()));
+
+        // errors of the workers are reported when flushing
+        try {
+            writeContainer(getParallelAccessor(getSimpleAccessor(chunkStore), 10), data);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+    }
+
+    private byte[] readAll(ChunkContainerInputStream inputStream, int bufferSize) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[bufferSize];
+        int read;
+        while ((read = inputStream.read(buffer, 0, buffer.length)) > 0)
+            content.write(buffer, 0, read);
+        inputStream.close();
+        return content.toByteArray();
+    }
+
+    public void testReadAhead() throws Exception {
+        byte[] data = new byte[1024 * 1000 * 2];
+        new Random(1).nextBytes(data);
+
+        cleanUpFiles.add("testReadAhead");
+        File dir = new File("testReadAhead");
+        dir.mkdirs();
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkContainerRef ref = writeContainer(getSimpleAccessor(chunkStore), data).getRef();
+
+        // chunks are only read ahead with a thread safe accessor
+        IChunkAccessor accessor = getParallelAccessor(getSimpleAccessor(chunkStore), Integer.MAX_VALUE);
+        for (int readAhead : new int[]{0, 1, 8}) {
+            // buffers that are smaller and larger than the chunks
+            for (int bufferSize : new int[]{1, 1000, 30000}) {
+                ChunkContainer container = ChunkContainer.read(accessor, ref);
+                assertTrue(Arrays.equals(data, readAll(new ChunkContainerInputStream(container, readAhead),
+                        bufferSize)));
+            }
+
+            // seek back and forth
+            ChunkContainer container = ChunkContainer.read(accessor, ref);
+            ChunkContainerInputStream inputStream = new ChunkContainerInputStream(container, readAhead);
+            byte[] buffer = new byte[5000];
+            for (long position : new long[]{1024 * 700, 3, 1024 * 700 + 10, data.length - 10}) {
+                inputStream.seek(position);
+                int read = inputStream.read(buffer, 0, buffer.length);
+                assertEquals(Math.min(buffer.length, data.length - position), read);
+                assertTrue(Arrays.equals(Arrays.copyOfRange(data, (int)position, (int)position + read),
+                        Arrays.copyOf(buffer, read)));
+            }
+            assertEquals(-1, inputStream.read(buffer, 0, buffer.length));
+            assertEquals(-1, inputStream.read());
+            inputStream.close();
+        }
+
+        // read ahead chunks are dropped when the container changes
+        ChunkContainer container = ChunkContainer.read(accessor, ref);
+        ChunkContainerInputStream inputStream = new ChunkContainerInputStream(container, 8);
+        byte[] buffer = new byte[100];
+        assertEquals(buffer.length, inputStream.read(buffer, 0, buffer.length));
+        byte[] changed = Arrays.copyOf(data, 1024 * 20 + 10000);
+        Arrays.fill(changed, 1024 * 20, changed.length, (byte)7);
+        container.truncate(1024 * 20);
+        ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(container);
+        outputStream.write(changed, 1024 * 20, 10000);
+        outputStream.close();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(buffer);
+        content.write(readAll(inputStream, 30000));
+        assertTrue(Arrays.equals(changed, content.toByteArray()));
+    }
+
+    public void testTruncate() throws Exception {
+        byte[] data = new byte[1024 * 1000 * 2];
+        new Random(1).nextBytes(data);
+
+        cleanUpFiles.add("testTruncate");
+        File dir = new File("testTruncate");
+        dir.mkdirs();
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        for (long length : new long[]{data.length, data.length - 1, 1024 * 700 + 3, 5000, 1, 0}) {
+            ChunkContainer chunkContainer = writeContainer(getSimpleAccessor(chunkStore), data);
+            chunkContainer.truncate(length);
+            chunkContainer.flush(false);
+
+            byte[] expected = Arrays.copyOf(data, (int)length);
+            ChunkContainer expectedContainer = writeContainer(getSimpleAccessor(chunkStore), expected);
+            // same chunks and same tree as if the truncated data had been written
+            assertEquals(expectedContainer.hash(), chunkContainer.hash());
+            assertEquals(expectedContainer.getNLevels(), chunkContainer.getNLevels());
+            assertEquals(length, chunkContainer.getDataLength());
+
+            ChunkContainer reopened = ChunkContainer.read(getSimpleAccessor(chunkStore), chunkContainer.getRef());
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            StreamHelper.copy(new ChunkContainerInputStream(reopened), content);
+            assertTrue(Arrays.equals(expected, content.toByteArray()));
+
+            // the container can still be extended
+            ChunkContainerOutputStream outputStream = new ChunkContainerOutputStream(chunkContainer);
+            outputStream.seek(length);
+            outputStream.write(data, (int)length, data.length - (int)length);
+            outputStream.close();
+            content = new ByteArrayOutputStream();
+            StreamHelper.copy(new ChunkContainerInputStream(chunkContainer), content);
+            assertTrue(Arrays.equals(data, content.toByteArray()));
+        }
+
+        try {
+            writeContainer(getSimpleAccessor(chunkStore), data).truncate(data.length + 1);
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    public void testCursor() throws Exception {
+        byte[] data = new byte[1024 * 1000 * 2];
+        new Random(1).nextBytes(data);
+
+        cleanUpFiles.add("testCursor");
+        File dir = new File("testCursor");
+        dir.mkdirs();
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkContainer written = writeContainer(getSimpleAccessor(chunkStore), data);
+        ChunkContainer chunkContainer = ChunkContainer.read(getSimpleAccessor(chunkStore), written.getRef());
+        assertTrue(chunkContainer.getNLevels() > 1);
+
+        ChunkContainer.Cursor cursor = chunkContainer.getCursor();
+        Random random = new Random(2);
+        long position = 0;
+        for (int i = 0; i < 2000; i++) {
+            switch (i % 4) {
+                case 0:
+                    // sequential
+                    ChunkContainer.DataChunkPointer current = cursor.seek(position);
+                    position = current.position + current.getDataLength();
+                    break;
+                case 1:
+                    // nearby
+                    position += random.nextInt(40000) - 20000;
+                    break;
+                case 2:
+                    // far
+                    position = random.nextInt(data.length);
+                    break;
+                case 3:
+                    // backwards
+                    position--;
+                    break;
+            }
+            position = Math.max(0, Math.min(data.length - 1, position));
+
+            ChunkContainer.DataChunkPointer pointer = cursor.seek(position);
+            ChunkContainer.DataChunkPointer expected = chunkContainer.get(position);
+            assertEquals(expected.position, pointer.position);
+            assertEquals(expected.getDataLength(), pointer.getDataLength());
+            assertEquals(data[(int)position], pointer.getDataChunk().getData()[(int)(position - pointer.position)]);
+        }
+
+        // the cursor follows changes of the container
+        long length = 1024 * 500;
+        chunkContainer.truncate(length);
+        ChunkContainer.DataChunkPointer pointer = cursor.seek(length - 1);
+        assertEquals(length, pointer.position + pointer.getDataLength());
+        try {
+            cursor.seek(length);
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    public void testCreateChunkHash() throws Exception {
+        byte[] data = new byte[1024 * 1000];
+        new Random(1).nextBytes(data);
+
+        cleanUpFiles.add("testCreateChunkHash");
+        File dir = new File("testCreateChunkHash");
+        dir.mkdirs();
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        for (int length : new int[]{data.length, 5000, 10, 0}) {
+            byte[] content = Arrays.copyOf(data, length);
+            ChunkContainer chunkContainer = writeContainer(getSimpleAccessor(chunkStore), content);
+            ChunkHash chunkHash = ChunkContainer.createChunkHash(chunkContainer.getRef());
+            chunkHash.update(content);
+            assertEquals(chunkContainer.getRef().getDataHash(), new HashValue(chunkHash.digest()));
+        }
+    }
+
     public void testSeekOutputStreamEditingLarge() throws Exception {
         int nBytes = 1024 * 1000 * 50;
         byte[] data = new byte[nBytes];
@@ -16,6 +16,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import static org.fejoa.chunkstore.RabinSplitter.*;
 
@@ -28,6 +29,31 @@ public class ChunkHashTest extends TestCase {
         }
     };
 
+    public void testBulkUpdate() throws NoSuchAlgorithmException {
+        byte[] data = new byte[1024 * 1000];
+        new Random(1).nextBytes(data);
+        ChunkHash chunkHash = new ChunkHash(new RabinSplitter(8 * 1024, 2 * 1024, 64 * 1024),
+                new RabinSplitter(512, 128, 4 * 1024), factory);
+        for (byte b : data)
+            chunkHash.update(b);
+        byte[] expected = chunkHash.digest();
+
+        // ranges of random sizes
+        chunkHash.reset();
+        Random random = new Random(2);
+        int position = 0;
+        while (position < data.length) {
+            int length = Math.min(data.length - position, random.nextInt(300 * 1024));
+            chunkHash.update(data, position, length);
+            position += length;
+        }
+        assertTrue(Arrays.equals(expected, chunkHash.digest()));
+
+        chunkHash.reset();
+        chunkHash.update(data);
+        assertTrue(Arrays.equals(expected, chunkHash.digest()));
+    }
+
     public void testSimple() throws NoSuchAlgorithmException {
         MessageDigest messageDigest = factory.create();
         ChunkHash chunkHash = new ChunkHash(new FixedBlockSplitter(2), new FixedBlockSplitter(64),
@@ -15,8 +15,14 @@ import org.fejoa.library.crypto.CryptoHelper;
 import org.fejoa.library.support.StorageLib;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class ChunkStoreTest  extends TestCase {
     final List<String> cleanUpFiles = new ArrayList<String>();
@@ -46,4 +52,315 @@ public class ChunkStoreTest  extends TestCase {
         assertEquals(new String(data1), new String(chunkStore.getChunk(result1.key)));
         assertEquals(new String(data2), new String(chunkStore.getChunk(result2.key)));
     }
+
+    public void testPackFileSegments() throws Exception {
+        String fileName = "test.pack";
+        cleanUpFiles.add(fileName);
+
+        // use a tiny segment size so that entries span multiple mapped segments
+        PackFile packFile = new PackFile(new RandomAccessFile(fileName, "rw"), 16, 0);
+        packFile.create(ChunkStore.hashSize());
+
+        List<byte[]> dataList = new ArrayList<>();
+        List<HashValue> hashes = new ArrayList<>();
+        List<Long> positions = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] data = new byte[i * 7];
+            Arrays.fill(data, (byte)i);
+            HashValue hash = new HashValue(CryptoHelper.sha3_256Hash(data));
+            dataList.add(data);
+            hashes.add(hash);
+            positions.add(packFile.put(hash, data));
+            // read back while the pack file is growing
+            assertTrue(Arrays.equals(data, packFile.get(positions.get(i), hash.getBytes())));
+        }
+
+        for (int i = 0; i < dataList.size(); i++)
+            assertTrue(Arrays.equals(dataList.get(i), packFile.get(positions.get(i), hashes.get(i).getBytes())));
+
+        try {
+            packFile.get(positions.get(1), hashes.get(2).getBytes());
+            fail();
+        } catch (Exception e) {
+        }
+
+        // the mapping grows geometrically, the tail is read from the file
+        long mappedLength = packFile.getMappedLength();
+        assertTrue(mappedLength > 0);
+        assertTrue(packFile.length() - mappedLength < mappedLength);
+
+        packFile.truncate(positions.get(10));
+        assertEquals(0, packFile.getMappedLength());
+        for (int i = 0; i < 10; i++)
+            assertTrue(Arrays.equals(dataList.get(i), packFile.get(positions.get(i), hashes.get(i).getBytes())));
+        try {
+            packFile.get(positions.get(15), hashes.get(15).getBytes());
+            fail();
+        } catch (IOException e) {
+        }
+        packFile.close();
+    }
+
+    public void testBatchAccess() throws Exception {
+        String dirName = "testBatchDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<HashValue> hashes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            hashes.add(transaction.put(("Data " + i).getBytes()).key);
+        transaction.commit();
+
+        List<HashValue> requested = new ArrayList<>();
+        for (int i = 0; i < hashes.size(); i += 3)
+            requested.add(hashes.get(i));
+        // duplicates and missing chunks
+        requested.add(hashes.get(0));
+        HashValue missing = new HashValue(CryptoHelper.sha3_256Hash("missing".getBytes()));
+        requested.add(missing);
+
+        Map<HashValue, byte[]> chunks = chunkStore.getChunks(requested);
+        assertEquals(requested.size() - 2, chunks.size());
+        assertFalse(chunks.containsKey(missing));
+        for (int i = 0; i < hashes.size(); i += 3)
+            assertEquals("Data " + i, new String(chunks.get(hashes.get(i))));
+
+        Set<HashValue> contained = chunkStore.openTransaction().contains(requested);
+        assertEquals(chunks.keySet(), contained);
+        assertTrue(chunkStore.hasChunks(new ArrayList<HashValue>()).isEmpty());
+    }
+
+    private void assertCommitNotBlocked(final ChunkStore chunkStore, final String data) throws Exception {
+        final boolean[] committed = {false};
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ChunkStore.Transaction transaction = chunkStore.openTransaction();
+                    transaction.put(data.getBytes());
+                    transaction.commit();
+                    committed[0] = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        writer.join(10000);
+        assertTrue(committed[0]);
+    }
+
+    public void testIteratorLock() throws Exception {
+        String dirName = "testIteratorLockDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        for (int i = 0; i < 10; i++)
+            transaction.put(("Data " + i).getBytes());
+        transaction.commit();
+
+        // an exhausted iterator releases the read lock
+        ChunkStore.IChunkStoreIterator iterator = chunkStore.iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertEquals(10, count);
+        assertCommitNotBlocked(chunkStore, "Data exhausted");
+        iterator.close();
+
+        // an abandoned iterator releases the lock when closed
+        iterator = chunkStore.hashIterator();
+        iterator.next();
+        iterator.close();
+        iterator.close();
+        assertFalse(iterator.hasNext());
+        assertCommitNotBlocked(chunkStore, "Data closed");
+    }
+
+    public void testTransactions() throws Exception {
+        String dirName = "testTransactionsDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        HashValue committed = transaction.put("committed".getBytes()).key;
+        transaction.commit();
+
+        // canceled chunks are removed from the store
+        transaction = chunkStore.openTransaction();
+        HashValue canceled = transaction.put("canceled".getBytes()).key;
+        assertEquals("canceled", new String(chunkStore.getChunk(canceled)));
+        ChunkStore otherStore = ChunkStore.open(dir, "test");
+        assertTrue(otherStore.hasChunk(canceled));
+        transaction.cancel();
+        assertFalse(chunkStore.hasChunk(canceled));
+        assertFalse(otherStore.hasChunk(canceled));
+        assertEquals(1, chunkStore.size());
+
+        // a chunk shared by two transactions survives the cancel of one of them
+        transaction = chunkStore.openTransaction();
+        ChunkStore.Transaction otherTransaction = otherStore.openTransaction();
+        assertFalse(transaction.put("shared".getBytes()).wasInDatabase);
+        HashValue shared = otherTransaction.put("shared".getBytes()).key;
+        transaction.cancel();
+        assertTrue(chunkStore.hasChunk(shared));
+        otherTransaction.commit();
+        assertEquals(2, chunkStore.size());
+        assertEquals("shared", new String(chunkStore.getChunk(shared)));
+
+        // re-putting a canceled chunk works
+        transaction = chunkStore.openTransaction();
+        assertFalse(transaction.put("canceled".getBytes()).wasInDatabase);
+        transaction.commit();
+        assertTrue(otherStore.hasChunk(canceled));
+        assertEquals(3, otherStore.size());
+    }
+
+    public void testWriteBatching() throws Exception {
+        String dirName = "testWriteBatchingDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        chunkStore.setWriteBatchSize(10 * 1024);
+        File packFile = new File(dir, "test.pack");
+        long emptyLength = packFile.length();
+
+        // pending chunks are served from the write batch
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<HashValue> hashes = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            hashes.add(transaction.put(("Data " + i).getBytes()).key);
+        assertTrue(transaction.put("Data 0".getBytes()).wasInDatabase);
+        assertEquals(emptyLength, packFile.length());
+        assertEquals("Data 5", new String(chunkStore.getChunk(hashes.get(5))));
+        assertEquals(hashes.size(), chunkStore.getChunks(hashes).size());
+        assertEquals(hashes.size(), chunkStore.hasChunks(hashes).size());
+
+        // canceled chunks are never written
+        transaction.cancel();
+        transaction = chunkStore.openTransaction();
+        transaction.commit();
+        assertEquals(emptyLength, packFile.length());
+
+        // the batch is flushed when it is full
+        transaction = chunkStore.openTransaction();
+        byte[] large = new byte[20 * 1024];
+        Arrays.fill(large, (byte)1);
+        HashValue largeHash = transaction.put(large).key;
+        assertTrue(packFile.length() > large.length);
+        assertTrue(Arrays.equals(large, chunkStore.getChunk(largeHash)));
+        for (int i = 0; i < 100; i++)
+            transaction.put(("Data " + i).getBytes());
+        transaction.commit();
+        assertEquals(101, chunkStore.size());
+
+        SimpleChunkStoreEngine engine = new SimpleChunkStoreEngine(dir, "test");
+        engine.open(dir, "test");
+        Map<HashValue, byte[]> chunks = engine.getChunks(hashes);
+        for (int i = 0; i < hashes.size(); i++)
+            assertEquals("Data " + i, new String(chunks.get(hashes.get(i))));
+        assertTrue(Arrays.equals(large, engine.getChunk(largeHash.getBytes())));
+    }
+
+    public void testRecovery() throws Exception {
+        String dirName = "testRecoveryDir";
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<HashValue> committed = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            committed.add(transaction.put(("Data " + i).getBytes()).key);
+        transaction.commit();
+        long packLength = new File(dir, "test.pack").length();
+        long indexLength = new File(dir, "test.idx").length();
+
+        // crash during a transaction
+        transaction = chunkStore.openTransaction();
+        List<HashValue> uncommitted = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            uncommitted.add(transaction.put(("Uncommitted " + i).getBytes()).key);
+        RandomAccessFile indexFile = new RandomAccessFile(new File(dir, "test.idx"), "rw");
+        indexFile.setLength(indexLength + 5 * 1024);
+        indexFile.close();
+
+        // a fresh engine simulates a restart
+        SimpleChunkStoreEngine engine = new SimpleChunkStoreEngine(dir, "test");
+        engine.open(dir, "test");
+        assertEquals(packLength, new File(dir, "test.pack").length());
+        assertEquals(indexLength, new File(dir, "test.idx").length());
+        assertEquals(committed.size(), engine.size());
+        assertEquals(committed.size(), engine.contains(committed).size());
+        assertTrue(engine.contains(uncommitted).isEmpty());
+        for (int i = 0; i < committed.size(); i++)
+            assertEquals("Data " + i, new String(engine.getChunk(committed.get(i).getBytes())));
+
+        IChunkStoreTransaction engineTransaction = engine.startNewTransaction();
+        engineTransaction.put("after recovery".getBytes());
+        engineTransaction.commit();
+        assertEquals(committed.size() + 1, engine.size());
+    }
+
+    public void testConcurrentCommits() throws Exception {
+        String dirName = "testConcurrentCommitsDir";
+        final File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+
+        ChunkStore.create(dir, "test");
+        final int nThreads = 8;
+        final int nCommits = 20;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            final int threadId = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ChunkStore chunkStore = ChunkStore.open(dir, "test");
+                        for (int i = 0; i < nCommits; i++) {
+                            ChunkStore.Transaction transaction = chunkStore.openTransaction();
+                            transaction.put(("Thread " + threadId + " commit " + i).getBytes());
+                            // shared chunk
+                            transaction.put(("Commit " + i).getBytes());
+                            transaction.commit();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        SimpleChunkStoreEngine engine = new SimpleChunkStoreEngine(dir, "test");
+        engine.open(dir, "test");
+        assertEquals(nThreads * nCommits + nCommits, engine.size());
+        for (int t = 0; t < nThreads; t++) {
+            for (int i = 0; i < nCommits; i++) {
+                byte[] data = ("Thread " + t + " commit " + i).getBytes();
+                assertTrue(Arrays.equals(data, engine.getChunk(CryptoHelper.sha3_256Hash(data))));
+            }
+        }
+    }
 }
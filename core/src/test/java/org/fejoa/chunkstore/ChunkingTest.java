@@ -13,11 +13,13 @@ import org.rabinfingerprint.fingerprint.RabinFingerprintLongWindowed;
 import org.rabinfingerprint.polynomial.Polynomial;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 
 public class ChunkingTest extends TestCase {
@@ -115,4 +117,122 @@ public class ChunkingTest extends TestCase {
         }
         System.out.println("Average match size: " + sumMatchSizes / nMatches);
     }
+
+    private List<Integer> splitBytewise(ChunkSplitter splitter, byte[] data) {
+        List<Integer> boundaries = new ArrayList<>();
+        splitter.reset();
+        for (int i = 0; i < data.length; i++) {
+            if (splitter.update(data[i])) {
+                boundaries.add(i + 1);
+                splitter.reset();
+            }
+        }
+        return boundaries;
+    }
+
+    private List<Integer> split(ChunkSplitter splitter, byte[] data, int bufferSize) {
+        List<Integer> boundaries = new ArrayList<>();
+        splitter.reset();
+        for (int bufferStart = 0; bufferStart < data.length; bufferStart += bufferSize) {
+            int end = Math.min(data.length, bufferStart + bufferSize);
+            int offset = bufferStart;
+            while (offset < end) {
+                int boundary = splitter.findBoundary(data, offset, end - offset);
+                if (boundary < 0)
+                    break;
+                assertTrue(splitter.isTriggered());
+                boundaries.add(boundary);
+                splitter.reset();
+                offset = boundary;
+            }
+        }
+        return boundaries;
+    }
+
+    public void testFindBoundary() throws Exception {
+        byte[] data = new byte[1024 * 1000];
+        new Random(1).nextBytes(data);
+
+        ChunkSplitter[] splitters = {
+                new RabinSplitter(RabinSplitter.CHUNK_8KB, 2 * 1024),
+                new RabinSplitter(RabinSplitter.CHUNK_8KB, 2 * 1024, 10 * 1024),
+                // min size smaller than the window
+                new RabinSplitter(1024, 16, 4096),
+                new GearSplitter(2 * 1024, 8 * 1024, 64 * 1024),
+                new GearSplitter(2 * 1024, 8 * 1024, 9 * 1024),
+                new GearSplitter(0, 256, 4096),
+                new FixedBlockSplitter(8 * 1024),
+                new FixedBlockSplitter(1)
+        };
+        int[] bufferSizes = {1, 100, 4096, 30000, data.length};
+        for (ChunkSplitter splitter : splitters) {
+            List<Integer> expected = splitBytewise(splitter, data);
+            assertTrue(expected.size() > 0);
+            for (int bufferSize : bufferSizes)
+                assertEquals(expected, split(splitter, data, bufferSize));
+        }
+    }
+
+    public void testGearSplitter() throws Exception {
+        byte[] data = new byte[1024 * 1000 * 10];
+        new Random(1).nextBytes(data);
+        GearSplitter splitter = new GearSplitter(2 * 1024, 8 * 1024, 64 * 1024);
+        List<Integer> boundaries = splitBytewise(splitter, data);
+        int previous = 0;
+        for (int boundary : boundaries) {
+            int size = boundary - previous;
+            assertTrue(size > 2 * 1024 && size <= 64 * 1024);
+            previous = boundary;
+        }
+        long averageSize = previous / boundaries.size();
+        assertTrue("Average gear chunk size: " + averageSize, averageSize > 6 * 1024 && averageSize < 12 * 1024);
+
+        // boundaries are content defined, i.e. an insertion only changes the chunks around it
+        byte[] edited = new byte[data.length + 10];
+        System.arraycopy(data, 0, edited, 0, 5000);
+        System.arraycopy(data, 5000, edited, 5010, data.length - 5000);
+        List<Integer> editedBoundaries = splitBytewise(splitter, edited);
+        int nShared = 0;
+        for (int boundary : editedBoundaries) {
+            if (boundaries.contains(boundary - 10))
+                nShared++;
+        }
+        assertTrue(nShared >= boundaries.size() - 3);
+    }
+
+    public void testGearChunkingHeader() throws Exception {
+        ChunkContainerRef ref = new ChunkContainerRef();
+        ref.getContainerHeader().setGearChunking(ChunkContainerHeader.ChunkingType.GEAR_SPLITTER_2K_8K_64K);
+        ChunkContainerRef.Data data = readWrite(ref.getData());
+        ChunkSplitter splitter = data.getContainerHeader().getSplitter(1f);
+        assertTrue(splitter instanceof GearSplitter);
+        assertEquals(8 * 1024, ((GearSplitter)splitter).getAvgChunkSize());
+
+        ref = new ChunkContainerRef();
+        ref.getContainerHeader().setGearChunking(1024, 4 * 1024, 32 * 1024);
+        data = readWrite(ref.getData());
+        splitter = data.getContainerHeader().getSplitter(0.5f);
+        assertEquals(512, ((GearSplitter)splitter).getMinChunkSize());
+        assertEquals(2 * 1024, ((GearSplitter)splitter).getAvgChunkSize());
+        assertEquals(16 * 1024, ((GearSplitter)splitter).getMaxChunkSize());
+
+        // the chunking of other containers stays readable
+        ref = new ChunkContainerRef();
+        ref.getContainerHeader().setRabinChunking(256, 180);
+        splitter = readWrite(ref.getData()).getContainerHeader().getSplitter(1f);
+        assertEquals(256, ((RabinSplitter)splitter).getTargetChunkSize());
+        assertEquals(180, ((RabinSplitter)splitter).getMinChunkSize());
+        ref = new ChunkContainerRef();
+        ref.getContainerHeader().setFixedSizeChunking(180);
+        splitter = readWrite(ref.getData()).getContainerHeader().getSplitter(1f);
+        assertEquals(180, ((FixedBlockSplitter)splitter).getBlockSize());
+    }
+
+    private ChunkContainerRef.Data readWrite(ChunkContainerRef.Data data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        data.write(outputStream);
+        ChunkContainerRef.Data read = new ChunkContainerRef.Data();
+        read.read(new ByteArrayInputStream(outputStream.toByteArray()));
+        return read;
+    }
 }
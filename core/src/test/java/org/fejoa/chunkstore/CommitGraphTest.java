@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import org.fejoa.library.crypto.CryptoHelper;
+import org.fejoa.library.support.StorageLib;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+
+
+public class CommitGraphTest extends RepositoryTestBase {
+    private IChunkAccessor getAccessor(final ChunkStore.Transaction chunkStoreTransaction) {
+        return new IChunkAccessor() {
+            @Override
+            public DataInputStream getChunk(ChunkPointer hash) throws IOException {
+                return new DataInputStream(new ByteArrayInputStream(chunkStoreTransaction.getChunk(hash.getBoxHash())));
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException {
+                return chunkStoreTransaction.put(data);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+
+            }
+        };
+    }
+
+    private IRepoChunkAccessors getRepoChunkAccessors(final ChunkStore chunkStore) {
+        return new IRepoChunkAccessors() {
+            @Override
+            public ITransaction startTransaction() throws IOException {
+                return new RepoAccessorsTransactionBase(chunkStore) {
+                    @Override
+                    public ChunkStore.Transaction getRawAccessor() {
+                        return transaction;
+                    }
+
+                    @Override
+                    public IChunkAccessor getCommitAccessor(ChunkContainerRef ref) {
+                        return getAccessor(transaction);
+                    }
+
+                    @Override
+                    public IChunkAccessor getTreeAccessor(ChunkContainerRef ref) {
+                        return getAccessor(transaction);
+                    }
+
+                    @Override
+                    public IChunkAccessor getFileAccessor(ChunkContainerRef ref, String filePath) {
+                        return getAccessor(transaction);
+                    }
+                };
+            }
+        };
+    }
+
+    private HashValue hash(String name) {
+        return new HashValue(CryptoHelper.sha256Hash(name.getBytes()));
+    }
+
+    private int add(CommitGraph graph, String name, String... parents) throws Exception {
+        List<HashValue> parentHashes = new ArrayList<>();
+        for (String parent : parents)
+            parentHashes.add(hash(parent));
+        return graph.add(hash(name), parentHashes);
+    }
+
+    private Set<Integer> indexes(CommitGraph graph, String... names) {
+        Set<Integer> indexes = new HashSet<>();
+        for (String name : names)
+            indexes.add(graph.getIndex(hash(name)));
+        return indexes;
+    }
+
+    /**
+     * a - b - c - d ----- m - n
+     *      \            /
+     *       e - f ---- g
+     */
+    private void fillGraph(CommitGraph graph) throws Exception {
+        add(graph, "a");
+        add(graph, "b", "a");
+        add(graph, "c", "b");
+        add(graph, "d", "c");
+        add(graph, "e", "b");
+        add(graph, "f", "e");
+        add(graph, "g", "f");
+        add(graph, "m", "d", "g");
+        add(graph, "n", "m");
+    }
+
+    private void assertGraph(CommitGraph graph) {
+        assertEquals(9, graph.size());
+        assertEquals(1, graph.getGeneration(graph.getIndex(hash("a"))));
+        assertEquals(5, graph.getGeneration(graph.getIndex(hash("g"))));
+        assertEquals(6, graph.getGeneration(graph.getIndex(hash("m"))));
+
+        int a = graph.getIndex(hash("a"));
+        int d = graph.getIndex(hash("d"));
+        int f = graph.getIndex(hash("f"));
+        int g = graph.getIndex(hash("g"));
+        int n = graph.getIndex(hash("n"));
+        assertTrue(graph.isAncestor(a, n));
+        assertTrue(graph.isAncestor(f, n));
+        assertTrue(graph.isAncestor(d, d));
+        assertFalse(graph.isAncestor(n, a));
+        assertFalse(graph.isAncestor(d, g));
+        assertFalse(graph.isAncestor(f, d));
+
+        CommitGraph.Difference difference = graph.getDifference(d, g);
+        assertEquals(indexes(graph, "e", "f", "g"), difference.exclusive);
+        assertEquals(indexes(graph, "b"), difference.boundary);
+        assertEquals(Collections.singletonList(graph.getIndex(hash("b"))), graph.getMergeBases(d, g));
+
+        difference = graph.getDifference(g, n);
+        assertEquals(indexes(graph, "c", "d", "m", "n"), difference.exclusive);
+        assertEquals(indexes(graph, "b", "g"), difference.boundary);
+        assertEquals(Collections.singletonList(g), graph.getMergeBases(g, n));
+
+        difference = graph.getDifference(n, g);
+        assertTrue(difference.exclusive.isEmpty());
+        assertEquals(Collections.singleton(g), difference.boundary);
+    }
+
+    public void testGraph() throws Exception {
+        File directory = new File("CommitGraphTest");
+        cleanUpFiles.add(directory.getName());
+        StorageLib.recursiveDeleteFile(directory);
+        File file = new File(directory, "branch");
+
+        CommitGraph graph = CommitGraph.open(file);
+        fillGraph(graph);
+        assertGraph(graph);
+        assertSame(graph, CommitGraph.open(file));
+
+        // reload
+        assertGraph(CommitGraph.read(file));
+
+        // an unknown parent is rejected
+        try {
+            add(graph, "x", "unknown");
+            fail();
+        } catch (Exception e) {
+        }
+
+        // a damaged file is discarded
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(randomAccessFile.length() - 3);
+        randomAccessFile.close();
+        CommitGraph damaged = CommitGraph.read(file);
+        assertEquals(0, damaged.size());
+        fillGraph(damaged);
+        assertGraph(CommitGraph.read(file));
+
+        // the graph of an encrypted repository is not stored
+        CommitGraph memoryGraph = CommitGraph.open(file, false);
+        assertFalse(file.exists());
+        assertSame(memoryGraph, CommitGraph.open(file, false));
+        fillGraph(memoryGraph);
+        assertGraph(memoryGraph);
+        assertFalse(file.exists());
+    }
+
+    public void testRepository() throws Exception {
+        File directory = new File("CommitGraphRepoTest");
+        cleanUpFiles.add(directory.getName());
+        StorageLib.recursiveDeleteFile(directory);
+        directory.mkdirs();
+        String branch = "branch";
+        ChunkStore chunkStore = ChunkStore.create(directory, "store");
+        IRepoChunkAccessors accessors = getRepoChunkAccessors(chunkStore);
+        Repository repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+
+        Map<String, DatabaseStingEntry> content = new HashMap<>();
+        List<HashValue> commits = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            add(repository, content, new DatabaseStingEntry("file" + i, "content" + i));
+            commits.add(repository.commit(null));
+        }
+        CommitGraph graph = repository.getCommitGraph();
+        assertEquals(commits.size(), graph.size());
+        CommitCache commitCache = repository.getCommitCache();
+        IRepoChunkAccessors.ITransaction transaction = repository.getCurrentTransaction();
+        CommitBox head = repository.getHeadCommit();
+        assertTrue(commitCache.isAncestor(transaction, head, commits.get(0), commits.get(4)));
+        assertFalse(commitCache.isAncestor(transaction, head, commits.get(4), commits.get(0)));
+        assertFalse(commitCache.isAncestor(transaction, head, commits.get(2), commits.get(2)));
+        assertFalse(commitCache.isAncestor(transaction, head, hash("unknown"), commits.get(4)));
+
+        // the cache is shared and bounded
+        assertSame(commitCache, new Repository(directory, branch, accessors, simpleCommitCallback).getCommitCache());
+        commitCache.setMaxCommits(2);
+        assertEquals(2, commitCache.getCachedCommitCount());
+        for (HashValue commit : commits)
+            assertEquals(commit, commitCache.getCommit(transaction, head, commit).getPlainHash());
+        assertEquals(2, commitCache.getCachedCommitCount());
+        commitCache.setMaxCommits(CommitCache.DEFAULT_MAX_COMMITS);
+
+        // the commit refs are persisted, i.e. a commit is found without a head to search from
+        File cacheFile = new File(new File(directory, "commit-caches"), branch);
+        CommitCache loaded = CommitCache.read(cacheFile, graph, simpleCommitCallback);
+        for (HashValue commit : commits) {
+            assertTrue(loaded.hasRef(commit));
+            assertEquals(commit, loaded.getCommit(transaction, null, commit).getPlainHash());
+        }
+        assertNull(loaded.getCommit(transaction, null, hash("unknown")));
+        // only the encoded refs are stored
+        String cacheContent = new String(Files.readAllBytes(cacheFile.toPath()), "UTF-8");
+        for (HashValue commit : commits)
+            assertFalse(cacheContent.contains(commit.toHex()));
+
+        // the refs and the file are bounded
+        loaded.setMaxRefs(2);
+        assertEquals(2, loaded.getRefCount());
+        loaded = CommitCache.read(cacheFile, graph, simpleCommitCallback);
+        assertEquals(2, loaded.getRefCount());
+        loaded.setMaxRefs(2);
+        for (HashValue commit : commits)
+            assertEquals(commit, loaded.getCommit(transaction, head, commit).getPlainHash());
+        assertEquals(2, loaded.getRefCount());
+        assertEquals(2, Files.readAllLines(cacheFile.toPath(), Charset.forName("UTF-8")).size());
+
+        // a wrong ref is dropped from the file
+        ChunkContainerRef wrongRef = simpleCommitCallback.commitPointerFromLog(
+                simpleCommitCallback.commitPointerToLog(loaded.getCommit(transaction, head, commits.get(1)).getRef()));
+        wrongRef.setDataHash(commits.get(0));
+        String wrongLine = simpleCommitCallback.commitPointerToLog(wrongRef);
+        Files.write(cacheFile.toPath(), (wrongLine + "\n").getBytes("UTF-8"));
+        loaded = CommitCache.read(cacheFile, graph, simpleCommitCallback);
+        assertTrue(loaded.hasRef(commits.get(0)));
+        assertEquals(commits.get(0), loaded.getCommit(transaction, head, commits.get(0)).getPlainHash());
+        assertFalse(Files.readAllLines(cacheFile.toPath(), Charset.forName("UTF-8")).contains(wrongLine));
+        loaded = CommitCache.read(cacheFile, graph, simpleCommitCallback);
+        assertEquals(commits.get(0), loaded.getCommit(transaction, null, commits.get(0)).getPlainHash());
+
+        // an existing history is indexed on demand
+        StorageLib.recursiveDeleteFile(new File(directory, "commit-graphs"));
+        assertEquals(0, CommitGraph.read(new File(new File(directory, "commit-graphs"), branch)).size());
+        CommitGraph rebuilt = new CommitGraph();
+        int headIndex = rebuilt.index(transaction, head);
+        assertEquals(commits.size(), rebuilt.size());
+        assertEquals(commits.size(), rebuilt.getGeneration(headIndex));
+    }
+}
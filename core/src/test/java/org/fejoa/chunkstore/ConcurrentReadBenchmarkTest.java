@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import junit.framework.TestCase;
+import org.fejoa.library.support.StorageLib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class ConcurrentReadBenchmarkTest extends TestCase {
+    final List<String> cleanUpFiles = new ArrayList<String>();
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        for (String dir : cleanUpFiles)
+            StorageLib.recursiveDeleteFile(new File(dir));
+    }
+
+    static private byte[] chunkData(int i, int size) {
+        byte[] data = new byte[size];
+        new Random(i).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Reads random chunks from nThreads threads and returns the total number of reads per second.
+     */
+    private double readThroughput(final ChunkStore chunkStore, final List<HashValue> hashes, final int chunkSize,
+                                  int nThreads, final int readsPerThread) throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            final long seed = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < readsPerThread; i++) {
+                            int index = random.nextInt(hashes.size());
+                            byte[] chunk = chunkStore.getChunk(hashes.get(index));
+                            if (!Arrays.equals(chunkData(index, chunkSize), chunk))
+                                throw new Exception("Unexpected chunk data");
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        long time = System.nanoTime() - startTime;
+
+        if (error.get() != null)
+            throw new Exception(error.get());
+        return (double)nThreads * readsPerThread / time * 1000000000l;
+    }
+
+    public void testConcurrentReads() throws Exception {
+        String dirName = "testConcurrentReadsDir";
+        cleanUpFiles.add(dirName);
+        File dir = new File(dirName);
+        dir.mkdirs();
+
+        final int nChunks = 20000;
+        final int chunkSize = 1024;
+        final int readsPerThread = 20000;
+
+        ChunkStore chunkStore = ChunkStore.create(dir, "test");
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<HashValue> hashes = new ArrayList<>();
+        for (int i = 0; i < nChunks; i++)
+            hashes.add(transaction.put(chunkData(i, chunkSize)).key);
+        transaction.commit();
+
+        // warm up
+        readThroughput(chunkStore, hashes, chunkSize, 1, readsPerThread);
+
+        int nCores = Runtime.getRuntime().availableProcessors();
+        System.out.println("Cores: " + nCores);
+        System.out.println("Threads, Reads/s");
+        for (int nThreads = 1; nThreads <= nCores; nThreads *= 2) {
+            double throughput = readThroughput(chunkStore, hashes, chunkSize, nThreads, readsPerThread);
+            System.out.println(nThreads + ", " + (long)throughput);
+        }
+    }
+}
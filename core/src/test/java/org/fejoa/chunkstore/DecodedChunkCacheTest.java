@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import junit.framework.TestCase;
+import org.fejoa.library.crypto.CryptoHelper;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+
+public class DecodedChunkCacheTest extends TestCase {
+    final static int CHUNK_SIZE = 1024;
+
+    private HashValue hash(int i) {
+        return new HashValue(CryptoHelper.sha256Hash(("chunk" + i).getBytes()));
+    }
+
+    private byte[] data(int i) {
+        byte[] data = new byte[CHUNK_SIZE];
+        Arrays.fill(data, (byte)i);
+        return data;
+    }
+
+    private void put(DecodedChunkCache cache, int i, boolean priority) {
+        // a miss always precedes a put
+        assertNull(cache.get(hash(i), "key"));
+        cache.put(hash(i), "key", data(i), priority);
+    }
+
+    private void testCache(boolean offHeap) {
+        final int nChunks = 100;
+        DecodedChunkCache cache = new DecodedChunkCache(nChunks * CHUNK_SIZE, offHeap);
+        for (int i = 0; i < nChunks; i++)
+            put(cache, i, false);
+        assertEquals(nChunks * CHUNK_SIZE, cache.getUsedBytes());
+        assertTrue(Arrays.equals(data(5), cache.get(hash(5), "key")));
+        // different key
+        assertNull(cache.get(hash(5), "otherKey"));
+
+        // make the first half popular
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < nChunks / 2; i++)
+                assertNotNull(cache.get(hash(i), "key"));
+        }
+
+        // a scan over new chunks doesn't push out the popular chunks
+        for (int i = nChunks; i < 4 * nChunks; i++)
+            put(cache, i, false);
+        assertTrue(cache.getUsedBytes() <= nChunks * CHUNK_SIZE);
+        assertTrue(cache.getEvictions() > 0);
+        for (int i = 0; i < nChunks / 2; i++)
+            assertTrue(Arrays.equals(data(i), cache.get(hash(i), "key")));
+
+        // priority chunks are admitted right away
+        put(cache, 10 * nChunks, true);
+        assertNotNull(cache.get(hash(10 * nChunks), "key"));
+
+        cache.invalidate(Collections.singletonList(hash(0)));
+        assertNull(cache.get(hash(0), "key"));
+        cache.setBudget(10 * CHUNK_SIZE);
+        assertTrue(cache.getUsedBytes() <= 10 * CHUNK_SIZE);
+        cache.invalidateAll();
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    public void testCache() {
+        testCache(false);
+    }
+
+    public void testShrinkBudget() {
+        final int nChunks = 20;
+        DecodedChunkCache cache = new DecodedChunkCache(nChunks * CHUNK_SIZE, false);
+        for (int i = 0; i < nChunks; i++)
+            put(cache, i, i % 2 == 0);
+        // move entries from the probation into the protected segment
+        for (int i = 0; i < nChunks; i++)
+            cache.get(hash(i), "key");
+
+        cache.setBudget(3 * CHUNK_SIZE);
+        assertTrue(cache.getUsedBytes() <= 3 * CHUNK_SIZE);
+        cache.setBudget(0);
+        assertEquals(0, cache.getUsedBytes());
+        for (int i = 0; i < nChunks; i++)
+            assertNull(cache.get(hash(i), "key"));
+    }
+
+    public void testOffHeapCache() {
+        testCache(true);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import java.io.*;
+import java.util.*;
+
+
+public class GarbageCollectorTest extends RepositoryTestBase {
+    @Override
+    public void tearDown() throws Exception {
+        ChunkStore.setDefaultEngineType(ChunkStore.EngineType.SIMPLE);
+
+        super.tearDown();
+    }
+
+    private IChunkAccessor getAccessor(final ChunkStore.Transaction transaction) {
+        return new IChunkAccessor() {
+            @Override
+            public DataInputStream getChunk(ChunkPointer hash) throws IOException {
+                byte[] chunk = transaction.getChunk(hash.getBoxHash());
+                if (chunk == null)
+                    throw new IOException("Chunk not found: " + hash.getBoxHash());
+                return new DataInputStream(new ByteArrayInputStream(chunk));
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException {
+                return transaction.put(data);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+
+            }
+        };
+    }
+
+    private IRepoChunkAccessors getRepoChunkAccessors(final ChunkStore chunkStore) {
+        return new IRepoChunkAccessors() {
+            @Override
+            public ITransaction startTransaction() throws IOException {
+                return new RepoAccessorsTransactionBase(chunkStore) {
+                    final IChunkAccessor accessor = getAccessor(transaction);
+                    @Override
+                    public ChunkStore.Transaction getRawAccessor() {
+                        return transaction;
+                    }
+
+                    @Override
+                    public IChunkAccessor getCommitAccessor(ChunkContainerRef ref) {
+                        return accessor;
+                    }
+
+                    @Override
+                    public IChunkAccessor getTreeAccessor(ChunkContainerRef ref) {
+                        return accessor;
+                    }
+
+                    @Override
+                    public IChunkAccessor getFileAccessor(ChunkContainerRef ref, String filePath) {
+                        return accessor;
+                    }
+                };
+            }
+        };
+    }
+
+    private File prepareDir(String dirName) {
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+        return dir;
+    }
+
+    private List<HashValue> putGarbage(ChunkStore chunkStore, String prefix, int count) throws IOException {
+        ChunkStore.Transaction transaction = chunkStore.openTransaction();
+        List<HashValue> hashes = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            hashes.add(transaction.put((prefix + i).getBytes()).key);
+        transaction.commit();
+        return hashes;
+    }
+
+    public void testCollectRepository() throws Exception {
+        for (ChunkStore.EngineType engineType : ChunkStore.EngineType.values()) {
+            ChunkStore.setDefaultEngineType(engineType);
+            File directory = prepareDir("GarbageCollectorTest" + engineType);
+            String branch = "branch";
+            ChunkStore chunkStore = ChunkStore.create(directory, "store");
+            IRepoChunkAccessors accessors = getRepoChunkAccessors(chunkStore);
+            Repository repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+
+            Map<String, DatabaseStingEntry> content = new HashMap<>();
+            add(repository, content, new DatabaseStingEntry("file1", "file1"));
+            add(repository, content, new DatabaseStingEntry("dir1/file2", "file2"));
+            repository.commit(null);
+            HashValue firstCommit = repository.getHeadCommit().getRef().getBoxHash();
+            add(repository, content, new DatabaseStingEntry("dir1/file2", "file2Update"));
+            add(repository, content, new DatabaseStingEntry("dir1/sub1/file3", "file3"));
+            repository.commit(null);
+
+            // e.g. chunks of an abandoned push
+            List<HashValue> garbage = putGarbage(chunkStore, "garbage", 100);
+            long size = chunkStore.size();
+
+            GarbageCollector.Result result = GarbageCollector.collect(repository);
+            assertEquals(garbage.size(), result.removedChunks);
+            assertTrue(result.reclaimedBytes > 0);
+            assertEquals(size - garbage.size(), chunkStore.size());
+            assertEquals(chunkStore.size(), result.reachableChunks);
+            assertTrue(chunkStore.hasChunks(garbage).isEmpty());
+            // the history is kept
+            assertTrue(chunkStore.hasChunk(firstCommit));
+            containsContent(repository, content);
+
+            // nothing left to collect
+            result = GarbageCollector.collect(directory, branch, accessors, simpleCommitCallback);
+            assertEquals(0, result.removedChunks);
+
+            // the store is usable after the collection
+            add(repository, content, new DatabaseStingEntry("dir2/file4", "file4"));
+            repository.commit(null);
+            repository = new Repository(directory, branch, accessors, simpleCommitCallback);
+            containsContent(repository, content);
+        }
+    }
+
+    public void testConcurrentUse() throws Exception {
+        for (ChunkStore.EngineType engineType : ChunkStore.EngineType.values()) {
+            ChunkStore.setDefaultEngineType(engineType);
+            File directory = prepareDir("GarbageCollectorConcurrentTest" + engineType);
+            ChunkStore chunkStore = ChunkStore.create(directory, "store");
+
+            List<HashValue> garbage = putGarbage(chunkStore, "garbage", 10);
+            HashValue reachable = putGarbage(chunkStore, "reachable", 1).get(0);
+            HashValue resurrected = putGarbage(chunkStore, "resurrected", 1).get(0);
+            // transaction of another user of the store
+            ChunkStore.Transaction pending = ChunkStore.open(directory, "store").openTransaction();
+            HashValue staged = pending.put("staged".getBytes()).key;
+            // an open transaction that deduplicated against an unreachable chunk
+            ChunkStore.Transaction pinning = ChunkStore.open(directory, "store").openTransaction();
+            assertTrue(pinning.put("garbage0".getBytes()).wasInDatabase);
+            HashValue pinned = garbage.get(0);
+
+            chunkStore.startGarbageCollection();
+            // chunks that are used during the collection are kept
+            HashValue late = putGarbage(chunkStore, "late", 1).get(0);
+            assertTrue(putGarbage(chunkStore, "resurrected", 1).contains(resurrected));
+            ChunkStore.SweepResult result = chunkStore.finishGarbageCollection(Collections.singleton(reachable));
+            assertEquals(garbage.size() - 1, result.removedChunks);
+            assertEquals(Collections.singleton(pinned), chunkStore.hasChunks(garbage));
+            assertEquals("reachable0", new String(chunkStore.getChunk(reachable)));
+            assertEquals("late0", new String(chunkStore.getChunk(late)));
+            assertEquals("resurrected0", new String(chunkStore.getChunk(resurrected)));
+
+            // uncommitted chunks are moved to the new files
+            assertEquals("staged", new String(chunkStore.getChunk(staged)));
+            pending.commit();
+            pinning.commit();
+            assertEquals(5, chunkStore.size());
+            assertEquals("garbage0", new String(chunkStore.getChunk(pinned)));
+
+            IChunkStoreEngine reopened;
+            if (engineType == ChunkStore.EngineType.LOG)
+                reopened = new LogChunkStoreEngine(directory, "store");
+            else
+                reopened = new SimpleChunkStoreEngine(directory, "store");
+            reopened.open(directory, "store");
+            assertEquals(5, reopened.size());
+            assertEquals("staged", new String(reopened.getChunk(staged.getBytes())));
+
+            // canceled collection
+            chunkStore.startGarbageCollection();
+            chunkStore.cancelGarbageCollection();
+            try {
+                chunkStore.finishGarbageCollection(Collections.<HashValue>emptySet());
+                fail();
+            } catch (IOException e) {
+            }
+            assertEquals(5, chunkStore.size());
+
+            // the pin is gone once the transaction has committed
+            chunkStore.startGarbageCollection();
+            result = chunkStore.finishGarbageCollection(new HashSet<>(Arrays.asList(reachable, late, resurrected,
+                    staged)));
+            assertEquals(1, result.removedChunks);
+            assertNull(chunkStore.getChunk(pinned));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+import junit.framework.TestCase;
+import org.fejoa.library.support.StorageLib;
+
+import java.io.File;
+import java.util.*;
+
+
+public class LogChunkStoreEngineTest extends TestCase {
+    final List<String> cleanUpFiles = new ArrayList<String>();
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        for (String dir : cleanUpFiles)
+            StorageLib.recursiveDeleteFile(new File(dir));
+    }
+
+    private File prepareDir(String dirName) {
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+        return dir;
+    }
+
+    private List<HashValue> putChunks(IChunkStoreEngine engine, String prefix, int start, int end) throws Exception {
+        IChunkStoreTransaction transaction = engine.startNewTransaction();
+        List<HashValue> hashes = new ArrayList<>();
+        for (int i = start; i < end; i++)
+            hashes.add(transaction.put((prefix + i).getBytes()).key);
+        transaction.commit();
+        return hashes;
+    }
+
+    private void assertChunks(IChunkStoreEngine engine, String prefix, List<HashValue> hashes) throws Exception {
+        Map<HashValue, byte[]> chunks = engine.getChunks(hashes);
+        assertEquals(hashes.size(), chunks.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            assertEquals(prefix + i, new String(chunks.get(hashes.get(i))));
+            assertEquals(prefix + i, new String(engine.getChunk(hashes.get(i).getBytes())));
+        }
+    }
+
+    public void testCompaction() throws Exception {
+        File dir = prepareDir("testLogCompactionDir");
+
+        LogChunkStoreEngine engine = new LogChunkStoreEngine(dir, "test");
+        engine.create(dir, "test");
+        engine.setMemtableSize(100);
+        engine.setMaxSegmentSize(8 * 1024);
+        List<HashValue> hashes = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            hashes.addAll(putChunks(engine, "Data ", i * 60, (i + 1) * 60));
+        engine.compact();
+        // 10 memtable flushes: two merged files with 4 flushes each and 2 unmerged files
+        assertEquals(4, engine.getIndexFileCount());
+        assertEquals(hashes.size(), engine.size());
+        assertChunks(engine, "Data ", hashes);
+
+        // the iterator returns all chunks in index order
+        ChunkStore.IChunkStoreIterator iterator = engine.iterator();
+        List<byte[]> keys = new ArrayList<>();
+        try {
+            while (iterator.hasNext())
+                keys.add(iterator.next().key.getBytes());
+        } finally {
+            iterator.close();
+        }
+        assertEquals(hashes.size(), keys.size());
+        for (int i = 1; i < keys.size(); i++)
+            assertTrue(BaseBPlusTree.compareKeys(keys.get(i - 1), keys.get(i)) < 0);
+
+        LogChunkStoreEngine reopened = new LogChunkStoreEngine(dir, "test");
+        reopened.open(dir, "test");
+        assertEquals(hashes.size(), reopened.size());
+        assertChunks(reopened, "Data ", hashes);
+    }
+
+    private int getMaxFileId(File dir, String name) {
+        int maxId = -1;
+        for (String fileName : dir.list()) {
+            String[] parts = fileName.split("\\.");
+            if (parts.length == 3 && parts[0].equals(name))
+                maxId = Math.max(maxId, Integer.parseInt(parts[1]));
+        }
+        return maxId;
+    }
+
+    private void waitForCompactionError(LogChunkStoreEngine engine, boolean failed) throws Exception {
+        for (int i = 0; i < 1000 && (engine.getCompactionError() != null) != failed; i++)
+            Thread.sleep(10);
+        assertEquals(failed, engine.getCompactionError() != null);
+    }
+
+    public void testCompactionError() throws Exception {
+        File dir = prepareDir("testLogCompactionErrorDir");
+
+        LogChunkStoreEngine engine = new LogChunkStoreEngine(dir, "test");
+        engine.create(dir, "test");
+        engine.setMemtableSize(100);
+        List<HashValue> hashes = new ArrayList<>();
+        for (int i = 0; i < LogChunkStoreEngine.COMPACTION_FAN_IN - 1; i++)
+            hashes.addAll(putChunks(engine, "Data ", i * 100, (i + 1) * 100));
+        // the next commit writes an index file and starts a compaction that can't write its index file
+        int compactionId = getMaxFileId(dir, "test") + 2;
+        assertTrue(new File(dir, "test." + compactionId + ".sst").mkdir());
+        int start = hashes.size();
+        hashes.addAll(putChunks(engine, "Data ", start, start + 100));
+        waitForCompactionError(engine, true);
+        assertEquals(LogChunkStoreEngine.COMPACTION_FAN_IN, engine.getIndexFileCount());
+
+        // commits still succeed and the compaction is retried
+        start = hashes.size();
+        hashes.addAll(putChunks(engine, "Data ", start, start + 100));
+        engine.compact();
+        waitForCompactionError(engine, false);
+        // all index files are of the same size tier
+        assertEquals(1, engine.getIndexFileCount());
+        assertEquals(hashes.size(), engine.size());
+        assertChunks(engine, "Data ", hashes);
+    }
+
+    public void testRecovery() throws Exception {
+        File dir = prepareDir("testLogRecoveryDir");
+
+        LogChunkStoreEngine engine = new LogChunkStoreEngine(dir, "test");
+        engine.create(dir, "test");
+        engine.setMemtableSize(300);
+        engine.setMaxSegmentSize(16 * 1024);
+        List<HashValue> committed = putChunks(engine, "Data ", 0, 500);
+
+        // crash during a transaction
+        IChunkStoreTransaction transaction = engine.startNewTransaction();
+        List<HashValue> uncommitted = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            uncommitted.add(transaction.put(("Uncommitted " + i).getBytes()).key);
+        engine.setWriteBatchSize(0);
+        transaction.put("Flushed".getBytes());
+
+        LogChunkStoreEngine recovered = new LogChunkStoreEngine(dir, "test");
+        recovered.open(dir, "test");
+        assertEquals(committed.size(), recovered.size());
+        assertChunks(recovered, "Data ", committed);
+        assertTrue(recovered.contains(uncommitted).isEmpty());
+
+        List<HashValue> more = putChunks(recovered, "Data ", 500, 600);
+        LogChunkStoreEngine reopened = new LogChunkStoreEngine(dir, "test");
+        reopened.open(dir, "test");
+        assertEquals(600, reopened.size());
+        committed.addAll(more);
+        assertChunks(reopened, "Data ", committed);
+    }
+
+    public void testEngineSelection() throws Exception {
+        File dir = prepareDir("testEngineSelectionDir");
+
+        try {
+            ChunkStore.setDefaultEngineType(ChunkStore.EngineType.LOG);
+            ChunkStore chunkStore = ChunkStore.create(dir, "log");
+            ChunkStore.Transaction transaction = chunkStore.openTransaction();
+            HashValue hash = transaction.put("log".getBytes()).key;
+            transaction.commit();
+            assertTrue(new File(dir, "log.manifest").exists());
+            assertNull(chunkStore.getIndexCache());
+
+            // existing stores are opened with their engine
+            ChunkStore.setDefaultEngineType(ChunkStore.EngineType.SIMPLE);
+            assertEquals("log", new String(ChunkStore.open(dir, "log").getChunk(hash)));
+            ChunkStore.create(dir, "simple");
+            assertTrue(new File(dir, "simple.idx").exists());
+        } finally {
+            ChunkStore.setDefaultEngineType(ChunkStore.EngineType.SIMPLE);
+        }
+    }
+}
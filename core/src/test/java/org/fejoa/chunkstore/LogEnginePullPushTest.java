@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore;
+
+
+/**
+ * Runs the PullPushTest suite on the log-structured engine.
+ */
+public class LogEnginePullPushTest extends PullPushTest {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        ChunkStore.setDefaultEngineType(ChunkStore.EngineType.LOG);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        ChunkStore.setDefaultEngineType(ChunkStore.EngineType.SIMPLE);
+
+        super.tearDown();
+    }
+}
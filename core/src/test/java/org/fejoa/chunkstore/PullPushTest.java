@@ -7,6 +7,7 @@
  */
 package org.fejoa.chunkstore;
 
+import org.fejoa.chunkstore.sync.HasChunksRequest;
 import org.fejoa.chunkstore.sync.PullRepoRequest;
 import org.fejoa.chunkstore.sync.PullRequest;
 import org.fejoa.chunkstore.sync.PushRequest;
@@ -17,8 +18,7 @@ import org.fejoa.library.remote.IRemotePipe;
 import org.fejoa.library.support.StorageLib;
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 
 public class PullPushTest extends RepositoryTestBase {
@@ -257,6 +257,81 @@ public class PullPushTest extends RepositoryTestBase {
         remoteRepo = new Repository(remoteDirectory, branch, getRepoChunkAccessors(remoteChunkStore),
                 simpleCommitCallback);
         containsContent(remoteRepo, localContent);
+
+        // edit a multi level file container
+        StringBuilder largeContent = new StringBuilder();
+        Random random = new Random(1);
+        for (int i = 0; i < 50000; i++)
+            largeContent.append(random.nextInt());
+        add(localRepo, localContent, new DatabaseStingEntry("sub/largeFile", largeContent.toString()));
+        localRepo.commit(null);
+        pushRequest.push(senderPipe, localTransaction, branch);
+        largeContent.insert(largeContent.length() / 2, "edit");
+        add(localRepo, localContent, new DatabaseStingEntry("sub/largeFile", largeContent.toString()));
+        add(localRepo, localContent, new DatabaseStingEntry("sub/sub2/testFile4", "Hello World 4 edit"));
+        localRepo.commit(null);
+        pushRequest.push(senderPipe, localTransaction, branch);
+        remoteRepo = new Repository(remoteDirectory, branch, getRepoChunkAccessors(remoteChunkStore),
+                simpleCommitCallback);
+        containsContent(remoteRepo, localContent);
     }
-}
 
+    public void testHasChunksUsingFilter() throws Exception {
+        File remoteDirectory = new File("RemoteHasChunksTest");
+        cleanUpFiles.add(remoteDirectory.getName());
+        StorageLib.recursiveDeleteFile(remoteDirectory);
+        remoteDirectory.mkdirs();
+
+        ChunkStore remoteChunkStore = createChunkStore(remoteDirectory, "remoteStore");
+        ChunkStore.Transaction remoteTransaction = remoteChunkStore.openTransaction();
+        List<HashValue> remoteChunks = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            remoteChunks.add(remoteTransaction.put(("remote" + i).getBytes()).key);
+        remoteTransaction.commit();
+
+        RequestHandler handler = new RequestHandler(remoteChunkStore.openTransaction(),
+                new RequestHandler.IBranchLogGetter() {
+            @Override
+            public ChunkStoreBranchLog get(String branch) throws IOException {
+                return null;
+            }
+        });
+        IRemotePipe senderPipe = connect(handler);
+
+        List<HashValue> candidates = new ArrayList<>();
+        Set<HashValue> expected = new HashSet<>();
+        for (int i = 0; i < 2000; i += 4) {
+            candidates.add(remoteChunks.get(i));
+            expected.add(remoteChunks.get(i));
+        }
+        File localDirectory = new File("LocalHasChunksTest");
+        StorageLib.recursiveDeleteFile(localDirectory);
+        localDirectory.mkdirs();
+        ChunkStore.Transaction localTransaction = createChunkStore(localDirectory, "localStore").openTransaction();
+        for (int i = 0; i < 1500; i++)
+            candidates.add(localTransaction.put(("local" + i).getBytes()).key);
+        Collections.shuffle(candidates, new Random(1));
+
+        assertEquals(expected, new HashSet<>(HasChunksRequest.hasChunksUsingFilter(senderPipe, candidates)));
+        // few candidates are checked directly
+        List<HashValue> fewCandidates = candidates.subList(0, 10);
+        Set<HashValue> fewExpected = new HashSet<>(fewCandidates);
+        fewExpected.retainAll(expected);
+        assertEquals(fewExpected, new HashSet<>(HasChunksRequest.hasChunksUsingFilter(senderPipe, fewCandidates)));
+
+        // committed chunks are added to the filter
+        remoteTransaction = remoteChunkStore.openTransaction();
+        remoteTransaction.put("remote2000".getBytes());
+        HashValue added = null;
+        for (HashValue candidate : candidates) {
+            if (!expected.contains(candidate)) {
+                added = candidate;
+                break;
+            }
+        }
+        remoteTransaction.put(localTransaction.getChunk(added));
+        remoteTransaction.commit();
+        expected.add(added);
+        assertEquals(expected, new HashSet<>(HasChunksRequest.hasChunksUsingFilter(senderPipe, candidates)));
+    }
+}
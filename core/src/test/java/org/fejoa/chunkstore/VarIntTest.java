@@ -71,6 +71,11 @@ public class VarIntTest extends TestCase {
 
         assertWriteAndParsing(500, 4);
 
+        // zero bytes in the middle
+        assertWriteAndParsing(1 << 15);
+
+        assertWriteAndParsing(1L << 40, 4);
+
         assertWriteAndParsing((long)Integer.MAX_VALUE * 2L);
 
         assertWriteAndParsing(Long.MAX_VALUE);
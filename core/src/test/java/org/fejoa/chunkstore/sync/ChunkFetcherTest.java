@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017.
+ * Distributed under the terms of the GPLv3 License.
+ *
+ * Authors:
+ *      Clemens Zeidler <czei002@aucklanduni.ac.nz>
+ */
+package org.fejoa.chunkstore.sync;
+
+import org.fejoa.chunkstore.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+public class ChunkFetcherTest extends RepositoryTestBase {
+    private IChunkAccessor getAccessor(final ChunkStore.Transaction chunkStoreTransaction) {
+        return new IChunkAccessor() {
+            @Override
+            public DataInputStream getChunk(ChunkPointer hash) throws IOException {
+                return new DataInputStream(new ByteArrayInputStream(chunkStoreTransaction.getChunk(hash.getBoxHash())));
+            }
+
+            @Override
+            public PutResult<HashValue> putChunk(byte[] data, HashValue ivHash) throws IOException {
+                return chunkStoreTransaction.put(data);
+            }
+
+            @Override
+            public void releaseChunk(HashValue data) {
+
+            }
+        };
+    }
+
+    private IRepoChunkAccessors getRepoChunkAccessors(final ChunkStore chunkStore) {
+        return new IRepoChunkAccessors() {
+            @Override
+            public ITransaction startTransaction() throws IOException {
+                return new RepoAccessorsTransactionBase(chunkStore) {
+                    @Override
+                    public ChunkStore.Transaction getRawAccessor() {
+                        return transaction;
+                    }
+
+                    @Override
+                    public IChunkAccessor getCommitAccessor(ChunkContainerRef ref) {
+                        return getAccessor(transaction);
+                    }
+
+                    @Override
+                    public IChunkAccessor getTreeAccessor(ChunkContainerRef ref) {
+                        return getAccessor(transaction);
+                    }
+
+                    @Override
+                    public IChunkAccessor getFileAccessor(ChunkContainerRef ref, String filePath) {
+                        return getAccessor(transaction);
+                    }
+                };
+            }
+        };
+    }
+
+    private File prepareDir(String dirName) {
+        File dir = new File(dirName);
+        dir.mkdirs();
+        cleanUpFiles.add(dirName);
+        return dir;
+    }
+
+    /**
+     * Counts the concurrent requests to the backend.
+     */
+    static class CountingBackend implements ChunkFetcher.IFetcherBackend {
+        final private ChunkFetcher.IFetcherBackend backend;
+        private int inFlight = 0;
+        private int maxInFlight = 0;
+
+        CountingBackend(ChunkFetcher.IFetcherBackend backend) {
+            this.backend = backend;
+        }
+
+        @Override
+        public void fetch(ChunkStore.Transaction transaction, List<HashValue> requestedChunks) throws IOException {
+            synchronized (this) {
+                inFlight++;
+                maxInFlight = Math.max(maxInFlight, inFlight);
+            }
+            try {
+                backend.fetch(transaction, requestedChunks);
+            } finally {
+                synchronized (this) {
+                    inFlight--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds the requests until the window is full, i.e. until the given number of requests are in flight.
+     */
+    static class WindowBackend implements ChunkFetcher.IFetcherBackend {
+        final private CountDownLatch windowFull;
+        private int inFlight = 0;
+        private int maxInFlight = 0;
+        private int fetchedChunks = 0;
+
+        WindowBackend(int window) {
+            this.windowFull = new CountDownLatch(window);
+        }
+
+        @Override
+        public void fetch(ChunkStore.Transaction transaction, List<HashValue> requestedChunks) throws IOException {
+            synchronized (this) {
+                inFlight++;
+                maxInFlight = Math.max(maxInFlight, inFlight);
+            }
+            windowFull.countDown();
+            try {
+                // only a safety net, the window is filled before the fetcher waits for the first response
+                windowFull.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                synchronized (this) {
+                    inFlight--;
+                    fetchedChunks += requestedChunks.size();
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests a list of chunks without enqueuing follow-up jobs.
+     */
+    static class ChunkListJob extends Job {
+        final private List<HashValue> chunks;
+
+        ChunkListJob(List<HashValue> chunks) {
+            super(null);
+            this.chunks = chunks;
+        }
+
+        @Override
+        public Collection<HashValue> getRequestedChunks() {
+            return chunks;
+        }
+
+        @Override
+        protected void enqueueJobsAfterChunksFetched(ChunkFetcher chunkFetcher) {
+
+        }
+    }
+
+    public void testWindow() throws Exception {
+        File dir = prepareDir("ChunkFetcherWindowTest");
+        ChunkStore store = ChunkStore.create(dir, "store");
+        int window = 4;
+        int nJobs = 2 * window;
+        WindowBackend backend = new WindowBackend(window);
+        ChunkFetcher fetcher = new ChunkFetcher(store.openTransaction(), backend, window);
+        for (int i = 0; i < nJobs; i++) {
+            List<HashValue> chunks = new ArrayList<>();
+            for (int j = 0; j < fetcher.getBatchSize(); j++) {
+                byte[] hash = new byte[32];
+                hash[0] = (byte)i;
+                hash[1] = (byte)j;
+                chunks.add(new HashValue(hash));
+            }
+            fetcher.enqueueJob(new ChunkListJob(chunks));
+        }
+        int requestedChunks = nJobs * fetcher.getBatchSize();
+        fetcher.fetch();
+
+        assertEquals(window, backend.maxInFlight);
+        assertEquals(requestedChunks, backend.fetchedChunks);
+    }
+
+    public void testBatchSize() throws Exception {
+        File dir = prepareDir("ChunkFetcherBatchSizeTest");
+        ChunkStore store = ChunkStore.create(dir, "store");
+        ChunkFetcher fetcher = new ChunkFetcher(store.openTransaction(), new WindowBackend(1));
+        long ms = 1000L * 1000;
+        assertEquals(64, fetcher.getBatchSize());
+
+        // a fast batch, the size grows but at most doubles
+        fetcher.updateBatchSize(64, 10 * ms);
+        assertEquals(128, fetcher.getBatchSize());
+        // close to the target duration of 200ms
+        fetcher.updateBatchSize(128, 160 * ms);
+        assertEquals(160, fetcher.getBatchSize());
+        // a partial batch is ignored
+        fetcher.updateBatchSize(10, 1000 * ms);
+        assertEquals(160, fetcher.getBatchSize());
+        // a slow batch, the size shrinks but at most halves
+        fetcher.updateBatchSize(160, 1000 * ms);
+        assertEquals(80, fetcher.getBatchSize());
+
+        // the size stays within the bounds
+        for (int i = 0; i < 10; i++)
+            fetcher.updateBatchSize(fetcher.getBatchSize(), 1000 * ms);
+        assertEquals(ChunkFetcher.MIN_BATCH_SIZE, fetcher.getBatchSize());
+        for (int i = 0; i < 10; i++)
+            fetcher.updateBatchSize(fetcher.getBatchSize(), 1);
+        assertEquals(ChunkFetcher.MAX_BATCH_SIZE, fetcher.getBatchSize());
+    }
+
+    public void testPipelinedFetch() throws Exception {
+        String branch = "branch";
+        File sourceDir = prepareDir("ChunkFetcherSourceTest");
+        ChunkStore sourceStore = ChunkStore.create(sourceDir, "store");
+        Repository source = new Repository(sourceDir, branch, getRepoChunkAccessors(sourceStore),
+                simpleCommitCallback);
+
+        Map<String, DatabaseStingEntry> content = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 20; j++) {
+                add(source, content, new DatabaseStingEntry("dir" + j + "/sub" + (j % 3) + "/file" + i,
+                        "content" + i + "_" + j));
+            }
+            byte[] largeFile = new byte[1024 * 1024];
+            random.nextBytes(largeFile);
+            add(source, content, new DatabaseStingEntry("large" + i, new String(largeFile, "ISO-8859-1")));
+            source.commit(null);
+        }
+        ChunkContainerRef tip = source.getHeadCommit().getRef();
+
+        for (int window : new int[]{1, 4}) {
+            File targetDir = prepareDir("ChunkFetcherTargetTest" + window);
+            ChunkStore targetStore = ChunkStore.create(targetDir, "store");
+            IRepoChunkAccessors targetAccessors = getRepoChunkAccessors(targetStore);
+            IRepoChunkAccessors.ITransaction targetTransaction = targetAccessors.startTransaction();
+
+            CountingBackend backend = new CountingBackend(new ChunkFetcher.LocalFetcherBackend(
+                    source.getCurrentTransaction().getRawAccessor(), 10));
+            ChunkFetcher fetcher = new ChunkFetcher(targetTransaction.getRawAccessor(), backend, window);
+            fetcher.enqueueGetCommitJob(targetTransaction, tip);
+            fetcher.fetch();
+
+            assertEquals(sourceStore.size(), targetStore.size());
+            assertTrue(backend.maxInFlight <= window);
+
+            // nothing left to fetch
+            backend = new CountingBackend(new ChunkFetcher.LocalFetcherBackend(
+                    source.getCurrentTransaction().getRawAccessor(), 0));
+            fetcher = new ChunkFetcher(targetStore.openTransaction(), backend, window);
+            fetcher.enqueueGetCommitJob(targetAccessors.startTransaction(), tip);
+            fetcher.fetch();
+            assertEquals(sourceStore.size(), targetStore.size());
+        }
+    }
+}
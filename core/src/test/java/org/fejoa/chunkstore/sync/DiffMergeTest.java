@@ -139,6 +139,12 @@ public class DiffMergeTest extends RepositoryTest {
         assertTrue(chain.commits.size() == 2);
         CommitBox parent = chain.commits.get(chain.commits.size() - 1);
         assertTrue(parent.getPlainHash().equals(repository.getHeadCommit().getPlainHash()));
+        // same result using the commit graph
+        chains = CommonAncestorsFinder.find(new CommitGraph(), transaction, ours, transaction, theirs);
+        assertTrue(chains.chains.size() == 1);
+        chain = chains.chains.get(0);
+        assertTrue(chain.commits.size() == 2);
+        assertTrue(chain.getOldest().getPlainHash().equals(repository.getHeadCommit().getPlainHash()));
 
         repository.merge(transaction, theirs);
         repository.commit("merge1", null);
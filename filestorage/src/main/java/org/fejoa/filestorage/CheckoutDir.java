@@ -7,6 +7,9 @@
  */
 package org.fejoa.filestorage;
 
+import org.fejoa.chunkstore.ChunkContainer;
+import org.fejoa.chunkstore.ChunkContainerRef;
+import org.fejoa.chunkstore.ChunkHash;
 import org.fejoa.chunkstore.HashValue;
 import org.fejoa.library.database.IIOSyncDatabase;
 import org.fejoa.library.database.IRandomDataAccess;
@@ -187,30 +190,33 @@ public class CheckoutDir {
         long lastModified = outFile.lastModified();
         if (lastModified > entry.getLastModified())
             return true;
-        else if (lastModified == entry.getLastModified()) {
-            // compare the hash
-            //TODO the hash in the entry is the git blob hash so it can't be compared to the file hash...
-            return false;
-
-            /*try {
-                BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(outFile));
-                DigestOutputStream outputStream = new DigestOutputStream(new OutputStream() {
-                    @Override
-                    public void write(int i) throws IOException {
-
-                    }
-                }, CryptoHelper.sha1Hash());
-                StreamHelper.copy(inputStream, outputStream);
-                HashValue hashValue = new HashValue(outputStream.getMessageDigest().digest());
-                if (!hashValue.equals(entry.getHash()))
-                    return true;
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-            }*/
+        else if (lastModified == entry.getLastModified() && lastModified >= index.getCommitTime()) {
+            // racily clean: the file may have been changed right after it has been indexed, compare the hash
+            if (!hashFile(outFile).equals(entry.getHash()))
+                return true;
         }
         return false;
     }
 
+    /**
+     * Calculates the data hash the file has when stored in the database, i.e. without storing or reading it.
+     *
+     * Files are stored with the default chunking, for files stored with a different chunking the hash doesn't match.
+     */
+    private HashValue hashFile(File file) throws IOException {
+        ChunkHash chunkHash = ChunkContainer.createChunkHash(new ChunkContainerRef());
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0)
+                chunkHash.update(buffer, 0, read);
+        } finally {
+            inputStream.close();
+        }
+        return new HashValue(chunkHash.digest());
+    }
+
     private boolean needsCheckout(File outFile, HashValue inDatabaseHash, Index.Entry entry,
                                   boolean overWriteLocalChanges) throws IOException {
         if (entry == null)
@@ -135,6 +135,16 @@ public class Index {
         }
     }
 
+    /**
+     * Returns the time the index has been committed, in the resolution of the file system.
+     *
+     * Entries of files that have been modified at or after this time are racily clean, i.e. the file may have been
+     * changed after it has been indexed without changing its modification time.
+     */
+    public long getCommitTime() {
+        return new File(indexDir, "rev").lastModified();
+    }
+
     public void commit(HashValue currentRev) throws IOException {
         this.storageDir.commit();
         setRev(currentRev);